@@ -94,6 +94,8 @@ public class CacheLIRS<K, V> implements LoadingCache<K, V> {
     private final Weigher<K, V> weigher;
     
     private final CacheLoader<K, V> loader;
+
+    private final EvictionCallback<K, V> evictionCallback;
     
     /**
      * Create a new cache with the given number of entries, and the default
@@ -115,10 +117,29 @@ public class CacheLIRS<K, V> implements LoadingCache<K, V> {
      * @param stackMoveDistance how many other item are to be moved to the top
      *        of the stack before the current item is moved
      */
-    @SuppressWarnings("unchecked")
     CacheLIRS(Weigher<K, V> weigher, long maxMemory, int averageMemory, 
             int segmentCount, int stackMoveDistance, final CacheLoader<K, V> loader) {
+        this(weigher, maxMemory, averageMemory, segmentCount,
+                stackMoveDistance, loader, null);
+    }
+
+    /**
+     * Create a new cache with the given memory size.
+     *
+     * @param maxMemory the maximum memory to use (1 or larger)
+     * @param averageMemory the average memory (1 or larger)
+     * @param segmentCount the number of cache segments (must be a power of 2)
+     * @param stackMoveDistance how many other item are to be moved to the top
+     *        of the stack before the current item is moved
+     * @param evictionCallback the callback to notify about evicted entries
+     *        (may be null)
+     */
+    @SuppressWarnings("unchecked")
+    CacheLIRS(Weigher<K, V> weigher, long maxMemory, int averageMemory, 
+            int segmentCount, int stackMoveDistance, final CacheLoader<K, V> loader,
+            EvictionCallback<K, V> evictionCallback) {
         this.weigher = weigher;
+        this.evictionCallback = evictionCallback;
         setMaxMemory(maxMemory);
         setAverageMemory(averageMemory);
         if (Integer.bitCount(segmentCount) != 1) {
@@ -1107,6 +1128,9 @@ public class CacheLIRS<K, V> implements LoadingCache<K, V> {
                 usedMemory -= e.memory;
                 evictionCount++;
                 removeFromQueue(e);
+                if (cache.evictionCallback != null) {
+                    cache.evictionCallback.evicted(e.key, e.value);
+                }
                 e.value = null;
                 e.memory = 0;
                 addToQueue(queue2, e);
@@ -1367,6 +1391,27 @@ public class CacheLIRS<K, V> implements LoadingCache<K, V> {
 
     }
     
+    /**
+     * Listener for entries that are evicted from the cache because the
+     * memory limit was reached. The callback is invoked while the cache
+     * segment is locked, so implementations must be fast and must not
+     * acquire other locks or access the cache.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    public interface EvictionCallback<K, V> {
+
+        /**
+         * Called when an entry was evicted.
+         *
+         * @param key the key of the evicted entry
+         * @param value the value of the evicted entry
+         */
+        void evicted(K key, V value);
+
+    }
+
     /**
      * A builder for the cache.
      */
@@ -1375,6 +1420,8 @@ public class CacheLIRS<K, V> implements LoadingCache<K, V> {
         private Weigher<?, ?> weigher;
         private long maxWeight;
         private int averageWeight = 100;
+        private int segmentCount = 16;
+        private EvictionCallback<?, ?> evictionCallback;
 
         public Builder recordStats() {
             return this;
@@ -1401,6 +1448,17 @@ public class CacheLIRS<K, V> implements LoadingCache<K, V> {
             return this;
         }
 
+        public Builder segmentCount(int segmentCount) {
+            this.segmentCount = segmentCount;
+            return this;
+        }
+
+        public <K, V> Builder evictionCallback(
+                EvictionCallback<K, V> evictionCallback) {
+            this.evictionCallback = evictionCallback;
+            return this;
+        }
+
         public <K, V> CacheLIRS<K, V> build() {
             return build(null);
         }
@@ -1409,7 +1467,10 @@ public class CacheLIRS<K, V> implements LoadingCache<K, V> {
                 CacheLoader<K, V> cacheLoader) {
             @SuppressWarnings("unchecked")
             Weigher<K, V> w = (Weigher<K, V>) weigher;
-            return new CacheLIRS<K, V>(w, maxWeight, averageWeight, 16, 16, cacheLoader);
+            @SuppressWarnings("unchecked")
+            EvictionCallback<K, V> c = (EvictionCallback<K, V>) evictionCallback;
+            return new CacheLIRS<K, V>(w, maxWeight, averageWeight,
+                    segmentCount, 16, cacheLoader, c);
         }
 
     }
@@ -219,6 +219,24 @@ class Branch {
         }
     }
 
+    /**
+     * Returns the paths of all nodes changed by the commits of this branch.
+     * These are not added to the journal with the branch commits, but with
+     * the merge commit of the branch.
+     *
+     * @return the changed paths, possibly containing duplicates.
+     */
+    @Nonnull
+    public Iterable<String> getChangedPaths() {
+        return Iterables.concat(transform(commits.values(),
+                new Function<BranchCommit, Iterable<String>>() {
+            @Override
+            public Iterable<String> apply(BranchCommit branchCommit) {
+                return branchCommit.getChangedPaths();
+            }
+        }));
+    }
+
     /**
      * Gets the most recent unsaved last revision at <code>readRevision</code>
      * or earlier in this branch for the given <code>path</code>. Documents with
@@ -279,6 +297,18 @@ class Branch {
 
         abstract Iterable<String> getModifiedPaths();
 
+        /**
+         * Called for each node changed by this branch commit.
+         *
+         * @param path the path of the changed node.
+         */
+        abstract void trackChange(String path);
+
+        /**
+         * @return the paths of all nodes changed by this branch commit.
+         */
+        abstract Iterable<String> getChangedPaths();
+
         protected abstract boolean isRebase();
     }
 
@@ -289,6 +319,8 @@ class Branch {
 
         private final Set<String> modifications = Sets.newHashSet();
 
+        private final Set<String> changes = Sets.newHashSet();
+
         BranchCommitImpl(Revision base, Revision commit) {
             super(base, commit);
         }
@@ -310,6 +342,16 @@ class Branch {
             return modifications;
         }
 
+        @Override
+        void trackChange(String path) {
+            changes.add(path);
+        }
+
+        @Override
+        Iterable<String> getChangedPaths() {
+            return changes;
+        }
+
         @Override
         protected boolean isRebase() {
             return false;
@@ -372,6 +414,23 @@ class Branch {
             return Iterables.concat(paths);
         }
 
+        @Override
+        void trackChange(String path) {
+            throw new UnsupportedOperationException("RebaseCommit is read-only");
+        }
+
+        @Override
+        Iterable<String> getChangedPaths() {
+            Iterable<Iterable<String>> paths = transform(previous.values(),
+                    new Function<BranchCommit, Iterable<String>>() {
+                @Override
+                public Iterable<String> apply(BranchCommit branchCommit) {
+                    return branchCommit.getChangedPaths();
+                }
+            });
+            return Iterables.concat(paths);
+        }
+
         /**
          * Filter out the RebaseCommits as they are just container of previous BranchCommit
          *
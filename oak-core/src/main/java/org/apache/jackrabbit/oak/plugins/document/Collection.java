@@ -70,6 +70,20 @@ public abstract class Collection<T extends Document> {
                 }
             };
 
+    /**
+     * The 'journal' collection contains the paths changed by each cluster
+     * node, with one document per background write. See
+     * {@link JournalEntry}.
+     */
+    public static final Collection<JournalEntry> JOURNAL =
+            new Collection<JournalEntry>("journal") {
+                @Override
+                @Nonnull
+                public JournalEntry newDocument(DocumentStore store) {
+                    return new JournalEntry();
+                }
+            };
+
     private final String name;
 
     public Collection(String name) {
@@ -23,6 +23,10 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -34,11 +38,14 @@ import org.apache.jackrabbit.oak.commons.json.JsopStream;
 import org.apache.jackrabbit.oak.commons.json.JsopWriter;
 import org.apache.jackrabbit.oak.plugins.document.util.Utils;
 import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.util.PerfLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Iterables.filter;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static com.google.common.collect.Iterables.transform;
 import static org.apache.jackrabbit.oak.commons.PathUtils.denotesRoot;
 import static org.apache.jackrabbit.oak.plugins.document.Collection.NODES;
@@ -52,6 +59,25 @@ public class Commit {
 
     private static final Logger LOG = LoggerFactory.getLogger(Commit.class);
 
+    private static final PerfLogger PERFLOG = new PerfLogger(
+            LoggerFactory.getLogger(Commit.class.getName() + ".perf"));
+
+    /**
+     * The number of threads used to update documents of a commit
+     * concurrently. The threads are owned by the {@link DocumentNodeStore}.
+     * Zero means documents are always updated one by one.
+     */
+    static final int UPDATE_THREADS = Integer.getInteger(
+            "oak.documentMK.commitThreads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The minimum number of documents a commit needs to update before they
+     * are updated concurrently.
+     */
+    static final int CONCURRENT_UPDATE_SIZE = Integer.getInteger(
+            "oak.documentMK.commitConcurrentSize", 16);
+
     private final DocumentNodeStore nodeStore;
     private final DocumentNodeStoreBranch branch;
     private final Revision baseRevision;
@@ -316,6 +342,8 @@ public class Commit {
             newNodes.add(commitRoot);
         }
         try {
+            long start = PERFLOG.start();
+            int numNewNodes = newNodes.size();
             if (newNodes.size() > 0) {
                 // set commit root on new nodes
                 if (!store.create(NODES, newNodes)) {
@@ -332,19 +360,25 @@ public class Commit {
                     newNodes.clear();
                 }
             }
+            PERFLOG.end(start, 1, "applyToDocumentStore() created {} documents",
+                    numNewNodes);
+            start = PERFLOG.start();
             for (UpdateOp op : changedNodes) {
                 // set commit root on changed nodes. this may even apply
                 // to the commit root. the _commitRoot entry is removed
                 // again when the _revisions entry is set at the end
                 NodeDocument.setCommitRoot(op, revision, commitRootDepth);
                 opLog.add(op);
-                createOrUpdateNode(store, op);
             }
+            createOrUpdateNodes(store, changedNodes);
+            PERFLOG.end(start, 1, "applyToDocumentStore() updated {} documents",
+                    changedNodes.size());
             // finally write the commit root, unless it was already written
             // with added nodes (the commit root might be written twice,
             // first to check if there was a conflict, and only then to commit
             // the revision, with the revision property set)
             if (changedNodes.size() > 0 || !commitRoot.isNew()) {
+                start = PERFLOG.start();
                 // set revision to committed
                 NodeDocument.setRevision(commitRoot, revision, commitValue);
                 if (commitRootHasChanges) {
@@ -383,6 +417,8 @@ public class Commit {
                     createOrUpdateNode(store, commitRoot);
                 }
                 operations.put(commitRootPath, commitRoot);
+                PERFLOG.end(start, 1, "applyToDocumentStore() updated commit root {}",
+                        commitRoot.getId());
             }
         } catch (DocumentStoreException e) {
             rollback(newNodes, opLog, commitRoot);
@@ -439,6 +475,64 @@ public class Commit {
         checkSplitCandidate(doc);
     }
 
+    /**
+     * Creates or updates the documents of the given operations, which must
+     * all be on distinct documents. If there are at least
+     * {@link #CONCURRENT_UPDATE_SIZE} operations, they are sent to the store
+     * concurrently. In any case, conflicts are only checked once all
+     * operations were applied and in the order of the operations. Like
+     * {@link #createOrUpdateNode(DocumentStore, UpdateOp)}, this method throws
+     * an exception on the first conflict, even though all changes are still
+     * applied.
+     *
+     * @param store the store
+     * @param ops the operations
+     */
+    private void createOrUpdateNodes(final DocumentStore store,
+                                     List<UpdateOp> ops) {
+        ExecutorService executor = nodeStore.getCommitExecutor();
+        if (executor == null || ops.size() < CONCURRENT_UPDATE_SIZE) {
+            for (UpdateOp op : ops) {
+                createOrUpdateNode(store, op);
+            }
+            return;
+        }
+        List<Future<NodeDocument>> futures = newArrayListWithCapacity(ops.size());
+        for (final UpdateOp op : ops) {
+            futures.add(executor.submit(new Callable<NodeDocument>() {
+                @Override
+                public NodeDocument call() {
+                    return store.createOrUpdate(NODES, op);
+                }
+            }));
+        }
+        // wait for all updates, even if one of them failed. a rollback
+        // must only start once no more changes are in flight
+        List<NodeDocument> before = newArrayListWithCapacity(ops.size());
+        Throwable failure = null;
+        for (Future<NodeDocument> f : futures) {
+            try {
+                before.add(getUninterruptibly(f));
+            } catch (ExecutionException e) {
+                before.add(null);
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new DocumentStoreException(failure);
+        }
+        for (int i = 0; i < ops.size(); i++) {
+            checkConflicts(ops.get(i), before.get(i));
+            checkSplitCandidate(before.get(i));
+        }
+    }
+
     private void checkSplitCandidate(@Nullable NodeDocument doc) {
         if (doc != null && doc.getMemory() > SPLIT_CANDIDATE_THRESHOLD) {
             nodeStore.addSplitCandidate(doc.getId());
@@ -596,6 +690,7 @@ public class Commit {
                 // track intermediate node and root
                 tracker.track(path);
             }
+            nodeStore.trackJournalChange(revision, path, isBranchCommit);
             nodeStore.applyChanges(revision, path, isNew,
                     added, removed, changed, cacheEntry);
         }
@@ -652,4 +747,5 @@ public class Commit {
         return filter(transform(op.getChanges().keySet(),
                 KEY_TO_NAME), Utils.PROPERTY_OR_DELETED).iterator().hasNext();
     }
+
 }
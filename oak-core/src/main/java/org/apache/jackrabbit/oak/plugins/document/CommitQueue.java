@@ -18,16 +18,22 @@ package org.apache.jackrabbit.oak.plugins.document;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
-import java.util.SortedMap;
+import java.util.Map;
 import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import com.google.common.base.Throwables;
 import org.apache.jackrabbit.oak.spi.commit.ChangeDispatcher;
 import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
@@ -37,6 +43,13 @@ import org.slf4j.LoggerFactory;
 /**
  * <code>CommitQueue</code> ensures a sequence of commits consistent with the
  * commit revision even if commits did not complete in this sequence.
+ * <p>
+ * A trunk commit is published (the head revision is set and observers are
+ * notified) once all commits with a lower revision are either published or
+ * canceled. Publication is done by whichever thread finds the head of the
+ * queue ready to be published. That thread publishes all consecutive ready
+ * commits in one go, while the threads of these commits simply wait for
+ * their own entry to be released.
  */
 class CommitQueue {
 
@@ -44,10 +57,29 @@ class CommitQueue {
 
     private final DocumentNodeStore store;
 
-    private final SortedMap<Revision, Entry> commits = new TreeMap<Revision, Entry>(StableRevisionComparator.INSTANCE);
+    /**
+     * The commits in progress, sorted by revision. Revisions are created and
+     * added to this map atomically, that is, a commit is never added in front
+     * of a commit that is already in the map.
+     */
+    private final ConcurrentNavigableMap<Revision, Entry> commits =
+            new ConcurrentSkipListMap<Revision, Entry>(StableRevisionComparator.INSTANCE);
+
+    /**
+     * Set while a thread publishes commits.
+     */
+    private final AtomicBoolean publishing = new AtomicBoolean();
 
     private final ChangeDispatcher dispatcher;
 
+    private final AtomicLong waitCount = new AtomicLong();
+
+    private final AtomicLong waitTime = new AtomicLong();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong publishCount = new AtomicLong();
+
     CommitQueue(DocumentNodeStore store, ChangeDispatcher dispatcher) {
         this.store = store;
         this.dispatcher = dispatcher;
@@ -88,68 +120,104 @@ class CommitQueue {
         removeCommit(rev);
     }
 
+    /**
+     * @return the number of commits currently in progress.
+     */
+    int getSize() {
+        return commits.size();
+    }
+
+    /**
+     * @return the number of trunk commits that had to wait for the
+     *          publication of a commit with a lower revision.
+     */
+    long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * @return the total time in milliseconds trunk commits waited for the
+     *          publication of a commit with a lower revision.
+     */
+    long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+    }
+
+    /**
+     * @return the average number of commits published in one go.
+     */
+    double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) publishCount.get() / batches;
+    }
+
     //------------------------< internal >--------------------------------------
 
     private void removeCommit(@Nonnull Revision rev) {
-        // simply remove and notify next head if any
-        synchronized (this) {
-            boolean wasHead = commits.firstKey().equals(rev);
-            commits.remove(rev);
-            LOG.debug("removed commit {}, wasHead={}", rev, wasHead);
-            if (wasHead) {
-                notifyHead();
-            }
-        }
+        // simply remove and publish the next commits if any
+        commits.remove(rev);
+        LOG.debug("removed commit {}", rev);
+        publish();
     }
 
     private void afterTrunkCommit(@Nonnull Commit commit,
                                   @Nullable CommitInfo info) {
-        assert !commits.isEmpty();
         Revision rev = commit.getRevision();
-
-        boolean isHead;
-        Entry commitEntry;
-        synchronized (this) {
-            isHead = commits.firstKey().equals(rev);
-            commitEntry = commits.get(rev);
-        }
-        if (!isHead) {
-            LOG.debug("not head: {}, waiting...", rev);
+        Entry commitEntry = commits.get(rev);
+        checkState(commitEntry != null, "Unknown commit: %s", rev);
+        commitEntry.ready(commit, info);
+        publish();
+        if (!commitEntry.isPublished()) {
+            LOG.debug("not published: {}, waiting...", rev);
+            long start = System.nanoTime();
             commitEntry.await();
+            waitTime.addAndGet(System.nanoTime() - start);
+            waitCount.incrementAndGet();
         }
-        synchronized (this) {
-            commits.remove(rev);
+        commitEntry.checkFailure();
+    }
+
+    /**
+     * Publishes the commits at the head of the queue until it is empty or
+     * the head commit is not ready yet. Does nothing if another thread is
+     * currently publishing commits. That thread checks the head of the
+     * queue again before it returns.
+     */
+    private void publish() {
+        while (publishing.compareAndSet(false, true)) {
             try {
-                LOG.debug("removed {}, head is now {}", rev, commits.isEmpty() ? null : commits.firstKey());
-                // remember before revision
-                Revision before = store.getHeadRevision();
-                // apply changes to cache based on before revision
-                commit.applyToCache(before, false);
-                // update head revision
-                store.setHeadRevision(rev);
-                NodeState root = store.getRoot();
-                dispatcher.contentChanged(root, info);
+                int num = 0;
+                Map.Entry<Revision, Entry> head;
+                while ((head = commits.firstEntry()) != null
+                        && head.getValue().isReady()) {
+                    commits.remove(head.getKey());
+                    LOG.debug("publishing {}", head.getKey());
+                    head.getValue().publish();
+                    num++;
+                }
+                if (num > 0) {
+                    batchCount.incrementAndGet();
+                    publishCount.addAndGet(num);
+                }
             } finally {
-                // notify next if there is any
-                notifyHead();
+                publishing.set(false);
+            }
+            // another commit may have become ready (or the head removed)
+            // after the check above, while this thread was still publishing
+            Map.Entry<Revision, Entry> head = commits.firstEntry();
+            if (head == null || !head.getValue().isReady()) {
+                break;
             }
-        }
-    }
-
-    private void notifyHead() {
-        if (!commits.isEmpty()) {
-            LOG.debug("release {}", commits.firstKey());
-            commits.get(commits.firstKey()).release();
         }
     }
 
     /**
      * An entry in the commit queue.
      */
-    private static final class Entry {
+    private final class Entry {
 
         /**
-         * The revision of the commit (used for debugging).
+         * The revision of the commit.
          */
         private final Revision revision;
 
@@ -159,15 +227,69 @@ class CommitQueue {
          */
         private final CountDownLatch latch = new CountDownLatch(1);
 
+        /**
+         * The commit, set when it is ready to be published.
+         */
+        private volatile Commit commit;
+
+        private volatile CommitInfo info;
+
+        /**
+         * The failure while the commit was published, if any.
+         */
+        private volatile Throwable failure;
+
         Entry(Revision revision) {
             this.revision = revision;
         }
 
         /**
-         * Release all threads that are waiting.
+         * Marks this entry as ready to be published.
          */
-        void release() {
-            latch.countDown();
+        void ready(@Nonnull Commit commit, @Nullable CommitInfo info) {
+            this.info = info;
+            this.commit = commit;
+        }
+
+        boolean isReady() {
+            return commit != null;
+        }
+
+        boolean isPublished() {
+            return latch.getCount() == 0;
+        }
+
+        /**
+         * Applies the commit to the cache, sets the new head revision and
+         * notifies observers. Must only be called by the thread currently
+         * publishing commits. Releases the thread waiting for this entry,
+         * even if publication failed.
+         */
+        void publish() {
+            try {
+                // remember before revision
+                Revision before = store.getHeadRevision();
+                // apply changes to cache based on before revision
+                commit.applyToCache(before, false);
+                // update head revision
+                store.setHeadRevision(revision);
+                NodeState root = store.getRoot();
+                dispatcher.contentChanged(root, info);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                latch.countDown();
+            }
+        }
+
+        /**
+         * Rethrows the failure that occurred while this entry was published.
+         */
+        void checkFailure() {
+            Throwable t = failure;
+            if (t != null) {
+                throw Throwables.propagate(t);
+            }
         }
 
         /**
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.document;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.cache.CacheValue;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * An immutable map of revisions to values, sorted by
+ * {@link StableRevisionComparator#REVERSE} (newest first). Instead of a
+ * {@code TreeMap} with an entry and a {@link Revision} object per
+ * revision, the revisions are kept in a single array of primitives and the
+ * values in a second array. Short values are interned, because the same
+ * values (e.g. commit markers) are repeated in many documents.
+ * <p>
+ * Sealed {@link NodeDocument}s use this representation for their local
+ * revision maps. The {@link Revision} keys are created on demand when the
+ * map is iterated.
+ */
+final class CompactRevisionMap extends AbstractMap<Revision, String>
+        implements SortedMap<Revision, String>, CacheValue {
+
+    /**
+     * Values up to this length are interned.
+     */
+    private static final int INTERN_MAX_LENGTH = 64;
+
+    private static final Interner<String> VALUES = Interners.newWeakInterner();
+
+    /**
+     * The revisions, two elements per revision: the timestamp and the
+     * counter and cluster id combined into a single long.
+     */
+    private final long[] revisions;
+
+    private final String[] values;
+
+    /**
+     * The index of the first entry of this map (inclusive).
+     */
+    private final int start;
+
+    /**
+     * The index of the last entry of this map (exclusive).
+     */
+    private final int end;
+
+    private CompactRevisionMap(long[] revisions, String[] values,
+                               int start, int end) {
+        this.revisions = revisions;
+        this.values = values;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Creates a compact copy of the given map. This is only possible for a
+     * {@link SortedMap} ordered by {@link StableRevisionComparator#REVERSE}
+     * with non-branch {@link Revision} keys and non-null {@link String}
+     * values.
+     *
+     * @param map the map to copy.
+     * @return the compact copy or {@code null} if the map cannot be copied.
+     */
+    @CheckForNull
+    static CompactRevisionMap compact(@Nonnull Map<?, ?> map) {
+        if (!(map instanceof SortedMap)
+                || ((SortedMap<?, ?>) map).comparator() != StableRevisionComparator.REVERSE) {
+            return null;
+        }
+        int size = map.size();
+        long[] revisions = new long[size * 2];
+        String[] values = new String[size];
+        int i = 0;
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            if (!(e.getKey() instanceof Revision)
+                    || !(e.getValue() instanceof String)) {
+                return null;
+            }
+            Revision r = (Revision) e.getKey();
+            if (r.isBranch()) {
+                return null;
+            }
+            revisions[i * 2] = r.getTimestamp();
+            revisions[i * 2 + 1] = ((long) r.getCounter() << 32)
+                    | (r.getClusterId() & 0xffffffffL);
+            String v = (String) e.getValue();
+            if (v.length() <= INTERN_MAX_LENGTH) {
+                v = VALUES.intern(v);
+            }
+            values[i] = v;
+            i++;
+        }
+        return new CompactRevisionMap(revisions, values, 0, size);
+    }
+
+    //---------------------------------------------------------< SortedMap >
+
+    @Override
+    public Comparator<? super Revision> comparator() {
+        return StableRevisionComparator.REVERSE;
+    }
+
+    @Nonnull
+    @Override
+    public SortedMap<Revision, String> subMap(Revision fromKey, Revision toKey) {
+        int from = indexOf(fromKey);
+        int to = indexOf(toKey);
+        if (from > to) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return new CompactRevisionMap(revisions, values, from, to);
+    }
+
+    @Nonnull
+    @Override
+    public SortedMap<Revision, String> headMap(Revision toKey) {
+        return new CompactRevisionMap(revisions, values, start, indexOf(toKey));
+    }
+
+    @Nonnull
+    @Override
+    public SortedMap<Revision, String> tailMap(Revision fromKey) {
+        return new CompactRevisionMap(revisions, values, indexOf(fromKey), end);
+    }
+
+    @Override
+    public Revision firstKey() {
+        if (start == end) {
+            throw new NoSuchElementException();
+        }
+        return keyAt(start);
+    }
+
+    @Override
+    public Revision lastKey() {
+        if (start == end) {
+            throw new NoSuchElementException();
+        }
+        return keyAt(end - 1);
+    }
+
+    //-------------------------------------------------------< AbstractMap >
+
+    @Override
+    public int size() {
+        return end - start;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof Revision)) {
+            return null;
+        }
+        Revision r = (Revision) key;
+        int i = indexOf(r);
+        if (i < end && compare(i, r) == 0) {
+            return values[i];
+        }
+        return null;
+    }
+
+    @Nonnull
+    @Override
+    public Set<Map.Entry<Revision, String>> entrySet() {
+        return new AbstractSet<Map.Entry<Revision, String>>() {
+            @Nonnull
+            @Override
+            public Iterator<Map.Entry<Revision, String>> iterator() {
+                return new AbstractIterator<Map.Entry<Revision, String>>() {
+                    private int i = start;
+
+                    @Override
+                    protected Map.Entry<Revision, String> computeNext() {
+                        if (i == end) {
+                            return endOfData();
+                        }
+                        Map.Entry<Revision, String> e = new SimpleImmutableEntry<Revision, String>(
+                                keyAt(i), values[i]);
+                        i++;
+                        return e;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactRevisionMap.this.size();
+            }
+        };
+    }
+
+    //--------------------------------------------------------< CacheValue >
+
+    @Override
+    public int getMemory() {
+        // object, arrays and 20 bytes per entry
+        int size = 96 + values.length * 20;
+        for (String v : values) {
+            if (v.length() > INTERN_MAX_LENGTH) {
+                // interned values are shared with other maps
+                size += 48 + v.length() * 2;
+            }
+        }
+        return size;
+    }
+
+    //-----------------------------------------------------------< internal >
+
+    private Revision keyAt(int i) {
+        long cc = revisions[i * 2 + 1];
+        return new Revision(revisions[i * 2], (int) (cc >>> 32), (int) cc);
+    }
+
+    /**
+     * Compares the revision at the given index with {@code r} in the order
+     * of {@link StableRevisionComparator#INSTANCE}.
+     */
+    private int compare(int i, Revision r) {
+        long timestamp = revisions[i * 2];
+        if (timestamp != r.getTimestamp()) {
+            return timestamp < r.getTimestamp() ? -1 : 1;
+        }
+        long cc = revisions[i * 2 + 1];
+        int counter = (int) (cc >>> 32);
+        if (counter != r.getCounter()) {
+            return counter < r.getCounter() ? -1 : 1;
+        }
+        int clusterId = (int) cc;
+        if (clusterId != r.getClusterId()) {
+            return clusterId < r.getClusterId() ? -1 : 1;
+        }
+        // revisions in this map are never branch revisions,
+        // which sort after a branch revision with the same time
+        return r.isBranch() ? 1 : 0;
+    }
+
+    /**
+     * Returns the index of the first entry in this map, which is not newer
+     * than the given revision, or {@link #end} if there is none.
+     */
+    private int indexOf(Revision r) {
+        int low = start;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, r) > 0) {
+                // newer than r
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -20,11 +20,20 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
-
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -52,11 +61,13 @@ import org.apache.jackrabbit.oak.util.PerfLogger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
 
 /**
@@ -80,6 +91,15 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
      */
     static final int MAX_FETCH_SIZE = INITIAL_FETCH_SIZE << 4;
 
+    /**
+     * The number of threads reading batches of child nodes ahead of an
+     * iterator over the child node entries. The threads are owned by the
+     * {@link DocumentNodeStore}. Zero disables reading ahead.
+     */
+    static final int PREFETCH_THREADS = Integer.getInteger(
+            "oak.documentMK.prefetchThreads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     final String path;
     final Revision rev;
     final Map<String, PropertyState> properties = Maps.newHashMap();
@@ -428,7 +448,12 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
     @Nonnull
     private Iterable<ChildNodeEntry> getChildNodeEntries(@Nullable String name,
                                                          int limit) {
-        Iterable<DocumentNodeState> children = store.getChildNodes(this, name, limit);
+        return asChildNodeEntries(store.getChildNodes(this, name, limit));
+    }
+
+    @Nonnull
+    private static Iterable<ChildNodeEntry> asChildNodeEntries(
+            @Nonnull Iterable<DocumentNodeState> children) {
         return Iterables.transform(children, new Function<DocumentNodeState, ChildNodeEntry>() {
             @Override
             public ChildNodeEntry apply(final DocumentNodeState input) {
@@ -590,6 +615,11 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
         
     }
 
+    /**
+     * Iterates over the child node entries in batches of growing size. Once
+     * half of a batch is consumed, the next batch is read in the background,
+     * with the documents of all child nodes in that batch read at once.
+     */
     private class ChildNodeEntryIterator implements Iterator<ChildNodeEntry> {
 
         private String previousName;
@@ -597,6 +627,18 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
         private int fetchSize = INITIAL_FETCH_SIZE;
         private int currentRemaining = fetchSize;
 
+        /**
+         * The name of the child node before the current batch.
+         */
+        private String currentStart;
+        private int currentSize;
+
+        /**
+         * The batch after the current one, read in the background, or
+         * {@code null} if not requested yet.
+         */
+        private Prefetch next;
+
         ChildNodeEntryIterator() {
             fetchMore();
         }
@@ -610,6 +652,7 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
                     return true;
                 } else if (currentRemaining > 0) {
                     // current returned less than fetchSize
+                    cancelPrefetch();
                     return false;
                 }
                 fetchMore();
@@ -624,6 +667,9 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
             ChildNodeEntry entry = current.next();
             previousName = entry.getName();
             currentRemaining--;
+            if (next == null && currentRemaining == currentSize / 2) {
+                prefetch();
+            }
             return entry;
         }
 
@@ -633,8 +679,20 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
         }
 
         private void fetchMore() {
-            Iterator<ChildNodeEntry> entries = getChildNodeEntries(
-                    previousName, fetchSize).iterator();
+            Iterable<DocumentNodeState> children = null;
+            if (next != null) {
+                if (Objects.equal(next.start, previousName)) {
+                    children = next.get();
+                }
+                cancelPrefetch();
+            }
+            if (children == null) {
+                children = store.getChildNodes(DocumentNodeState.this,
+                        previousName, fetchSize);
+            }
+            Iterator<ChildNodeEntry> entries = asChildNodeEntries(children).iterator();
+            currentStart = previousName;
+            currentSize = fetchSize;
             currentRemaining = fetchSize;
             fetchSize = Math.min(fetchSize * 2, MAX_FETCH_SIZE);
             if (entries.hasNext()) {
@@ -643,6 +701,105 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
                 current = null;
             }
         }
+
+        /**
+         * Starts reading the batch after the current one in the background.
+         * At most one batch is read ahead, which bounds the memory used by
+         * this iterator and the work wasted when it is abandoned.
+         */
+        private void prefetch() {
+            ExecutorService executor = store.getPrefetchExecutor();
+            if (executor == null) {
+                return;
+            }
+            final DocumentNodeState parent = DocumentNodeState.this;
+            final int limit = fetchSize;
+            // the current batch has the same children the store returns
+            // for this call, which is served from the children cache
+            Children c = store.getChildren(parent, currentStart, currentSize);
+            if (c.children.isEmpty() || c.children.size() < currentSize) {
+                // this is the last batch
+                return;
+            }
+            String start = c.children.get(c.children.size() - 1);
+            Prefetch prefetch = new Prefetch(parent, start, limit, this);
+            try {
+                prefetch.future = executor.submit(prefetch);
+            } catch (RejectedExecutionException e) {
+                // the store is being disposed
+                return;
+            }
+            next = prefetch;
+        }
+
+        private void cancelPrefetch() {
+            if (next != null) {
+                next.cancel();
+                next = null;
+            }
+        }
+    }
+
+    /**
+     * A batch of child nodes read ahead of a {@link ChildNodeEntryIterator}.
+     * The batch is read by whoever gets to it first: a pool thread, or the
+     * iterator when it needs the batch before a pool thread picked it up.
+     * The pool thread skips the read if the iterator was already garbage
+     * collected, which happens when it is abandoned before reaching the
+     * batch.
+     */
+    private static final class Prefetch
+            implements Callable<List<DocumentNodeState>> {
+
+        private final DocumentNodeState parent;
+        private final String start;
+        private final int limit;
+        private final WeakReference<Iterator<ChildNodeEntry>> iterator;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private Future<List<DocumentNodeState>> future;
+
+        Prefetch(DocumentNodeState parent, String start, int limit,
+                 Iterator<ChildNodeEntry> iterator) {
+            this.parent = parent;
+            this.start = start;
+            this.limit = limit;
+            this.iterator = new WeakReference<Iterator<ChildNodeEntry>>(iterator);
+        }
+
+        @Override
+        public List<DocumentNodeState> call() {
+            if (iterator.get() == null || !claimed.compareAndSet(false, true)) {
+                // abandoned or read by the iterator itself
+                return null;
+            }
+            return parent.store.readChildNodes(parent, start, limit);
+        }
+
+        /**
+         * Returns the batch, reading it in the calling thread if no pool
+         * thread started reading it yet.
+         *
+         * @return the child nodes, or {@code null} if reading them failed.
+         */
+        @CheckForNull
+        List<DocumentNodeState> get() {
+            if (claimed.compareAndSet(false, true)) {
+                future.cancel(false);
+                return parent.store.readChildNodes(parent, start, limit);
+            }
+            try {
+                return getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                // read again by the caller, which fails
+                // there if the problem persists
+                return null;
+            }
+        }
+
+        void cancel() {
+            claimed.set(true);
+            future.cancel(false);
+        }
     }
 
 }
@@ -18,9 +18,11 @@ package org.apache.jackrabbit.oak.plugins.document;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterables.addAll;
 import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.toArray;
 import static com.google.common.collect.Iterables.transform;
+import static com.google.common.collect.Sets.newConcurrentHashSet;
 import static org.apache.jackrabbit.oak.api.CommitFailedException.MERGE;
 import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
 import static org.apache.jackrabbit.oak.plugins.document.Collection.NODES;
@@ -36,6 +38,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -50,6 +53,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -133,6 +139,26 @@ public final class DocumentNodeStore
     private static final int WARN_REVISION_AGE =
             Integer.getInteger("oak.documentMK.revisionAge", 60 * 1000);
 
+    /**
+     * The maximum number of paths changed by other cluster nodes for which
+     * the diff cache is populated from the journal on a background read.
+     */
+    static final int EXTERNAL_DIFF_CACHE_LIMIT =
+            Integer.getInteger("oak.documentMK.externalDiffCacheLimit", 10000);
+
+    /**
+     * Journal entries older than this many milliseconds are removed by the
+     * cluster node that wrote them. The default is one day.
+     */
+    static final long JOURNAL_GC_MAX_AGE_MILLIS =
+            Long.getLong("oak.documentMK.journalGCMaxAge", TimeUnit.DAYS.toMillis(1));
+
+    /**
+     * The minimum time in milliseconds between two runs of the journal
+     * garbage collection. The default is five minutes.
+     */
+    private static final long JOURNAL_GC_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
     /**
      * Feature flag to enable concurrent add/remove operations of hidden empty
      * nodes. See OAK-2673.
@@ -234,6 +260,59 @@ public final class DocumentNodeStore
      */
     private final UnsavedModifications unsavedLastRevisions = new UnsavedModifications();
 
+    /**
+     * The paths of all nodes changed by commits of this cluster node since
+     * the last journal entry was taken. Replaced with a new set while the
+     * exclusive {@link #backgroundOperationLock} is held.
+     */
+    private volatile Set<String> journalChanges = newConcurrentHashSet();
+
+    /**
+     * The revision of the last journal entry written by this cluster node,
+     * or its {@code _lastRev} when it was started. Only accessed by the
+     * background write.
+     */
+    private Revision lastJournalRevision;
+
+    /**
+     * Writes a journal entry with the {@link #journalChanges} before the
+     * _lastRev of the root document is updated.
+     */
+    private final UnsavedModifications.Snapshot journalSnapshot =
+            new UnsavedModifications.Snapshot() {
+
+        private Set<String> changes;
+
+        @Override
+        public void acquiring(@Nonnull Revision mostRecent) {
+            changes = journalChanges;
+            journalChanges = newConcurrentHashSet();
+        }
+
+        @Override
+        public void acquired(@Nonnull Revision mostRecent) {
+            boolean success = false;
+            try {
+                store.create(Collection.JOURNAL, Collections.singletonList(
+                        JournalEntry.newEntry(mostRecent, lastJournalRevision, changes)));
+                lastJournalRevision = mostRecent;
+                success = true;
+            } finally {
+                if (!success) {
+                    // include the changes in the next entry
+                    journalChanges.addAll(changes);
+                }
+                changes = null;
+            }
+        }
+    };
+
+    /**
+     * The time of the last journal garbage collection run. Only accessed
+     * by the synchronized background update operations.
+     */
+    private long lastJournalGC;
+
     /**
      * Set of IDs for documents that may need to be split.
      */
@@ -354,6 +433,24 @@ public final class DocumentNodeStore
 
     private final Executor executor;
 
+    /**
+     * Pool for updating the documents of a commit concurrently, or
+     * {@code null} if they are updated one by one.
+     */
+    private final ExecutorService commitExecutor;
+
+    /**
+     * Pool for writing the _lastRev of nodes at the same depth concurrently,
+     * or {@code null} if they are written one after another.
+     */
+    private final ExecutorService lastRevExecutor;
+
+    /**
+     * Pool for reading batches of child nodes ahead of iterators over child
+     * node entries, or {@code null} if they are not read ahead.
+     */
+    private final ExecutorService prefetchExecutor;
+
     private final LastRevRecoveryAgent lastRevRecoveryAgent;
 
     private final boolean disableBranches;
@@ -376,6 +473,17 @@ public final class DocumentNodeStore
         }
         this.store = s;
         this.executor = builder.getExecutor();
+        this.commitExecutor = Commit.UPDATE_THREADS > 0
+                ? newWorkerPool(Commit.UPDATE_THREADS, "DocumentNodeStore commit worker")
+                : null;
+        this.lastRevExecutor = UnsavedModifications.PERSIST_THREADS > 1
+                ? newWorkerPool(UnsavedModifications.PERSIST_THREADS,
+                        "DocumentNodeStore lastRev writer")
+                : null;
+        this.prefetchExecutor = DocumentNodeState.PREFETCH_THREADS > 0
+                ? newWorkerPool(DocumentNodeState.PREFETCH_THREADS,
+                        "DocumentNodeState child prefetcher")
+                : null;
         this.clock = builder.getClock();
         int cid = builder.getClusterId();
         cid = Integer.getInteger("oak.documentMK.clusterId", cid);
@@ -457,6 +565,12 @@ public final class DocumentNodeStore
                 "DocumentNodeStore background update thread");
         backgroundUpdateThread.setDaemon(true);
         checkLastRevRecovery();
+        // the first journal entry follows the (possibly recovered)
+        // _lastRev of this cluster node
+        NodeDocument rootDoc = store.find(NODES, Utils.getIdFromPath("/"));
+        if (rootDoc != null && lastJournalRevision == null) {
+            lastJournalRevision = rootDoc.getLastRev().get(clusterId);
+        }
         // Renew the lease because it may have been stale
         renewClusterIdLease();
 
@@ -514,6 +628,16 @@ public final class DocumentNodeStore
             }
         }
 
+        if (commitExecutor != null) {
+            commitExecutor.shutdown();
+        }
+        if (lastRevExecutor != null) {
+            lastRevExecutor.shutdown();
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+        }
+
         // now mark this cluster node as inactive by
         // disposing the clusterNodeInfo
         if (clusterNodeInfo != null) {
@@ -534,6 +658,53 @@ public final class DocumentNodeStore
         LOG.info("Disposed DocumentNodeStore with clusterNodeId: {}", clusterId);
     }
 
+    /**
+     * @return the pool for updating the documents of a commit concurrently,
+     *          or {@code null} if they are updated one by one.
+     */
+    @CheckForNull
+    ExecutorService getCommitExecutor() {
+        return commitExecutor;
+    }
+
+    /**
+     * @return the pool for writing the _lastRev of nodes concurrently, or
+     *          {@code null} if they are written one after another.
+     */
+    @CheckForNull
+    ExecutorService getLastRevExecutor() {
+        return lastRevExecutor;
+    }
+
+    /**
+     * @return the pool for reading child nodes ahead of iterators, or
+     *          {@code null} if they are not read ahead.
+     */
+    @CheckForNull
+    ExecutorService getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * Creates a pool of daemon threads owned by this store, which is shut
+     * down when the store is disposed.
+     *
+     * @param threads the number of threads.
+     * @param name the name prefix of the threads.
+     * @return the pool.
+     */
+    private static ExecutorService newWorkerPool(int threads, final String name) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+            @Override
+            public Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable, name + " " + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
     Revision setHeadRevision(@Nonnull Revision newHead) {
         checkArgument(!newHead.isBranch());
         Revision previous = headRevision;
@@ -941,18 +1112,32 @@ public final class DocumentNodeStore
             docChildrenCache.put(key, clone);
             c = clone;
         }
-        Iterable<NodeDocument> head = filter(transform(c.childNames,
-                new Function<String, NodeDocument>() {
-            @Override
-            public NodeDocument apply(String name) {
-                String p = concat(path, name);
-                NodeDocument doc = store.find(Collection.NODES, Utils.getIdFromPath(p));
-                if (doc == null) {
-                    docChildrenCache.invalidate(key);
+        // read the child documents up to the limit with a single call to
+        // the store and only read the remaining ones individually if some
+        // of the documents were concurrently removed
+        int numNames = Math.min(limit, c.childNames.size());
+        List<String> ids = Lists.newArrayListWithCapacity(numNames);
+        for (String name : c.childNames.subList(0, numNames)) {
+            ids.add(Utils.getIdFromPath(concat(path, name)));
+        }
+        List<NodeDocument> docs = store.find(Collection.NODES, ids);
+        Iterable<NodeDocument> head = docs;
+        if (docs.size() < ids.size()) {
+            docChildrenCache.invalidate(key);
+            head = Iterables.concat(docs, filter(transform(
+                    c.childNames.subList(numNames, c.childNames.size()),
+                    new Function<String, NodeDocument>() {
+                @Override
+                public NodeDocument apply(String name) {
+                    String p = concat(path, name);
+                    NodeDocument doc = store.find(Collection.NODES, Utils.getIdFromPath(p));
+                    if (doc == null) {
+                        docChildrenCache.invalidate(key);
+                    }
+                    return doc;
                 }
-                return doc;
-            }
-        }), Predicates.notNull());
+            }), Predicates.notNull()));
+        }
         Iterable<NodeDocument> it;
         if (c.isComplete) {
             it = head;
@@ -1010,6 +1195,39 @@ public final class DocumentNodeStore
         });
     }
 
+    /**
+     * Reads up to {@code limit} child nodes, starting at the given
+     * {@code name} (exclusive). Unlike {@link #getChildNodes}, the child
+     * nodes are read right away and the documents of child nodes not in the
+     * node cache are read with a single call to the document store.
+     *
+     * @param parent the parent node.
+     * @param name the name of the lower bound child node (exclusive) or
+     *             {@code null}, if the method should start with the first known
+     *             child node.
+     * @param limit the maximum number of child nodes to return.
+     * @return the child nodes.
+     */
+    @Nonnull
+    List<DocumentNodeState> readChildNodes(@Nonnull DocumentNodeState parent,
+                                           @Nullable String name,
+                                           int limit) {
+        if (checkNotNull(parent).hasNoChildren()) {
+            return Collections.emptyList();
+        }
+        final long start = PERFLOG.start();
+        List<String> paths = Lists.newArrayList();
+        for (String c : getChildren(parent, name, limit).children) {
+            paths.add(concat(parent.getPath(), c));
+        }
+        int read = prefetchNodes(paths, parent.getLastRevision());
+        List<DocumentNodeState> children = Lists.newArrayList(
+                getChildNodes(parent, name, limit));
+        PERFLOG.end(start, 1, "readChildNodes: path={}, name={}, read {} of {} documents",
+                parent.getPath(), name, read, children.size());
+        return children;
+    }
+
     @CheckForNull
     DocumentNodeState readNode(String path, Revision readRevision) {
         final long start = PERFLOG.start();
@@ -1029,6 +1247,24 @@ public final class DocumentNodeStore
         return result;
     }
 
+    /**
+     * Records a node changed by a commit of this cluster node for the
+     * journal. The changes of a branch commit are kept with the branch
+     * until it is merged, as they only become visible with the merge.
+     *
+     * @param rev the commit revision
+     * @param path the path of the changed node
+     * @param isBranchCommit whether this is a commit to a branch
+     */
+    void trackJournalChange(Revision rev, String path,
+                            boolean isBranchCommit) {
+        if (isBranchCommit && !disableBranches) {
+            branches.getBranchCommit(rev.asBranchRevision()).trackChange(path);
+        } else {
+            journalChanges.add(path);
+        }
+    }
+
     /**
      * Apply the changes of a node to the cache.
      *
@@ -1292,6 +1528,7 @@ public final class DocumentNodeStore
                 if (store.findAndUpdate(Collection.NODES, op) != null) {
                     // remove from branchCommits map after successful update
                     b.applyTo(getPendingModifications(), commit.getRevision());
+                    addAll(journalChanges, b.getChangedPaths());
                     getBranches().remove(b);
                 } else {
                     throw new CommitFailedException(MERGE, 2,
@@ -1601,12 +1838,16 @@ public final class DocumentNodeStore
         // write back pending updates to _lastRev
         backgroundWrite();
         long writeTime = clock.getTime() - time;
-        String msg = "Background operations stats (clean:{}, split:{}, write:{})";
+        time = clock.getTime();
+        // remove old journal entries of this cluster node
+        journalGC();
+        long journalGCTime = clock.getTime() - time;
+        String msg = "Background operations stats (clean:{}, split:{}, write:{}, journalGC:{})";
         if (clock.getTime() - start > TimeUnit.SECONDS.toMillis(10)) {
             // log as info if it took more than 10 seconds
-            LOG.info(msg, cleanTime, splitTime, writeTime);
+            LOG.info(msg, cleanTime, splitTime, writeTime, journalGCTime);
         } else {
-            LOG.debug(msg, cleanTime, splitTime, writeTime);
+            LOG.debug(msg, cleanTime, splitTime, writeTime, journalGCTime);
         }
     }
 
@@ -1716,6 +1957,9 @@ public final class DocumentNodeStore
         Revision otherSeen = Revision.newRevision(0);
 
         Map<Revision, Revision> externalChanges = Maps.newHashMap();
+        // paths changed by other cluster nodes according to the journal,
+        // or null if the changes are unknown
+        Set<String> changedPaths = Sets.newHashSet();
         for (Map.Entry<Integer, Revision> e : lastRevMap.entrySet()) {
             int machineId = e.getKey();
             if (machineId == clusterId) {
@@ -1734,6 +1978,9 @@ public final class DocumentNodeStore
                 if (last != null
                         || r.getTimestamp() > revisionPurgeMillis()) {
                     externalChanges.put(r, otherSeen);
+                    if (changedPaths != null) {
+                        changedPaths = readJournal(last, r, changedPaths);
+                    }
                 }
             }
         }
@@ -1743,12 +1990,16 @@ public final class DocumentNodeStore
 
         if (!externalChanges.isEmpty()) {
             // invalidate caches
-            stats.cacheStats = store.invalidateCache();
+            if (changedPaths != null) {
+                stats.cacheStats = invalidateCaches(changedPaths);
+            } else {
+                stats.cacheStats = store.invalidateCache();
+                docChildrenCache.invalidateAll();
+            }
             stats.cacheInvalidationTime = clock.getTime() - time;
             time = clock.getTime();
-            // TODO only invalidate affected items
-            docChildrenCache.invalidateAll();
 
+            Revision oldHead, newHead;
             // make sure update to revision comparator is atomic
             // and no local commit is in progress
             backgroundOperationLock.writeLock().lock();
@@ -1761,13 +2012,28 @@ public final class DocumentNodeStore
                     revisionComparator.add(e.getKey(), e.getValue());
                 }
                 // the new head revision is after other revisions
-                setHeadRevision(newRevision());
+                newHead = newRevision();
+                oldHead = setHeadRevision(newHead);
                 if (dispatchChange) {
                     dispatcher.contentChanged(getRoot(), null);
                 }
             } finally {
                 backgroundOperationLock.writeLock().unlock();
             }
+            if (dispatchChange && changedPaths != null
+                    && changedPaths.size() <= EXTERNAL_DIFF_CACHE_LIMIT) {
+                // done outside of the lock and off the background read
+                // thread, diffs not yet in the cache are computed as usual
+                final Revision from = oldHead;
+                final Revision to = newHead;
+                final Set<String> paths = changedPaths;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        populateDiffCache(from, to, paths);
+                    }
+                });
+            }
             stats.dispatchChanges = clock.getTime() - time;
             time = clock.getTime();
         }
@@ -1777,6 +2043,175 @@ public final class DocumentNodeStore
         return stats;
     }
 
+    /**
+     * Adds the paths changed by another cluster node between the two given
+     * revisions to {@code changedPaths}.
+     *
+     * @param last the last known _lastRev of the cluster node (exclusive),
+     *             or {@code null} if not known.
+     * @param r the current _lastRev of the cluster node (inclusive).
+     * @param changedPaths the changed paths collected so far.
+     * @return {@code changedPaths} or {@code null} if the changes between
+     *          the two revisions are not known to be fully recorded in the
+     *          journal.
+     */
+    @CheckForNull
+    private Set<String> readJournal(@Nullable Revision last,
+                                    @Nonnull Revision r,
+                                    @Nonnull Set<String> changedPaths) {
+        if (last == null) {
+            return null;
+        }
+        if (last.getTimestamp() < clock.getTime() - JOURNAL_GC_MAX_AGE_MILLIS / 2) {
+            // entries after the last known revision may already have been
+            // garbage collected. Half the max age leaves ample room for
+            // clock differences between cluster nodes
+            return null;
+        }
+        List<JournalEntry> entries;
+        try {
+            entries = JournalEntry.read(store, last, r);
+        } catch (RuntimeException e) {
+            // fall back to invalidating all cached documents
+            LOG.warn("Unable to read journal from {} to {}", last, r, e);
+            return null;
+        }
+        // the last entry must be the one written right before the
+        // _lastRev, otherwise the cluster node did not write a journal
+        // (e.g. the _lastRev was written by the recovery agent)
+        if (entries.isEmpty() || !JournalEntry.asId(r).equals(
+                entries.get(entries.size() - 1).getId())) {
+            LOG.debug("Journal from {} to {} is incomplete", last, r);
+            return null;
+        }
+        // each entry must follow the previous one, otherwise _lastRevs
+        // were written without a journal entry in between (e.g. by the
+        // recovery agent) or the cluster node did not record the chain
+        Revision previous = last;
+        for (JournalEntry entry : entries) {
+            Set<String> changes = entry.getChanges();
+            if (changes == null) {
+                return null;
+            }
+            if (!previous.equals(entry.getPrevious())) {
+                LOG.debug("Journal from {} to {} has a gap after {}",
+                        last, r, previous);
+                return null;
+            }
+            changedPaths.addAll(changes);
+            previous = entry.getRevision();
+        }
+        return changedPaths;
+    }
+
+    /**
+     * Adds the changes between two head revisions to the diff cache, based
+     * on the paths changed by other cluster nodes according to the journal.
+     * For each changed node present in both revisions, the cache entry lists
+     * its changed, added and removed child nodes. Whether a child node was
+     * added or removed is not recorded in the journal and is determined by
+     * reading the child node at both revisions, so each changed node is read
+     * at most twice.
+     *
+     * @param from the old head revision.
+     * @param to the new head revision.
+     * @param changedPaths the paths changed between the two revisions,
+     *                     including all ancestors of changed nodes.
+     */
+    private void populateDiffCache(@Nonnull Revision from,
+                                   @Nonnull Revision to,
+                                   @Nonnull Set<String> changedPaths) {
+        if (isDisposed.get()) {
+            return;
+        }
+        final long start = PERFLOG.start();
+        Map<String, List<String>> changedChildren = Maps.newHashMap();
+        for (String path : changedPaths) {
+            if (!changedChildren.containsKey(path)) {
+                changedChildren.put(path, new ArrayList<String>());
+            }
+            if (PathUtils.denotesRoot(path)) {
+                continue;
+            }
+            String parent = PathUtils.getParentPath(path);
+            List<String> children = changedChildren.get(parent);
+            if (children == null) {
+                children = new ArrayList<String>();
+                changedChildren.put(parent, children);
+            }
+            children.add(path);
+        }
+        Map<String, Boolean> existsBefore = Maps.newHashMap();
+        Map<String, Boolean> existsAfter = Maps.newHashMap();
+        DiffCache.Entry entry = diffCache.newEntry(from, to);
+        try {
+            for (Map.Entry<String, List<String>> e : changedChildren.entrySet()) {
+                String path = e.getKey();
+                if (!exists(path, from, existsBefore)
+                        || !exists(path, to, existsAfter)) {
+                    // a diff never descends into this node
+                    continue;
+                }
+                JsopWriter w = new JsopStream();
+                for (String p : e.getValue()) {
+                    String name = PathUtils.getName(p);
+                    boolean before = exists(p, from, existsBefore);
+                    boolean after = exists(p, to, existsAfter);
+                    if (before && after) {
+                        w.tag('^').key(name).object().endObject().newline();
+                    } else if (after) {
+                        w.tag('+').key(name).object().endObject().newline();
+                    } else if (before) {
+                        w.tag('-').value(name).newline();
+                    }
+                }
+                // every entry is complete on its own
+                entry.append(path, w.toString());
+            }
+            entry.done();
+        } catch (RuntimeException e) {
+            // a diff not in the cache is computed when needed
+            LOG.warn("Unable to populate diff cache from {} to {}", from, to, e);
+        }
+        PERFLOG.end(start, 1, "populateDiffCache: {} paths [{}] -> [{}]",
+                changedPaths.size(), from, to);
+    }
+
+    private boolean exists(String path, Revision rev, Map<String, Boolean> known) {
+        Boolean exists = known.get(path);
+        if (exists == null) {
+            exists = getNode(path, rev) != null;
+            known.put(path, exists);
+        }
+        return exists;
+    }
+
+    /**
+     * Invalidates the cached documents and document children of the given
+     * paths. Cached node states and node children don't need to be
+     * invalidated, because they are keyed by revision.
+     *
+     * @param changedPaths the paths of the changed nodes.
+     * @return invalidation statistics.
+     */
+    @Nonnull
+    private CacheInvalidationStats invalidateCaches(@Nonnull Set<String> changedPaths) {
+        // ancestors of changed nodes are changed as well and always
+        // contained in the set, so the doc children entries of all
+        // parents of added nodes are invalidated here
+        for (String path : changedPaths) {
+            store.invalidateCache(NODES, getIdFromPath(path));
+            docChildrenCache.invalidate(new StringValue(path));
+        }
+        final int size = changedPaths.size();
+        return new CacheInvalidationStats() {
+            @Override
+            public String summaryReport() {
+                return "Invalidated " + size + " paths from journal";
+            }
+        };
+    }
+
     private static class BackgroundReadStats {
         CacheInvalidationStats cacheStats;
         long readHead;
@@ -1824,6 +2259,28 @@ public final class DocumentNodeStore
         }
     }
     
+    /**
+     * Removes the journal entries of this cluster node older than
+     * {@link #JOURNAL_GC_MAX_AGE_MILLIS}, at most once per
+     * {@link #JOURNAL_GC_INTERVAL_MILLIS}.
+     */
+    private void journalGC() {
+        long now = clock.getTime();
+        if (now - lastJournalGC < JOURNAL_GC_INTERVAL_MILLIS) {
+            return;
+        }
+        lastJournalGC = now;
+        try {
+            int removed = JournalEntry.gc(store, clusterId,
+                    now - JOURNAL_GC_MAX_AGE_MILLIS);
+            if (removed > 0) {
+                LOG.debug("Removed {} journal entries", removed);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Journal garbage collection failed", e);
+        }
+    }
+
     private void cleanCollisions() {
         String id = Utils.getIdFromPath("/");
         NodeDocument root = store.find(NODES, id);
@@ -1877,7 +2334,8 @@ public final class DocumentNodeStore
     }
 
     void backgroundWrite() {
-        unsavedLastRevisions.persist(this, backgroundOperationLock.writeLock());
+        unsavedLastRevisions.persist(this, journalSnapshot,
+                backgroundOperationLock.writeLock());
     }
 
     //-----------------------------< internal >---------------------------------
@@ -2094,6 +2552,7 @@ public final class DocumentNodeStore
                 }
             }
         }
+        prefetchNodes(paths, fromRev, toRev);
         for (String p : paths) {
             DocumentNodeState fromNode = getNode(p, fromRev);
             DocumentNodeState toNode = getNode(p, toRev);
@@ -2146,6 +2605,13 @@ public final class DocumentNodeStore
 
     private void diffFewChildren(JsopWriter w, String parentPath, DocumentNodeState.Children fromChildren, Revision fromRev, DocumentNodeState.Children toChildren, Revision toRev) {
         Set<String> childrenSet = Sets.newHashSet(toChildren.children);
+        List<String> common = Lists.newArrayList();
+        for (String n : fromChildren.children) {
+            if (childrenSet.contains(n)) {
+                common.add(concat(parentPath, n));
+            }
+        }
+        prefetchNodes(common, fromRev, toRev);
         for (String n : fromChildren.children) {
             if (!childrenSet.contains(n)) {
                 w.tag('-').value(n).newline();
@@ -2172,6 +2638,34 @@ public final class DocumentNodeStore
         }
     }
 
+    /**
+     * Reads the documents of the nodes with the given paths with a single
+     * call to the {@link DocumentStore}, unless the node states are already
+     * cached for all the given revisions. This turns the subsequent reads
+     * of the node states into document cache hits.
+     *
+     * @param paths the paths of the nodes.
+     * @param revisions the revisions the nodes will be read at.
+     * @return the number of documents read.
+     */
+    private int prefetchNodes(@Nonnull Iterable<String> paths,
+                              @Nonnull Revision... revisions) {
+        List<String> ids = Lists.newArrayList();
+        for (String p : paths) {
+            for (Revision r : revisions) {
+                if (nodeCache.getIfPresent(new PathRev(p, r)) == null) {
+                    ids.add(Utils.getIdFromPath(p));
+                    break;
+                }
+            }
+        }
+        if (ids.size() > 1) {
+            store.find(Collection.NODES, ids);
+            return ids.size();
+        }
+        return 0;
+    }
+
     private static PathRev childNodeCacheKey(@Nonnull String path,
                                              @Nonnull Revision readRevision,
                                              @Nullable String name) {
@@ -2339,6 +2833,38 @@ public final class DocumentNodeStore
             }
             return sdf.format(r.getTimestamp());
         }
+
+        @Override
+        public int getCommitQueueSize() {
+            return commitQueue.getSize();
+        }
+
+        @Override
+        public long getCommitQueueWaitCount() {
+            return commitQueue.getWaitCount();
+        }
+
+        @Override
+        public long getCommitQueueWaitTime() {
+            return commitQueue.getWaitTime();
+        }
+
+        @Override
+        public double getCommitQueueAverageBatchSize() {
+            return commitQueue.getAverageBatchSize();
+        }
+
+        @Override
+        public int getPersistentCacheWriteQueueSize() {
+            PersistentCache pc = persistentCache;
+            return pc == null ? 0 : pc.getWriteQueueSize();
+        }
+
+        @Override
+        public long getPersistentCacheDroppedWriteCount() {
+            PersistentCache pc = persistentCache;
+            return pc == null ? 0 : pc.getDroppedWriteCount();
+        }
     }
 
     static abstract class NodeStoreTask implements Runnable {
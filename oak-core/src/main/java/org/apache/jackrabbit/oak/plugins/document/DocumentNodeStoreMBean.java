@@ -40,4 +40,16 @@ public interface DocumentNodeStoreMBean {
     String[] getLastKnownRevisions();
 
     String formatRevision(@Name("revision") String rev, @Name("UTC")boolean utc);
+
+    int getCommitQueueSize();
+
+    long getCommitQueueWaitCount();
+
+    long getCommitQueueWaitTime();
+
+    double getCommitQueueAverageBatchSize();
+
+    int getPersistentCacheWriteQueueSize();
+
+    long getPersistentCacheDroppedWriteCount();
 }
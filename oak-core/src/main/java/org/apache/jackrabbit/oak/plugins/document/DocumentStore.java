@@ -80,6 +80,25 @@ public interface DocumentStore {
     @CheckForNull
     <T extends Document> T find(Collection<T> collection, String key, int maxCacheAge);
 
+    /**
+     * Get the documents with the given {@code keys}. Like
+     * {@link #find(Collection, String)}, the implementation may serve the
+     * documents from a cache. The documents that are not cached are read from
+     * the backend with as few requests as possible, which makes this method
+     * considerably faster than individual calls to
+     * {@link #find(Collection, String)} when many documents are needed.
+     * <p>
+     * The returned documents are in the order of the given keys and are
+     * immutable. Keys of documents that do not exist are ignored.
+     *
+     * @param <T> the document type
+     * @param collection the collection
+     * @param keys the keys
+     * @return the documents (possibly empty)
+     */
+    @Nonnull
+    <T extends Document> List<T> find(Collection<T> collection, List<String> keys);
+
     /**
      * Get a list of documents where the key is greater than a start value and
      * less than an end value.
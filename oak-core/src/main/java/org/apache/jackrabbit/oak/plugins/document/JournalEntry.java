@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.document;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.jackrabbit.oak.commons.json.JsopBuilder;
+import org.apache.jackrabbit.oak.commons.json.JsopReader;
+import org.apache.jackrabbit.oak.commons.json.JsopTokenizer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.apache.jackrabbit.oak.plugins.document.Collection.JOURNAL;
+
+/**
+ * A document in the {@link Collection#JOURNAL journal} collection. A cluster
+ * node writes one entry on every background write, with the paths of all
+ * nodes it changed since its previous entry. The entry is written before the
+ * {@code _lastRev} of the root document is updated, so that other cluster
+ * nodes seeing the new {@code _lastRev} find the changes leading up to it
+ * in the journal.
+ * <p>
+ * The id of an entry is derived from the {@code _lastRev} it precedes, such
+ * that the entries of a cluster node sort by revision. Each entry also
+ * refers to the {@code _lastRev} preceding it, which lets readers verify
+ * that no changes are missing from the journal. Each cluster node
+ * periodically removes its own entries once they are older than
+ * {@link DocumentNodeStore#JOURNAL_GC_MAX_AGE_MILLIS}.
+ */
+public final class JournalEntry extends Document {
+
+    /**
+     * The changed paths as a JSON array of strings. Not set if there were
+     * more than {@link #MAX_CHANGED_PATHS} changes.
+     */
+    static final String CHANGES = "_c";
+
+    /**
+     * The revision of the previous entry of the cluster node, or the
+     * {@code _lastRev} of the cluster node when it was started. Not set
+     * if the cluster node had not written a {@code _lastRev} before.
+     */
+    static final String PREVIOUS = "_p";
+
+    /**
+     * The maximum number of paths recorded in a single entry. Readers of an
+     * entry without paths need to assume that anything may have changed.
+     */
+    static final int MAX_CHANGED_PATHS = Integer.getInteger(
+            "oak.documentMK.journalMaxPaths", 20000);
+
+    /**
+     * The number of entries removed at once by {@link #gc}.
+     */
+    private static final int GC_BATCH_SIZE = 1000;
+
+    /**
+     * Returns the id of the journal entry for the given revision.
+     *
+     * @param revision the revision.
+     * @return the id.
+     */
+    @Nonnull
+    static String asId(@Nonnull Revision revision) {
+        return String.format("%d_%016x_%08x", revision.getClusterId(),
+                revision.getTimestamp(), revision.getCounter());
+    }
+
+    /**
+     * Creates the operation that adds a new journal entry.
+     *
+     * @param revision the most recent revision of the changes.
+     * @param previous the revision of the previous entry, or {@code null}
+     *                 if not known.
+     * @param paths the changed paths.
+     * @return the update operation.
+     */
+    @Nonnull
+    static UpdateOp newEntry(@Nonnull Revision revision,
+                             @Nullable Revision previous,
+                             @Nonnull java.util.Collection<String> paths) {
+        UpdateOp op = new UpdateOp(asId(revision), true);
+        if (previous != null) {
+            op.set(PREVIOUS, previous.toString());
+        }
+        if (paths.size() <= MAX_CHANGED_PATHS) {
+            JsopBuilder json = new JsopBuilder();
+            json.array();
+            for (String p : paths) {
+                json.value(p);
+            }
+            json.endArray();
+            op.set(CHANGES, json.toString());
+        }
+        return op;
+    }
+
+    /**
+     * Reads the journal entries a cluster node wrote after the {@code from}
+     * revision, up to and including the {@code to} revision.
+     *
+     * @param store the document store.
+     * @param from the lower bound (exclusive).
+     * @param to the upper bound (inclusive).
+     * @return the journal entries, oldest first.
+     * @throws IllegalArgumentException if the revisions are from different
+     *          cluster nodes.
+     */
+    @Nonnull
+    static List<JournalEntry> read(@Nonnull DocumentStore store,
+                                   @Nonnull Revision from,
+                                   @Nonnull Revision to) {
+        checkArgument(from.getClusterId() == to.getClusterId(),
+                "Revisions from different cluster nodes: %s, %s", from, to);
+        Revision after = new Revision(to.getTimestamp(),
+                to.getCounter() + 1, to.getClusterId());
+        return store.query(JOURNAL, asId(from), asId(after), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes the journal entries a cluster node wrote for revisions older
+     * than the given time.
+     *
+     * @param store the document store.
+     * @param clusterId the id of the cluster node.
+     * @param olderThan the time in milliseconds (exclusive).
+     * @return the number of removed entries.
+     */
+    static int gc(@Nonnull DocumentStore store, int clusterId, long olderThan) {
+        String from = asId(new Revision(0, 0, clusterId));
+        String to = asId(new Revision(olderThan, 0, clusterId));
+        int removed = 0;
+        List<JournalEntry> entries;
+        do {
+            entries = store.query(JOURNAL, from, to, GC_BATCH_SIZE);
+            List<String> ids = Lists.newArrayList();
+            for (JournalEntry entry : entries) {
+                ids.add(entry.getId());
+            }
+            if (!ids.isEmpty()) {
+                store.remove(JOURNAL, ids);
+                removed += ids.size();
+            }
+        } while (entries.size() == GC_BATCH_SIZE);
+        return removed;
+    }
+
+    /**
+     * Returns the revision of this entry, which is the {@code _lastRev} of
+     * the cluster node written right after it.
+     *
+     * @return the revision.
+     */
+    @Nonnull
+    Revision getRevision() {
+        String[] parts = getId().split("_");
+        return new Revision(Long.parseLong(parts[1], 16),
+                Integer.parseInt(parts[2], 16), Integer.parseInt(parts[0]));
+    }
+
+    /**
+     * Returns the revision this entry follows.
+     *
+     * @return the revision of the previous entry or {@code null} if not
+     *          recorded.
+     */
+    @CheckForNull
+    Revision getPrevious() {
+        String previous = (String) get(PREVIOUS);
+        return previous != null ? Revision.fromString(previous) : null;
+    }
+
+    /**
+     * Returns the paths changed by this entry.
+     *
+     * @return the changed paths or {@code null} if they were not recorded.
+     */
+    @CheckForNull
+    Set<String> getChanges() {
+        String changes = (String) get(CHANGES);
+        if (changes == null) {
+            return null;
+        }
+        Set<String> paths = Sets.newHashSet();
+        JsopTokenizer json = new JsopTokenizer(changes);
+        json.read('[');
+        if (!json.matches(']')) {
+            do {
+                paths.add(json.readString());
+            } while (json.matches(','));
+            json.read(']');
+        }
+        json.read(JsopReader.END);
+        return paths;
+    }
+
+}
@@ -435,7 +435,10 @@ public final class NodeDocument extends Document implements CachedNodeDocument{
 
     /**
      * Mark this instance as up-to-date (matches the state in persistence
-     * store).
+     * store). A check time of zero marks the instance as not checked, for
+     * example after it was read from the persistent cache. A document store
+     * must check such an instance against the persistence store before it
+     * is used.
      *
      * @param checkTime time at which the check was performed
      */
@@ -466,6 +469,25 @@ public final class NodeDocument extends Document implements CachedNodeDocument{
         return lastCheckTime.get();
     }
 
+    /**
+     * Replaces the revision maps of this document with a
+     * {@link CompactRevisionMap} when the document is sealed. Sealed
+     * documents are the ones kept in the document cache.
+     */
+    @Nonnull
+    @Override
+    protected Map<?, ?> transformAndSeal(@Nonnull Map<Object, Object> map,
+                                         @Nullable String key,
+                                         int level) {
+        if (level == 1) {
+            Map<?, ?> compact = CompactRevisionMap.compact(map);
+            if (compact != null) {
+                return compact;
+            }
+        }
+        return super.transformAndSeal(map, key, level);
+    }
+
     public boolean hasBinary() {
         Number flag = (Number) get(HAS_BINARY_FLAG);
         if(flag == null){
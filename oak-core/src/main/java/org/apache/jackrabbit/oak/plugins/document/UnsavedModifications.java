@@ -21,7 +21,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 
 import javax.annotation.CheckForNull;
@@ -32,12 +36,13 @@ import org.apache.jackrabbit.oak.plugins.document.util.Utils;
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static org.apache.jackrabbit.oak.plugins.document.Collection.NODES;
 
 /**
@@ -51,6 +56,15 @@ class UnsavedModifications {
      */
     static final int BACKGROUND_MULTI_UPDATE_LIMIT = 10000;
 
+    /**
+     * The maximum number of multi updates for paths at the same depth that
+     * run concurrently, on threads owned by the {@link DocumentNodeStore}.
+     * One or less means they run one after another.
+     */
+    static final int PERSIST_THREADS = Integer.getInteger(
+            "oak.documentMK.lastRevThreads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     private final ConcurrentMap<String, Revision> map = MapFactory.getInstance().create();
 
     /**
@@ -134,67 +148,73 @@ class UnsavedModifications {
      */
     public void persist(@Nonnull DocumentNodeStore store,
                         @Nonnull Lock lock) {
+        persist(store, Snapshot.IGNORE, lock);
+    }
+
+    /**
+     * Persist the pending changes to _lastRev to the given store. This method
+     * will persist a snapshot of the pending revisions by acquiring the passed
+     * lock for a short period of time. The given {@code snapshot} callback is
+     * notified when the snapshot is taken and before the first _lastRev is
+     * written.
+     *
+     * @param store the document node store.
+     * @param snapshot callback for the snapshot of the pending revisions.
+     * @param lock the lock to acquire to get a consistent snapshot of the
+     *             revisions to write back.
+     */
+    public void persist(@Nonnull DocumentNodeStore store,
+                        @Nonnull Snapshot snapshot,
+                        @Nonnull Lock lock) {
         if (map.size() == 0) {
             return;
         }
         checkNotNull(store);
+        checkNotNull(snapshot);
         checkNotNull(lock);
 
         // get a copy of the map while holding the lock
         lock.lock();
         Map<String, Revision> pending;
+        Revision mostRecent;
         try {
             pending = Maps.newTreeMap(PathComparator.INSTANCE);
             pending.putAll(map);
+            mostRecent = getMostRecentRevision(pending);
+            if (mostRecent != null) {
+                snapshot.acquiring(mostRecent);
+            }
         } finally {
             lock.unlock();
         }
-        UpdateOp updateOp = null;
-        Revision lastRev = null;
-        PeekingIterator<String> paths = Iterators.peekingIterator(
-                pending.keySet().iterator());
-        int i = 0;
-        ArrayList<String> pathList = new ArrayList<String>();
-        while (paths.hasNext()) {
-            String p = paths.peek();
-            Revision r = pending.get(p);
-
-            int size = pathList.size();
-            if (updateOp == null) {
-                // create UpdateOp
-                Commit commit = new Commit(store, r, null, null);
-                updateOp = commit.getUpdateOperationForNode(p);
-                NodeDocument.setLastRev(updateOp, r);
-                lastRev = r;
-                pathList.add(p);
-                paths.next();
-                i++;
-            } else if (r.equals(lastRev)) {
-                // use multi update when possible
-                pathList.add(p);
-                paths.next();
-                i++;
-            }
-            // call update if any of the following is true:
-            // - this is the second-to-last or last path (update last path, the
-            //   root document, individually)
-            // - revision is not equal to last revision (size of ids didn't change)
-            // - the update limit is reached
-            if (i + 2 > pending.size()
-                    || size == pathList.size()
-                    || pathList.size() >= BACKGROUND_MULTI_UPDATE_LIMIT) {
-                List<String> ids = new ArrayList<String>();
-                for (String path : pathList) {
-                    ids.add(Utils.getIdFromPath(path));
-                }
-                store.getDocumentStore().update(NODES, ids, updateOp);
-                for (String path : pathList) {
-                    map.remove(path, lastRev);
+        if (mostRecent == null) {
+            return;
+        }
+        snapshot.acquired(mostRecent);
+        // the pending paths are sorted deepest first. a depth is only
+        // written when all deeper paths were written, which means the
+        // root document is always written last
+        int depth = -1;
+        Map<Revision, List<String>> level = null;
+        for (Map.Entry<String, Revision> entry : pending.entrySet()) {
+            String p = entry.getKey();
+            int d = Utils.pathDepth(p);
+            if (d != depth) {
+                if (level != null) {
+                    persist(store, level);
                 }
-                pathList.clear();
-                updateOp = null;
-                lastRev = null;
+                level = Maps.newLinkedHashMap();
+                depth = d;
             }
+            List<String> paths = level.get(entry.getValue());
+            if (paths == null) {
+                paths = new ArrayList<String>();
+                level.put(entry.getValue(), paths);
+            }
+            paths.add(p);
+        }
+        if (level != null) {
+            persist(store, level);
         }
     }
 
@@ -202,4 +222,131 @@ class UnsavedModifications {
     public String toString() {
         return map.toString();
     }
+
+    /**
+     * Callback for the snapshot of the pending revisions taken by
+     * {@link #persist(DocumentNodeStore, Snapshot, Lock)}.
+     */
+    interface Snapshot {
+
+        Snapshot IGNORE = new Snapshot() {
+            @Override
+            public void acquiring(@Nonnull Revision mostRecent) {
+            }
+
+            @Override
+            public void acquired(@Nonnull Revision mostRecent) {
+            }
+        };
+
+        /**
+         * Called while the snapshot is taken and the lock is held. This
+         * method must return quickly.
+         *
+         * @param mostRecent the most recent revision in the snapshot, which
+         *                   is written as the _lastRev of the root document.
+         */
+        void acquiring(@Nonnull Revision mostRecent);
+
+        /**
+         * Called after the lock was released and before any of the pending
+         * revisions is written. An exception thrown by this method aborts
+         * the persist operation.
+         *
+         * @param mostRecent the most recent revision in the snapshot.
+         */
+        void acquired(@Nonnull Revision mostRecent);
+    }
+
+    //-----------------------------< internal >---------------------------------
+
+    /**
+     * Writes the _lastRev of paths at the same depth. The paths are grouped
+     * by revision and written with multi updates. Up to
+     * {@link #PERSIST_THREADS} updates run concurrently. This method returns
+     * when all updates completed, and throws the first failure, if any.
+     *
+     * @param store the document node store.
+     * @param level the paths by revision.
+     */
+    private void persist(@Nonnull final DocumentNodeStore store,
+                         @Nonnull Map<Revision, List<String>> level) {
+        List<Callable<Void>> updates = new ArrayList<Callable<Void>>();
+        for (Map.Entry<Revision, List<String>> entry : level.entrySet()) {
+            final Revision r = entry.getKey();
+            for (final List<String> paths : Lists.partition(
+                    entry.getValue(), BACKGROUND_MULTI_UPDATE_LIMIT)) {
+                updates.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        update(store, r, paths);
+                        return null;
+                    }
+                });
+            }
+        }
+        ExecutorService executor = store.getLastRevExecutor();
+        if (executor == null || updates.size() < 2) {
+            for (Callable<Void> update : updates) {
+                try {
+                    update.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new DocumentStoreException(e);
+                }
+            }
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(updates.size());
+        for (Callable<Void> update : updates) {
+            futures.add(executor.submit(update));
+        }
+        Throwable failure = null;
+        for (Future<Void> f : futures) {
+            try {
+                getUninterruptibly(f);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure != null) {
+            throw Throwables.propagate(failure);
+        }
+    }
+
+    /**
+     * Sets the _lastRev of the given paths to {@code r} and removes the
+     * written modifications, unless they changed in the meantime.
+     */
+    private void update(@Nonnull DocumentNodeStore store,
+                        @Nonnull Revision r,
+                        @Nonnull List<String> paths) {
+        Commit commit = new Commit(store, r, null, null);
+        UpdateOp updateOp = commit.getUpdateOperationForNode(paths.get(0));
+        NodeDocument.setLastRev(updateOp, r);
+        List<String> ids = new ArrayList<String>(paths.size());
+        for (String path : paths) {
+            ids.add(Utils.getIdFromPath(path));
+        }
+        store.getDocumentStore().update(NODES, ids, updateOp);
+        for (String path : paths) {
+            map.remove(path, r);
+        }
+    }
+
+    @CheckForNull
+    private static Revision getMostRecentRevision(Map<String, Revision> pending) {
+        Revision mostRecent = pending.get("/");
+        if (mostRecent == null) {
+            for (Revision r : pending.values()) {
+                if (mostRecent == null || r.compareRevisionTime(mostRecent) > 0) {
+                    mostRecent = r;
+                }
+            }
+        }
+        return mostRecent;
+    }
 }
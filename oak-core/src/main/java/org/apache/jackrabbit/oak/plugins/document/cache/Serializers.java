@@ -22,6 +22,7 @@ package org.apache.jackrabbit.oak.plugins.document.cache;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 import com.esotericsoftware.kryo.Kryo;
@@ -80,11 +81,11 @@ public class Serializers {
 
             //Here assumption is that data has contents of following type
             //Primitive wrapper
-            //NavigableMap of Revision -> Value
+            //SortedMap of Revision -> Value
             for (String key : doc.keySet()) {
                 o.writeString(key);
                 Object val = doc.get(key);
-                if (val instanceof NavigableMap) {
+                if (val instanceof SortedMap) {
                     kryo.writeClass(o, NavigableMap.class);
                     new RevisionedMapSerializer(kryo).write(kryo, o, (Map) val);
                 } else {
@@ -113,6 +113,7 @@ public class MongoDocumentStore implements DocumentStore {
     private final DBCollection nodes;
     private final DBCollection clusterNodes;
     private final DBCollection settings;
+    private final DBCollection journal;
 
     /**
      * The sum of all milliseconds this class waited for MongoDB.
@@ -190,6 +191,8 @@ public class MongoDocumentStore implements DocumentStore {
                 Collection.CLUSTER_NODES.toString());
         settings = db.getCollection(
                 Collection.SETTINGS.toString());
+        journal = db.getCollection(
+                Collection.JOURNAL.toString());
 
         maxReplicationLagMillis = builder.getMaxReplicationLagMillis();
 
@@ -315,6 +318,68 @@ public class MongoDocumentStore implements DocumentStore {
         return result;
     }
 
+    @Nonnull
+    @Override
+    public <T extends Document> List<T> find(Collection<T> collection,
+                                             List<String> keys) {
+        log("find", keys);
+        final long start = PERFLOG.start();
+        Map<String, T> docs = Maps.newHashMapWithExpectedSize(keys.size());
+        // uncached keys grouped by parent id
+        Map<String, List<String>> uncached = Maps.newLinkedHashMap();
+        int numUncached = 0;
+        for (String key : keys) {
+            String parentId = "";
+            if (collection == Collection.NODES) {
+                NodeDocument doc = nodesCache.getIfPresent(new StringValue(key));
+                if (doc == NodeDocument.NULL) {
+                    continue;
+                } else if (doc != null && !isUnverified(doc)) {
+                    @SuppressWarnings("unchecked")
+                    T d = (T) doc;
+                    docs.put(key, d);
+                    continue;
+                }
+                parentId = getParentId(key);
+            }
+            List<String> siblings = uncached.get(parentId);
+            if (siblings == null) {
+                siblings = new ArrayList<String>();
+                uncached.put(parentId, siblings);
+            }
+            siblings.add(key);
+            numUncached++;
+        }
+        for (Map.Entry<String, List<String>> entry : uncached.entrySet()) {
+            // like query(), block cache access for the children of
+            // the parent while the documents are read and cached
+            TreeLock lock = null;
+            if (collection == Collection.NODES) {
+                lock = acquireExclusive(entry.getKey());
+            }
+            try {
+                for (List<String> keyBatch : Lists.partition(entry.getValue(), IN_CLAUSE_BATCH_SIZE)) {
+                    for (T doc : findUncached(collection, keyBatch)) {
+                        docs.put(doc.getId(), doc);
+                    }
+                }
+            } finally {
+                if (lock != null) {
+                    lock.unlock();
+                }
+            }
+        }
+        List<T> result = new ArrayList<T>(docs.size());
+        for (String key : keys) {
+            T doc = docs.get(key);
+            if (doc != null) {
+                result.add(doc);
+            }
+        }
+        PERFLOG.end(start, 1, "find: keys={}, uncached={}", keys.size(), numUncached);
+        return result;
+    }
+
     @Override
     public <T extends Document> T find(final Collection<T> collection,
                                        final String key,
@@ -339,7 +404,7 @@ public class MongoDocumentStore implements DocumentStore {
         if (maxCacheAge > 0 || preferCached) {
             // first try without lock
             doc = nodesCache.getIfPresent(cacheKey);
-            if (doc != null) {
+            if (doc != null && !isUnverified(doc)) {
                 if (preferCached ||
                         getTime() - doc.getCreated() < maxCacheAge) {
                     if (doc == NodeDocument.NULL) {
@@ -369,6 +434,11 @@ public class MongoDocumentStore implements DocumentStore {
                             return doc;
                         }
                     });
+                    if (isUnverified(doc) && !verify(doc)) {
+                        // outdated entry from the persistent cache
+                        invalidateCache(collection, key);
+                        continue;
+                    }
                     if (maxCacheAge == 0 || preferCached) {
                         break;
                     }
@@ -431,6 +501,41 @@ public class MongoDocumentStore implements DocumentStore {
         }
     }
 
+    /**
+     * Reads the documents with the given keys from the primary with a single
+     * query and puts them into the cache.
+     *
+     * @param collection the collection to read from.
+     * @param keys the keys of the documents.
+     * @return the documents that exist, in no particular order.
+     */
+    @Nonnull
+    private <T extends Document> List<T> findUncached(Collection<T> collection,
+                                                      List<String> keys) {
+        DBCollection dbCollection = getDBCollection(collection);
+        DBObject query = QueryBuilder.start(Document.ID).in(keys).get();
+        DBCursor cursor = dbCollection.find(query);
+        cursor.setReadPreference(getMongoReadPreference(
+                collection, null, DocumentReadPreference.PRIMARY));
+        List<T> docs = new ArrayList<T>(keys.size());
+        try {
+            while (cursor.hasNext()) {
+                T doc = convertFromDBObject(collection, cursor.next());
+                if (doc == null) {
+                    continue;
+                }
+                doc.seal();
+                if (collection == Collection.NODES) {
+                    putToCacheIfNewer((NodeDocument) doc);
+                }
+                docs.add(doc);
+            }
+        } finally {
+            cursor.close();
+        }
+        return docs;
+    }
+
     @CheckForNull
     protected <T extends Document> T findUncached(Collection<T> collection, String key, DocumentReadPreference docReadPref) {
         log("findUncached", key, docReadPref);
@@ -546,25 +651,7 @@ public class MongoDocumentStore implements DocumentStore {
                     T doc = convertFromDBObject(collection, o);
                     if (collection == Collection.NODES && doc != null) {
                         doc.seal();
-                        String id = doc.getId();
-                        CacheValue cacheKey = new StringValue(id);
-                        // do not overwrite document in cache if the
-                        // existing one in the cache is newer
-                        NodeDocument cached = nodesCache.getIfPresent(cacheKey);
-                        if (cached != null && cached != NodeDocument.NULL) {
-                            // check mod count
-                            Number cachedModCount = cached.getModCount();
-                            Number modCount = doc.getModCount();
-                            if (cachedModCount == null || modCount == null) {
-                                throw new IllegalStateException(
-                                        "Missing " + Document.MOD_COUNT);
-                            }
-                            if (modCount.longValue() > cachedModCount.longValue()) {
-                                nodesCache.put(cacheKey, (NodeDocument) doc);
-                            }
-                        } else {
-                            nodesCache.put(cacheKey, (NodeDocument) doc);
-                        }
+                        putToCacheIfNewer((NodeDocument) doc);
                     }
                     list.add(doc);
                 }
@@ -929,7 +1016,9 @@ public class MongoDocumentStore implements DocumentStore {
             return clusterNodes;
         } else if (collection == Collection.SETTINGS) {
             return settings;
-        }else {
+        } else if (collection == Collection.JOURNAL) {
+            return journal;
+        } else {
             throw new IllegalArgumentException(
                     "Unknown collection: " + collection.toString());
         }
@@ -1005,9 +1094,53 @@ public class MongoDocumentStore implements DocumentStore {
         if (collection != Collection.NODES) {
             return null;
         }
+        NodeDocument doc = nodesCache.getIfPresent(new StringValue(key));
+        if (doc != null && isUnverified(doc)) {
+            return null;
+        }
         @SuppressWarnings("unchecked")
-        T doc = (T) nodesCache.getIfPresent(new StringValue(key));
-        return doc;
+        T d = (T) doc;
+        return d;
+    }
+
+    /**
+     * Returns {@code true} if the given cached document was read from the
+     * persistent cache and was not yet checked against the stored document.
+     * Such a document may be outdated.
+     *
+     * @param doc a cached document.
+     * @return whether the document still needs to be checked.
+     */
+    private static boolean isUnverified(@Nonnull NodeDocument doc) {
+        return doc != NodeDocument.NULL && doc.getLastCheckTime() == 0;
+    }
+
+    /**
+     * Checks if the given cached document is still up-to-date. This only
+     * reads the {@link Document#MOD_COUNT} of the stored document and marks
+     * the cached document as up-to-date if it matches.
+     *
+     * @param doc a cached document.
+     * @return {@code true} if the document is up-to-date, {@code false} if
+     *          it was modified or removed in the meantime.
+     */
+    private boolean verify(@Nonnull NodeDocument doc) {
+        final long start = PERFLOG.start();
+        DBCollection dbCollection = getDBCollection(Collection.NODES);
+        DBObject obj = dbCollection.findOne(getByKeyQuery(doc.getId()).get(),
+                new BasicDBObject(Document.MOD_COUNT, 1), null, ReadPreference.primary());
+        boolean upToDate = false;
+        if (obj != null) {
+            Number modCount = (Number) obj.get(Document.MOD_COUNT);
+            Number cachedModCount = doc.getModCount();
+            upToDate = modCount != null && cachedModCount != null
+                    && modCount.longValue() == cachedModCount.longValue();
+        }
+        if (upToDate) {
+            doc.markUpToDate(getTime());
+        }
+        PERFLOG.end(start, 1, "verify: key={}, upToDate={}", doc.getId(), upToDate);
+        return upToDate;
     }
 
     /**
@@ -1191,6 +1324,32 @@ public class MongoDocumentStore implements DocumentStore {
         return update;
     }
 
+    /**
+     * Puts the given document into the cache, unless the cache already
+     * contains a newer version of it.
+     *
+     * @param doc the document read from MongoDB.
+     */
+    private void putToCacheIfNewer(@Nonnull NodeDocument doc) {
+        CacheValue cacheKey = new StringValue(doc.getId());
+        NodeDocument cached = nodesCache.getIfPresent(cacheKey);
+        if (cached != null && cached != NodeDocument.NULL) {
+            // check mod count
+            Number cachedModCount = cached.getModCount();
+            Number modCount = doc.getModCount();
+            if (cachedModCount == null || modCount == null) {
+                throw new IllegalStateException(
+                        "Missing " + Document.MOD_COUNT);
+            }
+            if (modCount.longValue() > cachedModCount.longValue()
+                    || isUnverified(cached)) {
+                nodesCache.put(cacheKey, doc);
+            }
+        } else {
+            nodesCache.put(cacheKey, doc);
+        }
+    }
+
     /**
      * Returns the parent id for the given id. An empty String is returned if
      * the given value is the id of the root document or the id for a long path.
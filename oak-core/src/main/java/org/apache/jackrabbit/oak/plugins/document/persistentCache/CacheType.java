@@ -151,7 +151,17 @@ public enum CacheType {
         @Override
         public <V> V valueFromString(
                 DocumentNodeStore store, DocumentStore docStore, String value) {
-            return (V) NodeDocument.fromString(docStore, value);
+            if (value.length() == 0) {
+                // a missing document, written by an older version
+                return null;
+            }
+            NodeDocument doc = NodeDocument.fromString(docStore, value);
+            doc.seal();
+            // the document may have been changed since it was written to
+            // the persistent cache. the document store checks its _modCount
+            // against the stored document before the document is used
+            doc.markUpToDate(0);
+            return (V) doc;
         }
     }; 
     
@@ -18,6 +18,7 @@ package org.apache.jackrabbit.oak.plugins.document.persistentCache;
 
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
@@ -25,6 +26,7 @@ import javax.annotation.Nullable;
 
 import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStore;
 import org.apache.jackrabbit.oak.plugins.document.DocumentStore;
+import org.apache.jackrabbit.oak.plugins.document.NodeDocument;
 import org.apache.jackrabbit.oak.plugins.document.persistentCache.PersistentCache.GenerationCache;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.type.DataType;
@@ -41,6 +43,12 @@ class NodeCache<K, V> implements Cache<K, V>, GenerationCache {
     private final CacheType type;
     private final DocumentNodeStore docNodeStore;
     private final DocumentStore docStore;
+
+    /**
+     * Entries waiting to be written to the persistent cache by the
+     * {@link WriteQueue}.
+     */
+    private final ConcurrentMap<K, V> pending = new ConcurrentHashMap<K, V>();
     
     NodeCache(
             PersistentCache cache,
@@ -76,17 +84,57 @@ class NodeCache<K, V> implements Cache<K, V>, GenerationCache {
     }
     
     private V readIfPresent(K key) {
+        V v = pending.get(key);
+        if (v != null) {
+            return v;
+        }
         cache.switchGenerationIfNeeded();
-        V v = map.get(key);
+        v = map.get(key);
         return v;
     }
     
     public void write(K key, V value) {
-        cache.switchGenerationIfNeeded();
-        if (value == null) {
-            map.remove(key);
-        } else {
+        // a missing document may be created by another cluster node
+        // while the entry is persisted, but there is nothing to check
+        // such an entry against. therefore it is not persisted
+        if (value == null || value == NodeDocument.NULL) {
+            cache.switchGenerationIfNeeded();
+            synchronized (this) {
+                pending.remove(key);
+                map.remove(key);
+            }
+            return;
+        }
+        WriteQueue queue = cache.getWriteQueue();
+        if (queue == null) {
+            cache.switchGenerationIfNeeded();
             map.put(key, value);
+            return;
+        }
+        pending.put(key, value);
+        if (!queue.offer(this, key)) {
+            pending.remove(key, value);
+        }
+    }
+
+    /**
+     * Writes the pending entry for the given key, unless it was written or
+     * removed in the meantime. Called by the {@link WriteQueue}.
+     *
+     * @param key the key.
+     */
+    @SuppressWarnings("unchecked")
+    void writePending(Object key) {
+        V value = pending.get(key);
+        if (value == null) {
+            return;
+        }
+        cache.switchGenerationIfNeeded();
+        synchronized (this) {
+            // the entry must not be written if it was removed by now
+            if (pending.remove(key, value)) {
+                map.put((K) key, value);
+            }
         }
     }
     
@@ -142,15 +190,22 @@ class NodeCache<K, V> implements Cache<K, V>, GenerationCache {
         memCache.putAll(m);
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public void invalidateAll(Iterable<?> keys) {
         memCache.invalidateAll(keys);
+        for (Object key : keys) {
+            write((K) key, (V) null);
+        }
     }
 
     @Override
     public void invalidateAll() {
         memCache.invalidateAll();
-        map.clear();
+        synchronized (this) {
+            pending.clear();
+            map.clear();
+        }
     }
 
     @Override
@@ -65,6 +65,8 @@ public class PersistentCache {
     private long maxBinaryEntry = 1024 * 1024;
     private int autoCompact = 50;
     private boolean appendOnly;
+    private int writeQueueSize = 1024;
+    private WriteQueue writeQueue;
 
     public PersistentCache(String url) {
         LOG.info("start version 1");
@@ -98,9 +100,14 @@ public class PersistentCache {
                 autoCompact = Integer.parseInt(p.split("=")[1]);
             } else if (p.equals("appendOnly")) {
                 appendOnly = true;
+            } else if (p.startsWith("writeQueue=")) {
+                writeQueueSize = Integer.parseInt(p.split("=")[1]);
             }
         }
         this.directory = dir;
+        if (writeQueueSize > 0) {
+            writeQueue = new WriteQueue(writeQueueSize);
+        }
         if (dir.length() == 0) {
             readGeneration = -1;
             writeGeneration = 0;
@@ -251,6 +258,9 @@ public class PersistentCache {
     }
     
     public void close() {
+        if (writeQueue != null) {
+            writeQueue.close();
+        }
         if (writeStore != null) {
             writeStore.closeStore();
         }
@@ -370,6 +380,29 @@ public class PersistentCache {
         return writeStore.getOpenCount();
     }
 
+    /**
+     * @return the queue for asynchronous writes or {@code null} if entries
+     *          are written synchronously.
+     */
+    WriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * @return the number of entries waiting to be written.
+     */
+    public int getWriteQueueSize() {
+        return writeQueue == null ? 0 : writeQueue.size();
+    }
+
+    /**
+     * @return the number of entries that were not written because the write
+     *          queue was full.
+     */
+    public long getDroppedWriteCount() {
+        return writeQueue == null ? 0 : writeQueue.getDroppedCount();
+    }
+
 
     interface GenerationCache {
 
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.document.persistentCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of cache entries that are written to the persistent cache
+ * by a background thread, in batches. Entries are dropped instead of
+ * blocking the caller if the queue is full.
+ */
+class WriteQueue implements Runnable {
+
+    /**
+     * The maximum number of entries written in one go.
+     */
+    private static final int BATCH_SIZE = 128;
+
+    private final BlockingQueue<Write> queue;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    WriteQueue(int capacity) {
+        queue = new ArrayBlockingQueue<Write>(capacity);
+        thread = new Thread(this, "Oak persistent cache writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds the key of a pending entry of the given cache to the queue.
+     *
+     * @param cache the cache.
+     * @param key the key.
+     * @return {@code true} if the key was added, {@code false} if the queue
+     *          is full or closed and the entry should be dropped.
+     */
+    boolean offer(NodeCache<?, ?> cache, Object key) {
+        if (closed || !queue.offer(new Write(cache, key))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of entries waiting to be written.
+     */
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of entries dropped because the queue was full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the entries still in the queue and stops the background thread.
+     */
+    void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            PersistentCache.LOG.warn("Interrupted while waiting for the cache writer");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Write> batch = new ArrayList<Write>(BATCH_SIZE);
+        for (;;) {
+            try {
+                Write w = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (w == null) {
+                    if (closed && queue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(w);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (Write write : batch) {
+                    write.cache.writePending(write.key);
+                }
+            } catch (InterruptedException e) {
+                // ignore
+            } catch (Exception e) {
+                PersistentCache.LOG.warn("Could not write to the persistent cache", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static final class Write {
+
+        final NodeCache<?, ?> cache;
+
+        final Object key;
+
+        Write(NodeCache<?, ?> cache, Object key) {
+            this.cache = cache;
+            this.key = key;
+        }
+    }
+
+}
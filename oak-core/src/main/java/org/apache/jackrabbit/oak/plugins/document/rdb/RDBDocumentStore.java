@@ -214,6 +214,12 @@ public class RDBDocumentStore implements DocumentStore {
         return readDocumentCached(collection, id, maxCacheAge);
     }
 
+    @Nonnull
+    @Override
+    public <T extends Document> List<T> find(Collection<T> collection, List<String> ids) {
+        return readDocumentsCached(collection, ids);
+    }
+
     @Nonnull
     @Override
     public <T extends Document> List<T> query(Collection<T> collection, String fromKey, String toKey, int limit) {
@@ -618,7 +624,7 @@ public class RDBDocumentStore implements DocumentStore {
     private Set<String> tablesToBeDropped = new HashSet<String>();
 
     // table names
-    private String tnNodes, tnClusterNodes, tnSettings; 
+    private String tnNodes, tnClusterNodes, tnSettings, tnJournal; 
 
     // ratio between Java characters and UTF-8 encoding
     // a) single characters will fit into 3 bytes
@@ -655,6 +661,7 @@ public class RDBDocumentStore implements DocumentStore {
         this.tnNodes = RDBJDBCTools.createTableName(options.getTablePrefix(), "NODES");
         this.tnClusterNodes = RDBJDBCTools.createTableName(options.getTablePrefix(), "CLUSTERNODES");
         this.tnSettings = RDBJDBCTools.createTableName(options.getTablePrefix(), "SETTINGS");
+        this.tnJournal = RDBJDBCTools.createTableName(options.getTablePrefix(), "JOURNAL");
 
         this.ch = new RDBConnectionHandler(ds);
         this.callStack = LOG.isDebugEnabled() ? new Exception("call stack of RDBDocumentStore creation") : null;
@@ -695,6 +702,7 @@ public class RDBDocumentStore implements DocumentStore {
             createTableFor(con, Collection.CLUSTER_NODES, tablesCreated, tablesPresent);
             createTableFor(con, Collection.NODES, tablesCreated, tablesPresent);
             createTableFor(con, Collection.SETTINGS, tablesCreated, tablesPresent);
+            createTableFor(con, Collection.JOURNAL, tablesCreated, tablesPresent);
         } finally {
             con.commit();
             con.close();
@@ -839,6 +847,50 @@ public class RDBDocumentStore implements DocumentStore {
         }
     }
 
+    private <T extends Document> List<T> readDocumentsCached(Collection<T> collection, List<String> ids) {
+        Map<String, T> docs = new HashMap<String, T>();
+        List<String> uncached = new ArrayList<String>();
+        for (String id : ids) {
+            if (collection == Collection.NODES) {
+                NodeDocument doc = nodesCache.getIfPresent(new StringValue(id));
+                if (doc != null && doc.getLastCheckTime() != 0) {
+                    if (doc != NodeDocument.NULL) {
+                        T d = castAsT(unwrap(doc));
+                        docs.put(id, d);
+                    }
+                    continue;
+                }
+            }
+            uncached.add(id);
+        }
+        String tableName = getTable(collection);
+        for (List<String> sublist : Lists.partition(uncached, CHUNKSIZE)) {
+            Connection connection = null;
+            try {
+                long now = System.currentTimeMillis();
+                connection = this.ch.getROConnection();
+                List<RDBRow> rows = dbRead(connection, tableName, sublist);
+                connection.commit();
+                for (RDBRow row : rows) {
+                    T doc = runThroughCache(collection, row, now);
+                    docs.put(row.getId(), doc);
+                }
+            } catch (Exception ex) {
+                throw new DocumentStoreException(ex);
+            } finally {
+                this.ch.closeConnection(connection);
+            }
+        }
+        List<T> result = new ArrayList<T>(docs.size());
+        for (String id : ids) {
+            T doc = docs.get(id);
+            if (doc != null) {
+                result.add(doc);
+            }
+        }
+        return result;
+    }
+
     @CheckForNull
     private <T extends Document> boolean internalCreate(Collection<T> collection, List<UpdateOp> updates) {
         try {
@@ -1090,6 +1142,8 @@ public class RDBDocumentStore implements DocumentStore {
             return this.tnNodes;
         } else if (collection == Collection.SETTINGS) {
             return this.tnSettings;
+        } else if (collection == Collection.JOURNAL) {
+            return this.tnJournal;
         } else {
             throw new IllegalArgumentException("Unknown collection: " + collection.toString());
         }
@@ -1276,7 +1330,7 @@ public class RDBDocumentStore implements DocumentStore {
     // Whether to use GZIP compression
     private static final boolean NOGZIP = Boolean
             .getBoolean("org.apache.jackrabbit.oak.plugins.document.rdb.RDBDocumentStore.NOGZIP");
-    // Number of documents to insert at once for batch create
+    // Number of documents to insert or read at once for batch operations
     private static final int CHUNKSIZE = Integer.getInteger(
             "org.apache.jackrabbit.oak.plugins.document.rdb.RDBDocumentStore.CHUNKSIZE", 64);
 
@@ -1393,6 +1447,39 @@ public class RDBDocumentStore implements DocumentStore {
         }
     }
 
+    private List<RDBRow> dbRead(Connection connection, String tableName, List<String> ids) throws SQLException {
+        StringBuilder inClause = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            inClause.append('?');
+            if (i != ids.size() - 1) {
+                inClause.append(',');
+            }
+        }
+        PreparedStatement stmt = connection.prepareStatement("select ID, MODIFIED, MODCOUNT, CMODCOUNT, HASBINARY, DELETEDONCE, DATA, BDATA from "
+                + tableName + " where ID in (" + inClause.toString() + ")");
+        List<RDBRow> result = new ArrayList<RDBRow>(ids.size());
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                setIdInStatement(stmt, i + 1, ids.get(i));
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String id = getIdFromRS(rs, 1);
+                long modified = rs.getLong(2);
+                long modcount = rs.getLong(3);
+                long cmodcount = rs.getLong(4);
+                long hasBinary = rs.getLong(5);
+                long deletedOnce = rs.getLong(6);
+                String data = rs.getString(7);
+                byte[] bdata = rs.getBytes(8);
+                result.add(new RDBRow(id, hasBinary == 1, deletedOnce == 1, modified, modcount, cmodcount, data, bdata));
+            }
+        } finally {
+            stmt.close();
+        }
+        return result;
+    }
+
     private List<RDBRow> dbQuery(Connection connection, String tableName, String minId, String maxId, String indexedProperty,
             long startValue, int limit) throws SQLException {
         String t = "select ";
@@ -34,6 +34,7 @@ public class RDBHelper {
             System.out.println("  " + ddb.getTableCreationStatement("CLUSTERNODES"));
             System.out.println("  " + ddb.getTableCreationStatement("NODES"));
             System.out.println("  " + ddb.getTableCreationStatement("SETTINGS"));
+            System.out.println("  " + ddb.getTableCreationStatement("JOURNAL"));
             System.out.println("  " + bdb.getMetaTableCreationStatement("DATASTORE_META"));
             System.out.println("  " + bdb.getDataTableCreationStatement("DATASTORE_DATA"));
             System.out.println();
@@ -48,6 +48,11 @@ public class SynchronizingDocumentStoreWrapper implements DocumentStore {
         return store.find(collection, key, maxCacheAge);
     }
 
+    @Override
+    public synchronized <T extends Document> List<T> find(final Collection<T> collection, final List<String> keys) {
+        return store.find(collection, keys);
+    }
+
     @Override
     public synchronized <T extends Document> List<T> query(final Collection<T> collection, final String fromKey,
             final String toKey, final int limit) {
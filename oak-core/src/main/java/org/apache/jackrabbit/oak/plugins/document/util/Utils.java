@@ -39,6 +39,7 @@ import com.google.common.collect.AbstractIterator;
 import com.mongodb.BasicDBObject;
 
 import org.apache.commons.codec.binary.Hex;
+import org.apache.jackrabbit.oak.cache.CacheValue;
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.plugins.document.Collection;
 import org.apache.jackrabbit.oak.plugins.document.DocumentStore;
@@ -146,6 +147,8 @@ public class Utils {
                 size += 8;
             } else if (o instanceof Integer) {
                 size += 8;
+            } else if (o instanceof CacheValue) {
+                size += 8 + ((CacheValue) o).getMemory();
             } else if (o instanceof Map) {
                 size += 8 + estimateMemoryUsage((Map<String, Object>) o);
             } else if (o == null) {
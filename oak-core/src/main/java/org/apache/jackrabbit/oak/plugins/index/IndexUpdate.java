@@ -381,7 +381,7 @@ public class IndexUpdate implements Editor {
             return !reindexedIndexes.isEmpty();
         }
 
-        private class CountingCallback implements IndexUpdateCallback {
+        private class CountingCallback implements ContextAwareCallback {
             final String indexName;
             final boolean reindex;
             int count;
@@ -391,6 +391,16 @@ public class IndexUpdate implements Editor {
                 this.reindex = reindex;
             }
 
+            @Override
+            public String getIndexPath() {
+                return indexName;
+            }
+
+            @Override
+            public boolean isReindexing() {
+                return reindex;
+            }
+
             @Override
             public void indexUpdate() throws CommitFailedException {
                 count++;
@@ -157,6 +157,21 @@ public class CompactionMap {
         return false;
     }
 
+    /**
+     * Adds the identifiers of the segments containing the compacted records
+     * of this map, not including those of previous maps, to the given set.
+     *
+     * @param ids  set of segment identifiers to add to
+     */
+    void collectAfterSegments(Set<UUID> ids) {
+        for (RecordId after : recent.values()) {
+            ids.add(asUUID(after.getSegmentId()));
+        }
+        for (int i = 0; i < amsbs.length; i++) {
+            ids.add(new UUID(amsbs[i], alsbs[i]));
+        }
+    }
+
     public RecordId get(RecordId before) {
         RecordId after = recent.get(before);
         if (after != null) {
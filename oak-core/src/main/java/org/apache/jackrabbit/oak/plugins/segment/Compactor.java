@@ -18,14 +18,34 @@ package org.apache.jackrabbit.oak.plugins.segment;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.jackrabbit.oak.api.Type.BINARIES;
 import static org.apache.jackrabbit.oak.api.Type.BINARY;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 
 import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.api.PropertyState;
@@ -35,22 +55,50 @@ import org.apache.jackrabbit.oak.plugins.memory.BinaryPropertyState;
 import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
 import org.apache.jackrabbit.oak.plugins.memory.MultiBinaryPropertyState;
 import org.apache.jackrabbit.oak.plugins.memory.PropertyStates;
+import org.apache.jackrabbit.oak.spi.gc.GCMonitor;
 import org.apache.jackrabbit.oak.spi.state.ApplyDiff;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.hash.Hashing;
 
 /**
  * Tool for compacting segments.
+ * <p>
+ * A full compaction (one against an empty base state) can be split across
+ * several threads: the subtrees at {@link #SPLIT_DEPTH} are compacted by
+ * worker threads, each with its own {@link SegmentWriter}, and the nodes
+ * above them are assembled once all their subtrees are done. Subtrees found
+ * in the compaction map are not compacted again, so calling
+ * {@link #compact(NodeState, NodeState)} again on the same instance, for
+ * example to rebase concurrent changes or to resume a cancelled compaction,
+ * only compacts what is new or was not completed yet.
  */
 public class Compactor {
 
     /** Logger instance */
     private static final Logger log = LoggerFactory.getLogger(Compactor.class);
 
+    private static final Supplier<Boolean> NOT_CANCELLED =
+            Suppliers.ofInstance(false);
+
+    /**
+     * Depth below the root at which the tree is split into subtrees that
+     * are compacted in parallel. Depth three corresponds to for example
+     * {@code /root/content/site}.
+     */
+    static final int SPLIT_DEPTH = 3;
+
+    /**
+     * Minimum interval between progress reports.
+     */
+    private static final long PROGRESS_INTERVAL = SECONDS.toMillis(30);
+
     /**
      * Locks down the RecordId persistence structure
      */
@@ -61,12 +109,16 @@ public class Compactor {
 
     private final SegmentWriter writer;
 
+    /**
+     * Map of compacted records. Guarded by itself, as it is accessed
+     * concurrently by the worker threads of a parallel compaction.
+     */
     private final CompactionMap map;
 
     /**
      * Map from {@link #getBlobKey(Blob) blob keys} to matching compacted
      * blob record identifiers. Used to de-duplicate copies of the same
-     * binary values.
+     * binary values. Guarded by itself.
      */
     private final Map<String, List<RecordId>> binaries = newHashMap();
 
@@ -76,85 +128,451 @@ public class Compactor {
      */
     private final boolean cloneBinaries;
 
+    /**
+     * Number of threads used for compacting the subtrees of a full compaction.
+     */
+    private final int threads;
+
+    private final GCMonitor gcMonitor;
+
+    /**
+     * Polled while compacting. Once it returns {@code true}, the compaction
+     * is stopped and {@link #compact(NodeState, NodeState)} returns
+     * {@code null}.
+     */
+    private final Supplier<Boolean> cancel;
+
+    /**
+     * Number of nodes compacted by this instance so far.
+     */
+    private final AtomicLong compactedNodes = new AtomicLong();
+
+    /**
+     * Number of subtrees of the current parallel compaction, or {@code 0}
+     * if the current compaction runs on a single thread.
+     */
+    private volatile int totalSubtrees;
+
+    private final AtomicInteger compactedSubtrees = new AtomicInteger();
+
+    private volatile long start;
+
+    private final AtomicLong lastProgress = new AtomicLong();
+
     public Compactor(SegmentWriter writer) {
         this(writer, false);
     }
 
     public Compactor(SegmentWriter writer, boolean cloneBinaries) {
+        this(writer, cloneBinaries, 1, GCMonitor.EMPTY, NOT_CANCELLED);
+    }
+
+    /**
+     * @param writer         writer for the compacted records
+     * @param cloneBinaries  whether to clone large binaries
+     * @param threads        number of threads for compacting subtrees,
+     *                       {@code 1} to compact on the calling thread only
+     * @param gcMonitor      monitor receiving progress reports
+     * @param cancel         polled for cancelling the compaction
+     */
+    public Compactor(SegmentWriter writer, boolean cloneBinaries, int threads,
+            @Nonnull GCMonitor gcMonitor, @Nonnull Supplier<Boolean> cancel) {
         this.writer = writer;
         this.map = new CompactionMap(100000, writer.getTracker());
         this.cloneBinaries = cloneBinaries;
+        this.threads = Math.max(threads, 1);
+        this.gcMonitor = gcMonitor;
+        this.cancel = cancel;
     }
 
     protected SegmentNodeBuilder process(NodeState before, NodeState after) {
         SegmentNodeBuilder builder = new SegmentNodeBuilder(
                 writer.writeNode(before), writer);
-        after.compareAgainstBaseState(before, new CompactDiff(builder));
+        after.compareAgainstBaseState(before, new CompactDiff(builder, writer));
         return builder;
     }
 
+    /**
+     * Same as {@link #process(NodeState, NodeState)}, but returns
+     * {@code null} if the compaction was cancelled.
+     */
+    @CheckForNull
+    private SegmentNodeState processOrCancel(NodeState before, NodeState after) {
+        SegmentNodeBuilder builder = new SegmentNodeBuilder(
+                writer.writeNode(before), writer);
+        if (after.compareAgainstBaseState(before, new CompactDiff(builder, writer))) {
+            return builder.getNodeState();
+        } else {
+            // the diff was aborted, the builder only has part of the changes
+            return null;
+        }
+    }
+
+    /**
+     * Compacts the changes between {@code before} and {@code after} on top
+     * of {@code before}. The compaction is split across threads if it is a
+     * full compaction against an empty base state and more than one thread
+     * was configured.
+     *
+     * @param before  base state
+     * @param after   state to compact
+     * @return  the compacted state, or {@code null} if the compaction was
+     *          cancelled
+     */
+    @CheckForNull
     public SegmentNodeState compact(NodeState before, NodeState after) {
-        SegmentNodeState compacted = process(before, after).getNodeState();
+        start = System.currentTimeMillis();
+        lastProgress.set(start);
+        compactedSubtrees.set(0);
+        totalSubtrees = 0;
+
+        SegmentNodeState compacted;
+        if (threads > 1 && EMPTY_NODE.equals(before)) {
+            compacted = new ParallelCompaction().compact(after);
+        } else {
+            compacted = processOrCancel(before, after);
+        }
         writer.flush();
         return compacted;
     }
 
     public CompactionMap getCompactionMap() {
-        map.compress();
-        return map;
+        synchronized (map) {
+            map.compress();
+            return map;
+        }
+    }
+
+    /**
+     * Adds the identifiers of the segments containing the records compacted
+     * by this instance to the given set. Used by the revision cleanup to keep
+     * the progress of a suspended compaction, which is not yet reachable from
+     * the head state.
+     *
+     * @param ids  set of segment identifiers to add to
+     */
+    public void collectCompactedSegments(@Nonnull Set<UUID> ids) {
+        synchronized (map) {
+            map.collectAfterSegments(ids);
+        }
+    }
+
+    /**
+     * @return  number of nodes compacted by this instance so far
+     */
+    public long getCompactedNodes() {
+        return compactedNodes.get();
+    }
+
+    @CheckForNull
+    private RecordId getCompacted(RecordId id) {
+        synchronized (map) {
+            return map.get(id);
+        }
+    }
+
+    private void putCompacted(RecordId before, RecordId after) {
+        synchronized (map) {
+            map.put(before, after);
+        }
+    }
+
+    /**
+     * Compacts the given subtree with the given writer.
+     *
+     * @return  the compacted subtree, or {@code null} if cancelled
+     */
+    @CheckForNull
+    private SegmentNodeState compactNode(NodeState state, SegmentWriter writer) {
+        RecordId id = null;
+        if (state instanceof SegmentNodeState) {
+            id = ((SegmentNodeState) state).getRecordId();
+            RecordId compactedId = getCompacted(id);
+            if (compactedId != null) {
+                return new SegmentNodeState(compactedId);
+            }
+        }
+
+        NodeBuilder builder = EmptyNodeState.EMPTY_NODE.builder();
+        if (!EmptyNodeState.compareAgainstEmptyState(
+                state, new CompactDiff(builder, writer))) {
+            return null;
+        }
+
+        SegmentNodeState compacted = writer.writeNode(builder.getNodeState());
+        if (id != null) {
+            putCompacted(id, compacted.getRecordId());
+        }
+        compactedNodes.incrementAndGet();
+        maybeReportProgress();
+        return compacted;
+    }
+
+    private void maybeReportProgress() {
+        long now = System.currentTimeMillis();
+        long last = lastProgress.get();
+        if (now - last < PROGRESS_INTERVAL
+                || !lastProgress.compareAndSet(last, now)) {
+            return;
+        }
+
+        long nodes = compactedNodes.get();
+        long seconds = Math.max(MILLISECONDS.toSeconds(now - start), 1);
+        int total = totalSubtrees;
+        int done = compactedSubtrees.get();
+        if (total > 0 && done > 0) {
+            long eta = seconds * (total - done) / done;
+            gcMonitor.info("TarMK compaction in progress: {} nodes compacted " +
+                    "({} nodes/s), {}/{} subtrees done, ETA {} min",
+                    nodes, nodes / seconds, done, total, MINUTES.convert(eta, SECONDS));
+        } else {
+            gcMonitor.info("TarMK compaction in progress: {} nodes compacted " +
+                    "({} nodes/s)", nodes, nodes / seconds);
+        }
+    }
+
+    /**
+     * A full compaction split across a pool of worker threads.
+     */
+    private class ParallelCompaction {
+
+        private final BlockingQueue<SegmentWriter> writers =
+                new ArrayBlockingQueue<SegmentWriter>(threads);
+
+        private final ExecutorService executor =
+                Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+                    @Override
+                    public Thread newThread(@Nonnull Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "TarMK compaction worker " + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        /**
+         * Set when the compaction failed, to stop the remaining workers.
+         */
+        private volatile boolean aborted;
+
+        ParallelCompaction() {
+            SegmentTracker tracker = writer.getTracker();
+            for (int i = 0; i < threads; i++) {
+                writers.add(new SegmentWriter(
+                        tracker.getStore(), tracker, writer.getVersion()));
+            }
+        }
+
+        @CheckForNull
+        SegmentNodeState compact(NodeState root) {
+            Subtree tree = new Subtree(root, 0);
+            totalSubtrees = tree.count();
+            log.debug("Compacting {} subtrees on {} threads",
+                    totalSubtrees, threads);
+            try {
+                if (tree.children == null) {
+                    tree.submit();
+                    return tree.get();
+                }
+
+                // compact the top level subtrees one after another, so that
+                // content shared between them (like between the root and
+                // the checkpoints) is compacted only once
+                NodeBuilder builder = EMPTY_NODE.builder();
+                for (PropertyState property : root.getProperties()) {
+                    builder.setProperty(Compactor.this.compact(property, writer));
+                }
+                for (Map.Entry<String, Subtree> entry : tree.children.entrySet()) {
+                    Subtree child = entry.getValue();
+                    child.submit();
+                    SegmentNodeState compacted = child.get();
+                    if (compacted == null) {
+                        return null;
+                    }
+                    builder.setChildNode(entry.getKey(), compacted);
+                }
+                return writer.writeNode(builder.getNodeState());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Parallel compaction interrupted");
+                return null;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            } finally {
+                aborted = true;
+                executor.shutdown();
+                try {
+                    while (!executor.awaitTermination(1, SECONDS)) {
+                        log.debug("Waiting for compaction workers to stop");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (SegmentWriter w : writers) {
+                    w.flush();
+                }
+            }
+        }
+
+        private boolean isCancelled() {
+            return aborted || cancel.get();
+        }
+
+        /**
+         * A subtree of the node state being compacted. Subtrees above the
+         * {@link #SPLIT_DEPTH} are assembled by the calling thread from their
+         * compacted children, the others are compacted by a worker thread.
+         */
+        private class Subtree implements Callable<SegmentNodeState> {
+
+            private final NodeState state;
+
+            /**
+             * The child subtrees, or {@code null} if this subtree
+             * is compacted by a worker thread.
+             */
+            private final Map<String, Subtree> children;
+
+            private Future<SegmentNodeState> future;
+
+            Subtree(NodeState state, int depth) {
+                this.state = state;
+                if (depth < SPLIT_DEPTH && !isCompacted(state)) {
+                    children = newLinkedHashMap();
+                    for (ChildNodeEntry entry : state.getChildNodeEntries()) {
+                        children.put(entry.getName(),
+                                new Subtree(entry.getNodeState(), depth + 1));
+                    }
+                } else {
+                    children = null;
+                }
+            }
+
+            private boolean isCompacted(NodeState state) {
+                return state instanceof SegmentNodeState && getCompacted(
+                        ((SegmentNodeState) state).getRecordId()) != null;
+            }
+
+            int count() {
+                if (children == null) {
+                    return 1;
+                }
+                int count = 0;
+                for (Subtree child : children.values()) {
+                    count += child.count();
+                }
+                return count;
+            }
+
+            void submit() {
+                if (children == null) {
+                    future = executor.submit(this);
+                } else {
+                    for (Subtree child : children.values()) {
+                        child.submit();
+                    }
+                }
+            }
+
+            @CheckForNull
+            SegmentNodeState get()
+                    throws InterruptedException, ExecutionException {
+                if (children == null) {
+                    return future.get();
+                }
+
+                NodeBuilder builder = EMPTY_NODE.builder();
+                for (PropertyState property : state.getProperties()) {
+                    builder.setProperty(Compactor.this.compact(property, writer));
+                }
+                for (Map.Entry<String, Subtree> entry : children.entrySet()) {
+                    SegmentNodeState compacted = entry.getValue().get();
+                    if (compacted == null) {
+                        return null;
+                    }
+                    builder.setChildNode(entry.getKey(), compacted);
+                }
+
+                SegmentNodeState compacted = writer.writeNode(builder.getNodeState());
+                if (state instanceof SegmentNodeState) {
+                    putCompacted(((SegmentNodeState) state).getRecordId(),
+                            compacted.getRecordId());
+                }
+                compactedNodes.incrementAndGet();
+                return compacted;
+            }
+
+            @Override
+            public SegmentNodeState call() throws InterruptedException {
+                if (isCancelled()) {
+                    return null;
+                }
+                SegmentWriter writer = writers.take();
+                try {
+                    return compactNode(state, writer);
+                } finally {
+                    writers.add(writer);
+                    compactedSubtrees.incrementAndGet();
+                }
+            }
+
+        }
+
     }
 
     private class CompactDiff extends ApplyDiff {
 
-        CompactDiff(NodeBuilder builder) {
+        private final SegmentWriter writer;
+
+        CompactDiff(NodeBuilder builder, SegmentWriter writer) {
             super(builder);
+            this.writer = writer;
         }
 
         @Override
         public boolean propertyAdded(PropertyState after) {
-            return super.propertyAdded(compact(after));
+            return super.propertyAdded(compact(after, writer));
         }
 
         @Override
         public boolean propertyChanged(
                 PropertyState before, PropertyState after) {
-            return super.propertyChanged(before, compact(after));
+            return super.propertyChanged(before, compact(after, writer));
         }
 
         @Override
         public boolean childNodeAdded(String name, NodeState after) {
-            RecordId id = null;
-            if (after instanceof SegmentNodeState) {
-                id = ((SegmentNodeState) after).getRecordId();
-                RecordId compactedId = map.get(id);
-                if (compactedId != null) {
-                    builder.setChildNode(name, new SegmentNodeState(compactedId));
-                    return true;
-                }
+            if (cancel.get()) {
+                return false;
             }
 
-            NodeBuilder child = EmptyNodeState.EMPTY_NODE.builder();
-            boolean success = EmptyNodeState.compareAgainstEmptyState(after,
-                    new CompactDiff(child));
-
-            if (success) {
-                SegmentNodeState state = writer.writeNode(child.getNodeState());
-                builder.setChildNode(name, state);
-                if (id != null) {
-                    map.put(id, state.getRecordId());
-                }
+            SegmentNodeState compacted = compactNode(after, writer);
+            if (compacted == null) {
+                return false;
             }
-
-            return success;
+            builder.setChildNode(name, compacted);
+            return true;
         }
 
         @Override
         public boolean childNodeChanged(
                 String name, NodeState before, NodeState after) {
+            if (cancel.get()) {
+                return false;
+            }
+
             RecordId id = null;
             if (after instanceof SegmentNodeState) {
                 id = ((SegmentNodeState) after).getRecordId();
-                RecordId compactedId = map.get(id);
+                RecordId compactedId = getCompacted(id);
                 if (compactedId != null) {
                     builder.setChildNode(name, new SegmentNodeState(compactedId));
                     return true;
@@ -163,14 +581,15 @@ public class Compactor {
 
             NodeBuilder child = builder.getChildNode(name);
             boolean success = after.compareAgainstBaseState(before,
-                    new CompactDiff(child));
+                    new CompactDiff(child, writer));
 
             if (success) {
                 RecordId compactedId = writer.writeNode(child.getNodeState())
                         .getRecordId();
                 if (id != null) {
-                    map.put(id, compactedId);
+                    putCompacted(id, compactedId);
                 }
+                compactedNodes.incrementAndGet();
             }
 
             return success;
@@ -178,16 +597,16 @@ public class Compactor {
 
     }
 
-    private PropertyState compact(PropertyState property) {
+    private PropertyState compact(PropertyState property, SegmentWriter writer) {
         String name = property.getName();
         Type<?> type = property.getType();
         if (type == BINARY) {
-            Blob blob = compact(property.getValue(Type.BINARY));
+            Blob blob = compact(property.getValue(Type.BINARY), writer);
             return BinaryPropertyState.binaryProperty(name, blob);
         } else if (type == BINARIES) {
             List<Blob> blobs = new ArrayList<Blob>();
             for (Blob blob : property.getValue(BINARIES)) {
-                blobs.add(compact(blob));
+                blobs.add(compact(blob, writer));
             }
             return MultiBinaryPropertyState.binaryPropertyFromBlob(name, blobs);
         } else {
@@ -200,16 +619,17 @@ public class Compactor {
      * Compacts (and de-duplicates) the given blob.
      *
      * @param blob blob to be compacted
+     * @param writer writer for the compacted blob
      * @return compacted blob
      */
-    private Blob compact(Blob blob) {
+    private Blob compact(Blob blob, SegmentWriter writer) {
         if (blob instanceof SegmentBlob) {
             SegmentBlob sb = (SegmentBlob) blob;
 
             try {
                 // else check if we've already cloned this specific record
                 RecordId id = sb.getRecordId();
-                RecordId compactedId = map.get(id);
+                RecordId compactedId = getCompacted(id);
                 if (compactedId != null) {
                     return new SegmentBlob(compactedId);
                 }
@@ -217,30 +637,39 @@ public class Compactor {
                 // if the blob is inlined or external, just clone it
                 if (sb.isExternal() || sb.length() < Segment.MEDIUM_LIMIT) {
                     SegmentBlob clone = sb.clone(writer, cloneBinaries);
-                    map.put(id, clone.getRecordId());
+                    putCompacted(id, clone.getRecordId());
                     return clone;
                 }
 
                 // alternatively look if the exact same binary has been cloned
                 String key = getBlobKey(blob);
-                List<RecordId> ids = binaries.get(key);
+                List<RecordId> ids;
+                synchronized (binaries) {
+                    ids = binaries.get(key);
+                    ids = ids == null ? null : newArrayList(ids);
+                }
                 if (ids != null) {
                     for (RecordId duplicateId : ids) {
                         if (new SegmentBlob(duplicateId).equals(sb)) {
-                            map.put(id, duplicateId);
+                            putCompacted(id, duplicateId);
                             return new SegmentBlob(duplicateId);
                         }
                     }
                 }
 
-                // if not, clone the blob and keep track of the result
+                // if not, clone the blob and keep track of the result. Two
+                // threads may end up cloning the same binary concurrently,
+                // which only costs some space.
                 sb = sb.clone(writer, cloneBinaries);
-                map.put(id, sb.getRecordId());
-                if (ids == null) {
-                    ids = newArrayList();
-                    binaries.put(key, ids);
+                putCompacted(id, sb.getRecordId());
+                synchronized (binaries) {
+                    ids = binaries.get(key);
+                    if (ids == null) {
+                        ids = newArrayList();
+                        binaries.put(key, ids);
+                    }
+                    ids.add(sb.getRecordId());
                 }
-                ids.add(sb.getRecordId());
 
                 return sb;
             } catch (IOException e) {
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Queues.newArrayDeque;
+import static org.apache.jackrabbit.oak.plugins.segment.MapRecord.BUCKETS_PER_LEVEL;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
+
+/**
+ * Comparison of the branch records of two large maps, where the buckets are
+ * compared on background threads ahead of the diff consumer. Comparing a
+ * bucket mostly consists of loading the segments of its records, so for
+ * large flat nodes this overlaps the reads of upcoming buckets with the
+ * processing of the changes in the current one.
+ * <p>
+ * The changes found in a bucket are buffered and reported to the diff in
+ * the caller's thread, in the same order as a sequential comparison would
+ * report them. The background threads are those of the
+ * {@link SegmentTracker#getDiffExecutor() diff executor} of the store, and
+ * at most as many buckets as it has threads are compared ahead of the one
+ * whose changes are currently being reported. Buckets within the
+ * background comparisons are compared sequentially. Stores without a diff
+ * executor, like the memory store where there is no read latency to hide,
+ * compare all buckets sequentially.
+ */
+final class ConcurrentMapDiff {
+
+    /**
+     * Minimum size of a map for its buckets to be compared concurrently.
+     * Smaller maps are compared faster than the changes could be handed
+     * over between threads.
+     */
+    static final int MIN_SIZE = Integer.getInteger(
+            "oak.segment.diffConcurrentSize",
+            4 * BUCKETS_PER_LEVEL * BUCKETS_PER_LEVEL);
+
+    /**
+     * Marks the background comparisons, which compare nested branch
+     * records sequentially.
+     */
+    private static final ThreadLocal<Boolean> IN_BACKGROUND = new ThreadLocal<Boolean>();
+
+    private ConcurrentMapDiff() {
+    }
+
+    /**
+     * Checks whether the branch records of two maps of the given sizes
+     * should be compared concurrently with the given thread pool, which
+     * may be {@code null}.
+     */
+    static boolean isApplicable(
+            ExecutorService executor, int beforeSize, int afterSize) {
+        return executor != null
+                && Math.max(beforeSize, afterSize) >= MIN_SIZE
+                && IN_BACKGROUND.get() == null;
+    }
+
+    /**
+     * Compares the given branch records, with the same semantics as
+     * {@link MapRecord#compare(MapRecord, NodeStateDiff)}, using the
+     * given thread pool.
+     */
+    static boolean compareBranch(
+            MapRecord before, MapRecord after, NodeStateDiff diff,
+            ExecutorService executor, int threads) {
+        MapRecord[] beforeBuckets = before.getBuckets();
+        MapRecord[] afterBuckets = after.getBuckets();
+        Queue<BucketDiff> pending = newArrayDeque();
+        int next = 0;
+        try {
+            while (next < BUCKETS_PER_LEVEL || !pending.isEmpty()) {
+                while (next < BUCKETS_PER_LEVEL && pending.size() <= threads) {
+                    MapRecord beforeBucket = beforeBuckets[next];
+                    MapRecord afterBucket = afterBuckets[next];
+                    next++;
+                    if (!Record.fastEquals(beforeBucket, afterBucket)
+                            && (beforeBucket != null || afterBucket != null)) {
+                        pending.add(new BucketDiff(
+                                beforeBucket, afterBucket, executor));
+                    }
+                }
+                BucketDiff bucket = pending.poll();
+                if (bucket != null) {
+                    for (Change change : bucket.getChanges()) {
+                        if (!change.apply(diff)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        } finally {
+            for (BucketDiff bucket : pending) {
+                bucket.cancel();
+            }
+        }
+    }
+
+    /**
+     * Comparison of one pair of buckets, running in the background.
+     */
+    private static class BucketDiff implements Callable<List<Change>> {
+
+        private final MapRecord before;
+
+        private final MapRecord after;
+
+        private final Future<List<Change>> future;
+
+        BucketDiff(MapRecord before, MapRecord after, ExecutorService executor) {
+            this.before = before;
+            this.after = after;
+            Future<List<Change>> submitted;
+            try {
+                submitted = executor.submit(this);
+            } catch (RejectedExecutionException e) {
+                // the store is being closed, compare
+                // the bucket in the calling thread
+                submitted = null;
+            }
+            this.future = submitted;
+        }
+
+        @Override
+        public List<Change> call() {
+            List<Change> changes = newArrayList();
+            Boolean nested = IN_BACKGROUND.get();
+            IN_BACKGROUND.set(Boolean.TRUE);
+            try {
+                MapRecord.compareBucket(before, after, new Collector(changes));
+            } finally {
+                IN_BACKGROUND.set(nested);
+            }
+            return changes;
+        }
+
+        List<Change> getChanges() {
+            if (future == null) {
+                return call();
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                // don't wait any longer, but compare the
+                // bucket in the calling thread instead
+                Thread.currentThread().interrupt();
+                cancel();
+                return call();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+
+        void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+    }
+
+    /**
+     * A child node change found by a background comparison.
+     */
+    private static class Change {
+
+        private final String name;
+
+        private final NodeState before;
+
+        private final NodeState after;
+
+        Change(String name, NodeState before, NodeState after) {
+            this.name = name;
+            this.before = before;
+            this.after = after;
+        }
+
+        boolean apply(NodeStateDiff diff) {
+            if (before == null) {
+                return diff.childNodeAdded(name, after);
+            } else if (after == null) {
+                return diff.childNodeDeleted(name, before);
+            } else {
+                return diff.childNodeChanged(name, before, after);
+            }
+        }
+
+    }
+
+    private static class Collector extends DefaultNodeStateDiff {
+
+        private final List<Change> changes;
+
+        Collector(List<Change> changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        public boolean childNodeAdded(String name, NodeState after) {
+            changes.add(new Change(name, null, after));
+            return true;
+        }
+
+        @Override
+        public boolean childNodeChanged(
+                String name, NodeState before, NodeState after) {
+            changes.add(new Change(name, before, after));
+            return true;
+        }
+
+        @Override
+        public boolean childNodeDeleted(String name, NodeState before) {
+            changes.add(new Change(name, before, null));
+            return true;
+        }
+
+    }
+
+}
@@ -27,6 +27,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
@@ -172,21 +173,11 @@ class MapRecord extends Record {
         }
 
         int level = getLevel(head);
-        if (isBranch(size, level)) {
-            // this is an intermediate branch record
-            // check if a matching bucket exists, and recurse 
-            int bitmap = segment.readInt(getOffset(4));
-            int mask = (1 << BITS_PER_LEVEL) - 1;
-            int shift = 32 - (level + 1) * BITS_PER_LEVEL;
-            int index = (hash >> shift) & mask;
-            int bit = 1 << index;
-            if ((bitmap & bit) != 0) {
-                int ids = bitCount(bitmap & (bit - 1));
-                RecordId id = segment.readRecordId(getOffset(8, ids));
-                return new MapRecord(id).getEntry(name);
-            } else {
-                return null;
-            }
+        if (level > 0 || isBranch(size, level)) {
+            // this record is part of a large map, which are the ones
+            // most likely to be looked up repeatedly, so use the cached
+            // decoded record instead of parsing it again
+            return getBucket(segment, size, level).getEntry(name, hash);
         }
 
         // use interpolation search to find the matching entry in this map leaf
@@ -229,6 +220,40 @@ class MapRecord extends Record {
         return null;
     }
 
+    /**
+     * Returns the decoded form of this branch or leaf record from the map
+     * bucket cache of the tracker, decoding and caching it if needed.
+     */
+    private Bucket getBucket(Segment segment, int size, int level) {
+        RecordCache<Bucket> cache = getTracker().getMapBucketCache();
+        RecordId id = getRecordId();
+        Bucket bucket = cache.get(id);
+        if (bucket == null) {
+            if (isBranch(size, level)) {
+                int bitmap = segment.readInt(getOffset(4));
+                RecordId[] buckets = new RecordId[bitCount(bitmap)];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = segment.readRecordId(getOffset(8, i));
+                }
+                bucket = new Bucket(level, bitmap, buckets);
+            } else {
+                long[] hashes = new long[size];
+                String[] names = new String[size];
+                RecordId[] keys = new RecordId[size];
+                RecordId[] values = new RecordId[size];
+                for (int i = 0; i < size; i++) {
+                    hashes[i] = segment.readInt(getOffset(4 + i * 4)) & HASH_MASK;
+                    keys[i] = segment.readRecordId(getOffset(4 + size * 4, i * 2));
+                    values[i] = segment.readRecordId(getOffset(4 + size * 4, i * 2 + 1));
+                    names[i] = segment.readString(keys[i]);
+                }
+                bucket = new Bucket(hashes, names, keys, values);
+            }
+            cache.put(id, bucket);
+        }
+        return bucket;
+    }
+
     private RecordId getValue(int hash, RecordId key) {
         checkNotNull(key);
         Segment segment = getSegment();
@@ -467,6 +492,13 @@ class MapRecord extends Record {
         }
 
         if (isBranch(beforeHead) && isBranch(head)) {
+            ExecutorService executor = getTracker().getDiffExecutor();
+            if (ConcurrentMapDiff.isApplicable(
+                    executor, getSize(beforeHead), getSize(head))) {
+                return ConcurrentMapDiff.compareBranch(
+                        before, this, diff, executor,
+                        getTracker().getDiffThreads());
+            }
             return compareBranch(before, this, diff);
         }
 
@@ -538,36 +570,44 @@ class MapRecord extends Record {
         MapRecord[] beforeBuckets = before.getBuckets();
         MapRecord[] afterBuckets = after.getBuckets();
         for (int i = 0; i < BUCKETS_PER_LEVEL; i++) {
-            if (Objects.equal(beforeBuckets[i], afterBuckets[i])) {
-                // these buckets are equal (or both empty), so no changes
-            } else if (beforeBuckets[i] == null) {
-                // before bucket is empty, so all after entries were added
-                MapRecord bucket = afterBuckets[i];
-                for (MapEntry entry : bucket.getEntries()) {
-                    if (!diff.childNodeAdded(
-                            entry.getName(), entry.getNodeState())) {
-                        return false;
-                    }
-                }
-            } else if (afterBuckets[i] == null) {
-                // after bucket is empty, so all before entries were deleted
-                MapRecord bucket = beforeBuckets[i];
-                for (MapEntry entry : bucket.getEntries()) {
-                    if (!diff.childNodeDeleted(
-                            entry.getName(), entry.getNodeState())) {
-                        return false;
-                    }
+            if (!compareBucket(beforeBuckets[i], afterBuckets[i], diff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares two buckets at the same position of two branch records,
+     * either of which may be empty ({@code null}).
+     */
+    static boolean compareBucket(
+            MapRecord before, MapRecord after, NodeStateDiff diff) {
+        if (Objects.equal(before, after)) {
+            // these buckets are equal (or both empty), so no changes
+            return true;
+        } else if (before == null) {
+            // before bucket is empty, so all after entries were added
+            for (MapEntry entry : after.getEntries()) {
+                if (!diff.childNodeAdded(
+                        entry.getName(), entry.getNodeState())) {
+                    return false;
                 }
-            } else {
-                // both before and after buckets exist; compare recursively
-                MapRecord beforeBucket = beforeBuckets[i];
-                MapRecord afterBucket = afterBuckets[i];
-                if (!afterBucket.compare(beforeBucket, diff)) {
+            }
+            return true;
+        } else if (after == null) {
+            // after bucket is empty, so all before entries were deleted
+            for (MapEntry entry : before.getEntries()) {
+                if (!diff.childNodeDeleted(
+                        entry.getName(), entry.getNodeState())) {
                     return false;
                 }
             }
+            return true;
+        } else {
+            // both before and after buckets exist; compare recursively
+            return after.compare(before, diff);
         }
-        return true;
     }
 
     private static int getSize(int head) {
@@ -616,4 +656,119 @@ class MapRecord extends Record {
         }
     }
 
+    /**
+     * A decoded branch or leaf record of a map. Instances are immutable and
+     * kept in the map bucket cache of the {@link SegmentTracker}, so that
+     * repeated lookups in large maps don't need to parse the segment data
+     * and the keys of the entries again.
+     */
+    static final class Bucket {
+
+        /**
+         * Estimated memory of a record identifier and the reference to it.
+         */
+        private static final int RECORD_ID_MEMORY = 32;
+
+        private final boolean branch;
+
+        private final int level;
+
+        /**
+         * Bitmap of the non-empty buckets of a branch.
+         */
+        private final int bitmap;
+
+        /**
+         * Identifiers of the non-empty buckets of a branch.
+         */
+        private final RecordId[] buckets;
+
+        /**
+         * Unsigned hash codes of the entries of a leaf, in ascending order.
+         */
+        private final long[] hashes;
+
+        private final String[] names;
+
+        private final RecordId[] keys;
+
+        private final RecordId[] values;
+
+        Bucket(int level, int bitmap, RecordId[] buckets) {
+            this.branch = true;
+            this.level = level;
+            this.bitmap = bitmap;
+            this.buckets = buckets;
+            this.hashes = null;
+            this.names = null;
+            this.keys = null;
+            this.values = null;
+        }
+
+        Bucket(long[] hashes, String[] names, RecordId[] keys, RecordId[] values) {
+            this.branch = false;
+            this.level = -1;
+            this.bitmap = 0;
+            this.buckets = null;
+            this.hashes = hashes;
+            this.names = names;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        /**
+         * @return  estimated memory used by this bucket in bytes
+         */
+        int getMemory() {
+            if (branch) {
+                return 48 + buckets.length * RECORD_ID_MEMORY;
+            }
+            int memory = 96 + hashes.length * (8 + 2 * RECORD_ID_MEMORY);
+            for (String name : names) {
+                memory += 48 + name.length() * 2;
+            }
+            return memory;
+        }
+
+        MapEntry getEntry(String name, int hash) {
+            if (branch) {
+                int mask = (1 << BITS_PER_LEVEL) - 1;
+                int shift = 32 - (level + 1) * BITS_PER_LEVEL;
+                int bit = 1 << ((hash >> shift) & mask);
+                if ((bitmap & bit) != 0) {
+                    RecordId id = buckets[bitCount(bitmap & (bit - 1))];
+                    return new MapRecord(id).getEntry(name);
+                } else {
+                    return null;
+                }
+            }
+
+            // entries are ordered by hash code first, then by name
+            long h = hash & HASH_MASK;
+            int p = 0;
+            int q = hashes.length - 1;
+            while (p <= q) {
+                int i = (p + q) >>> 1;
+                int diff;
+                if (hashes[i] < h) {
+                    diff = -1;
+                } else if (hashes[i] > h) {
+                    diff = 1;
+                } else {
+                    diff = names[i].compareTo(name);
+                }
+
+                if (diff < 0) {
+                    p = i + 1;
+                } else if (diff > 0) {
+                    q = i - 1;
+                } else {
+                    return new MapEntry(name, keys[i], values[i]);
+                }
+            }
+            return null;
+        }
+
+    }
+
 }
@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Sets.newSetFromMap;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.MAX_SEGMENT_SIZE;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.MapMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Slab allocator for keeping segment data outside of the Java heap.
+ * <p>
+ * Memory is reserved in direct slabs of {@link #SLAB_SIZE} bytes, each of
+ * which is split into equally sized chunks of one of the power of two size
+ * classes between {@link #MIN_CHUNK_SIZE} and {@link Segment#MAX_SEGMENT_SIZE}.
+ * {@link #allocate(int)} hands out a new buffer for a free chunk, and the
+ * chunk goes back to the free list of its size class once that buffer,
+ * after it has been {@link #register(ByteBuffer) registered}, has become
+ * unreachable. Reclamation is tied to the buffer rather than to the
+ * {@link Segment} using it: the segment might become unreachable while
+ * one of its methods is still reading from the buffer. For the same
+ * reason the buffer must not be duplicated or sliced, as such views
+ * could outlive it and read memory already reused by another segment.
+ * The chunk can't be released as soon as the segment is evicted from the
+ * {@link SegmentTracker} cache, as records and streams might still be
+ * reading from it.
+ * <p>
+ * Once the configured maximum size is reached, {@link #allocate(int)}
+ * returns {@code null} and callers fall back to heap buffers.
+ */
+public class OffHeapSegmentAllocator {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(OffHeapSegmentAllocator.class);
+
+    private static final int MB = 1024 * 1024;
+
+    /**
+     * Size of the smallest chunk, must be a power of two.
+     */
+    static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+    /**
+     * Size of a slab, must be a multiple of the largest chunk size.
+     */
+    static final int SLAB_SIZE = MB;
+
+    private static final int MIN_CHUNK_BITS =
+            Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+
+    private static final int SIZE_CLASSES =
+            Integer.numberOfTrailingZeros(MAX_SEGMENT_SIZE) - MIN_CHUNK_BITS + 1;
+
+    private final long maxSize;
+
+    /**
+     * Free chunks of each size class.
+     */
+    @SuppressWarnings("unchecked")
+    private final Queue<ByteBuffer>[] free = new Queue[SIZE_CLASSES];
+
+    /**
+     * Buffers handed out by {@link #allocate(int)} that are not yet
+     * registered, mapped to their chunks. Compared by identity.
+     */
+    private final ConcurrentMap<ByteBuffer, ByteBuffer> pending =
+            new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Strong references to the phantom references of the registered buffers,
+     * which would otherwise be garbage collected along with the buffers.
+     */
+    private final Set<Chunk> chunks =
+            newSetFromMap(new MapMaker().<Chunk, Boolean>makeMap());
+
+    private final ReferenceQueue<ByteBuffer> released = new ReferenceQueue<ByteBuffer>();
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * @param maxSizeMB  maximum amount of off-heap memory to reserve, in MB
+     */
+    public OffHeapSegmentAllocator(int maxSizeMB) {
+        checkArgument(maxSizeMB > 0);
+        this.maxSize = maxSizeMB * (long) MB;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Allocates an off-heap buffer for segment data of the given length. The
+     * returned buffer must either be {@link #register(ByteBuffer) registered}
+     * once it is in use or explicitly {@link #release(ByteBuffer) released}.
+     *
+     * @param length  number of bytes
+     * @return  a buffer positioned at zero and limited to {@code length},
+     *          or {@code null} if the maximum size has been reached
+     */
+    @CheckForNull
+    public ByteBuffer allocate(int length) {
+        checkArgument(length > 0 && length <= MAX_SEGMENT_SIZE);
+        expunge();
+
+        int sizeClass = getSizeClass(length);
+        ByteBuffer chunk = free[sizeClass].poll();
+        if (chunk == null) {
+            chunk = allocateSlab(sizeClass);
+        }
+        if (chunk == null) {
+            fallbacks.incrementAndGet();
+            return null;
+        }
+
+        ByteBuffer buffer = chunk.duplicate();
+        buffer.clear();
+        buffer.limit(length);
+        used.addAndGet(chunk.capacity());
+        pending.put(buffer, chunk);
+        return buffer;
+    }
+
+    /**
+     * Marks the given buffer as in use. Its chunk is returned to the
+     * allocator once the buffer has been garbage collected. Buffers not
+     * allocated by this allocator are ignored.
+     *
+     * @param buffer  buffer returned from {@link #allocate(int)}
+     */
+    public void register(@Nonnull ByteBuffer buffer) {
+        ByteBuffer chunk = pending.remove(buffer);
+        if (chunk != null) {
+            chunks.add(new Chunk(buffer, chunk, released));
+        }
+    }
+
+    /**
+     * Returns the given buffer to the allocator. Only to be used for buffers
+     * that were not registered with an owner, for example because reading
+     * the segment data failed. Buffers not allocated by this allocator are
+     * ignored.
+     *
+     * @param buffer  buffer returned from {@link #allocate(int)}
+     */
+    public void release(@Nonnull ByteBuffer buffer) {
+        ByteBuffer chunk = pending.remove(buffer);
+        if (chunk != null) {
+            free(chunk);
+        }
+    }
+
+    /**
+     * @return  amount of off-heap memory reserved by this allocator, in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return  amount of reserved off-heap memory currently in use, in bytes
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return  number of allocations that failed because the maximum
+     *          size had been reached
+     */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapSegmentAllocator{size=" + size.get()
+                + ", used=" + used.get()
+                + ", maxSize=" + maxSize
+                + ", fallbacks=" + fallbacks.get() + '}';
+    }
+
+    //-----------------------------------------------------------< private >--
+
+    private static int getSizeClass(int length) {
+        int bits = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return Math.max(bits - MIN_CHUNK_BITS, 0);
+    }
+
+    /**
+     * Reserves a new slab, splits it into chunks of the given size class
+     * and returns one of them.
+     *
+     * @return  a chunk, or {@code null} if the maximum size has been reached
+     */
+    @CheckForNull
+    private ByteBuffer allocateSlab(int sizeClass) {
+        long current;
+        do {
+            current = size.get();
+            if (current + SLAB_SIZE > maxSize) {
+                return null;
+            }
+        } while (!size.compareAndSet(current, current + SLAB_SIZE));
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        int chunkSize = MIN_CHUNK_SIZE << sizeClass;
+        for (int pos = chunkSize; pos < SLAB_SIZE; pos += chunkSize) {
+            slab.limit(pos + chunkSize).position(pos);
+            free[sizeClass].add(slab.slice());
+        }
+        slab.limit(chunkSize).position(0);
+        log.debug("Reserved slab of {} chunks of {} bytes ({})",
+                SLAB_SIZE / chunkSize, chunkSize, this);
+        return slab.slice();
+    }
+
+    private void free(ByteBuffer chunk) {
+        used.addAndGet(-chunk.capacity());
+        free[getSizeClass(chunk.capacity())].add(chunk);
+    }
+
+    /**
+     * Returns the chunks of all buffers that have been garbage collected
+     * to their free lists.
+     */
+    private void expunge() {
+        Chunk chunk = (Chunk) released.poll();
+        while (chunk != null) {
+            if (chunks.remove(chunk)) {
+                free(chunk.chunk);
+            }
+            chunk = (Chunk) released.poll();
+        }
+    }
+
+    private static class Chunk extends PhantomReference<ByteBuffer> {
+
+        /**
+         * The chunk of the buffer, which must not reference the buffer.
+         */
+        private final ByteBuffer chunk;
+
+        Chunk(ByteBuffer buffer, ByteBuffer chunk, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.chunk = chunk;
+        }
+
+    }
+
+}
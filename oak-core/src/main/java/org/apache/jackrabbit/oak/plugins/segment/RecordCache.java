@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.common.cache.Weigher;
+import org.apache.jackrabbit.oak.cache.CacheLIRS;
+import org.apache.jackrabbit.oak.cache.CacheStats;
+
+/**
+ * Cache of records decoded from segments, keyed by their record identifier
+ * and bounded by the estimated memory of the decoded records. Records are
+ * immutable, so cached entries never need to be invalidated for correctness.
+ * Decoding a record that is missing from the cache is left to the caller, so
+ * concurrent loads never block each other.
+ * <p>
+ * The cached entries reference the identifiers of the segments they were
+ * read from, which keeps these identifiers in the {@link SegmentTracker}.
+ * The caches are therefore {@link #clear() cleared} before revision cleanup
+ * collects the referenced segments.
+ *
+ * @param <T> type of the decoded records
+ */
+class RecordCache<T> {
+
+    /**
+     * Number of independently locked stripes of the cache.
+     */
+    private static final int STRIPES = 16;
+
+    private final CacheLIRS<RecordId, T> cache;
+
+    private final CacheStats stats;
+
+    /**
+     * Assumed average memory of a decoded record in bytes.
+     */
+    private static final int AVERAGE_WEIGHT = 256;
+
+    /**
+     * @param name       name of the cache, used for its statistics
+     * @param maxWeight  maximum memory of the cached records in bytes
+     * @param weigher    estimates the memory of a cached record
+     */
+    RecordCache(@Nonnull String name, long maxWeight,
+            @Nonnull Weigher<RecordId, T> weigher) {
+        this.cache = CacheLIRS.newBuilder()
+                .weigher(weigher)
+                .maximumWeight(Math.max(maxWeight, 1))
+                .averageWeight(AVERAGE_WEIGHT)
+                .segmentCount(STRIPES)
+                .build();
+        this.stats = new CacheStats(cache, name, weigher, maxWeight);
+    }
+
+    @CheckForNull
+    T get(@Nonnull RecordId id) {
+        return cache.getIfPresent(id);
+    }
+
+    void put(@Nonnull RecordId id, @Nonnull T record) {
+        cache.put(id, record);
+    }
+
+    void clear() {
+        cache.invalidateAll();
+    }
+
+    @Nonnull
+    CacheStats getStats() {
+        return stats;
+    }
+
+}
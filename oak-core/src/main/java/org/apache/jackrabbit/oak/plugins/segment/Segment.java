@@ -30,8 +30,6 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
@@ -45,8 +43,8 @@ import org.apache.jackrabbit.oak.plugins.memory.PropertyStates;
 /**
  * A list of records.
  * <p>
- * Record data is not kept in memory, but some entries are cached (templates,
- * all strings in the segment).
+ * Record data is not kept in memory, but some entries are cached (all strings
+ * in the segment). Templates are cached by the {@link SegmentTracker}.
  * <p>
  * This class includes method to read records from the raw bytes.
  */
@@ -103,6 +101,12 @@ public class Segment {
 
     static int BLOBREF_COUNT_OFFSET = 8;
 
+    /**
+     * Only every 16th access to a segment is reported to the tracker, which
+     * is enough to keep frequently used segments in its cache.
+     */
+    private static final int ACCESS_SAMPLE_MASK = 0xf;
+
     private final SegmentTracker tracker;
 
     private final SegmentId id;
@@ -127,12 +131,11 @@ public class Segment {
     private final ConcurrentMap<Integer, String> strings = newConcurrentMap();
 
     /**
-     * Template records read from segment. Used to avoid duplicate
-     * copies and repeated parsing of the same templates.
+     * Number of accesses to this segment. Not thread-safe on purpose, as
+     * it is only used for sampling accesses that are reported back to the
+     * segment cache of the tracker.
      */
-    private final ConcurrentMap<Integer, Template> templates = newConcurrentMap();
-
-    private volatile long accessed = 0;
+    private int accessed = 0;
 
     public Segment(SegmentTracker tracker, SegmentId id, ByteBuffer data) {
         this(tracker, id, data, V_11);
@@ -167,12 +170,9 @@ public class Segment {
     }
 
     void access() {
-        accessed++;
-    }
-
-    boolean accessed() {
-        accessed >>>= 1;
-        return accessed != 0;
+        if ((++accessed & ACCESS_SAMPLE_MASK) == 0) {
+            tracker.segmentAccessed(id);
+        }
     }
 
     SegmentVersion getSegmentVersion() {
@@ -278,10 +278,17 @@ public class Segment {
      * @throws IOException on an IO error
      */
     public void writeTo(OutputStream stream) throws IOException {
-        ByteBuffer buffer = data.duplicate();
-        WritableByteChannel channel = Channels.newChannel(stream);
-        while (buffer.hasRemaining()) {
-            channel.write(buffer);
+        if (data.hasArray()) {
+            stream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            int pos = data.position();
+            while (pos < data.limit()) {
+                int n = Math.min(buffer.length, data.limit() - pos);
+                get(pos, buffer, 0, n);
+                stream.write(buffer, 0, n);
+                pos += n;
+            }
         }
     }
 
@@ -328,9 +335,23 @@ public class Segment {
     void readBytes(int position, byte[] buffer, int offset, int length) {
         checkNotNull(buffer);
         checkPositionIndexes(offset, offset + length, buffer.length);
-        ByteBuffer d = data.duplicate();
-        d.position(pos(position, length));
-        d.get(buffer, offset, length);
+        get(pos(position, length), buffer, offset, length);
+    }
+
+    /**
+     * Copies bytes from the given absolute position of {@link #data}.
+     * Off-heap data is read without creating a duplicate or slice of the
+     * buffer, as the memory of such a view can be reused by another segment
+     * once the buffer itself has been garbage collected.
+     */
+    private void get(int pos, byte[] buffer, int offset, int length) {
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + pos, buffer, offset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer[offset + i] = data.get(pos + i);
+            }
+        }
     }
 
     RecordId readRecordId(int offset) {
@@ -362,15 +383,11 @@ public class Segment {
         long length = internalReadLength(pos);
         if (length < SMALL_LIMIT) {
             byte[] bytes = new byte[(int) length];
-            ByteBuffer buffer = data.duplicate();
-            buffer.position(pos + 1);
-            buffer.get(bytes);
+            get(pos + 1, bytes, 0, bytes.length);
             return new String(bytes, Charsets.UTF_8);
         } else if (length < MEDIUM_LIMIT) {
             byte[] bytes = new byte[(int) length];
-            ByteBuffer buffer = data.duplicate();
-            buffer.position(pos + 2);
-            buffer.get(bytes);
+            get(pos + 2, bytes, 0, bytes.length);
             return new String(bytes, Charsets.UTF_8);
         } else if (length < Integer.MAX_VALUE) {
             int size = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
@@ -393,14 +410,11 @@ public class Segment {
     }
 
     Template readTemplate(final RecordId id) {
-        return id.getSegment().readTemplate(id.getOffset());
-    }
-
-    private Template readTemplate(int offset) {
-        Template template = templates.get(offset);
+        RecordCache<Template> cache = tracker.getTemplateCache();
+        Template template = cache.get(id);
         if (template == null) {
-            template = loadTemplate(offset);
-            templates.putIfAbsent(offset, template); // only keep the first copy
+            template = id.getSegment().loadTemplate(id.getOffset());
+            cache.put(id, template);
         }
         return template;
     }
@@ -117,6 +117,14 @@ public class SegmentId implements Comparable<SegmentId> {
         this.segment = segment;
     }
 
+    /**
+     * Drops the reference to the segment object without synchronization.
+     * Used by the segment tracker when evicting the segment from its cache.
+     */
+    void unloadSegment() {
+        this.segment = null;
+    }
+
     public SegmentTracker getTracker() {
         return tracker;
     }
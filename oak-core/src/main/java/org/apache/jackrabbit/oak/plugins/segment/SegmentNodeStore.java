@@ -156,15 +156,22 @@ public class SegmentNodeStore implements NodeStore, Observable {
         SegmentNodeBuilder snb = (SegmentNodeBuilder) builder;
 
         try {
+            NodeState merged;
             commitSemaphore.acquire();
             try {
                 Commit commit = new Commit(snb, commitHook, info);
-                NodeState merged = commit.execute();
+                merged = commit.execute();
                 snb.reset(merged);
-                return merged;
             } finally {
                 commitSemaphore.release();
             }
+            // wait for durability outside of the commit semaphore,
+            // so that concurrent commits can share a single flush
+            store.awaitPersisted();
+            return merged;
+        } catch (IOException e) {
+            throw new CommitFailedException(
+                    "Segment", 4, "Merged changes could not be persisted", e);
         } catch (InterruptedException e) {
             throw new CommitFailedException(
                     "Segment", 2, "Merge interrupted", e);
@@ -19,9 +19,11 @@ package org.apache.jackrabbit.oak.plugins.segment;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.Collections.emptyMap;
 import static org.apache.jackrabbit.oak.commons.PropertiesUtil.toBoolean;
+import static org.apache.jackrabbit.oak.commons.PropertiesUtil.toInteger;
 import static org.apache.jackrabbit.oak.commons.PropertiesUtil.toLong;
 import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.CLEANUP_DEFAULT;
 import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.CLONE_BINARIES_DEFAULT;
+import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.COMPACTION_THREADS_DEFAULT;
 import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.MEMORY_THRESHOLD_DEFAULT;
 import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.PAUSE_DEFAULT;
 import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.TIMESTAMP_DEFAULT;
@@ -46,7 +48,9 @@ import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.jackrabbit.oak.api.jmx.CacheStatsMBean;
 import org.apache.jackrabbit.oak.api.jmx.CheckpointMBean;
+import org.apache.jackrabbit.oak.cache.CacheStats;
 import org.apache.jackrabbit.oak.osgi.ObserverTracker;
 import org.apache.jackrabbit.oak.osgi.OsgiWhiteboard;
 import org.apache.jackrabbit.oak.plugins.blob.BlobGC;
@@ -63,7 +67,10 @@ import org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategyMB
 import org.apache.jackrabbit.oak.plugins.segment.compaction.DefaultCompactionStrategyMBean;
 import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
 import org.apache.jackrabbit.oak.plugins.segment.file.FileStore.Builder;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore.Durability;
 import org.apache.jackrabbit.oak.plugins.segment.file.FileStoreGCMonitor;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStoreStats;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStoreStatsMBean;
 import org.apache.jackrabbit.oak.plugins.segment.file.GCMonitorMBean;
 import org.apache.jackrabbit.oak.spi.blob.BlobStore;
 import org.apache.jackrabbit.oak.spi.blob.GarbageCollectableBlobStore;
@@ -129,6 +136,46 @@ public class SegmentNodeStoreService extends ProxyNodeStore
     )
     public static final String CACHE = "cache";
 
+    @Property(
+            intValue = 0,
+            label = "Off Heap Size (MB)",
+            description = "Maximum amount of memory for keeping segments read from tar files " +
+                    "off heap when memory mapping is not used (tarmk.mode=32). Segments are kept " +
+                    "on the heap once this is exhausted. 0 keeps all segments on the heap"
+    )
+    public static final String OFF_HEAP_SIZE = "tarmk.offHeapSize";
+
+    @Property(
+            intValue = 1,
+            label = "Concurrent Writers",
+            description = "Number of segment writers, each with its own segment buffer. " +
+                    "Concurrent commits are spread over the writers so that write " +
+                    "throughput scales with the number of writing threads"
+    )
+    public static final String WRITERS = "tarmk.writers";
+
+    @Property(options = {
+            @PropertyOption(name = "ASYNC", value = "ASYNC"),
+            @PropertyOption(name = "WINDOW", value = "WINDOW"),
+            @PropertyOption(name = "COMMIT", value = "COMMIT") },
+            value = "ASYNC",
+            label = "Durability",
+            description = "Durability guarantee for commits. " +
+                    "1. ASYNC: changes are persisted in the background every five seconds, " +
+                    "2. WINDOW: commits wait until persisted, concurrent commits within the " +
+                    "group commit window share one flush (tarmk.groupCommitWindow), " +
+                    "3. COMMIT: commits wait until persisted, which is done immediately"
+    )
+    public static final String DURABILITY = "tarmk.durability";
+
+    @Property(
+            intValue = FileStore.GROUP_COMMIT_WINDOW_DEFAULT,
+            label = "Group Commit Window (ms)",
+            description = "Time in ms a commit waits for other commits to share a flush with " +
+                    "when the durability is set to WINDOW"
+    )
+    public static final String GROUP_COMMIT_WINDOW = "tarmk.groupCommitWindow";
+
     @Property(
             boolValue = CLONE_BINARIES_DEFAULT,
             label = "Clone Binaries",
@@ -172,6 +219,13 @@ public class SegmentNodeStoreService extends ProxyNodeStore
     )
     public static final String PAUSE_COMPACTION = "pauseCompaction";
 
+    @Property(
+            intValue = COMPACTION_THREADS_DEFAULT,
+            label = "Compaction Threads",
+            description = "Number of threads used for compacting the repository content"
+    )
+    public static final String COMPACTION_THREADS = "compaction.threads";
+
     @Property(
             boolValue = false,
             label = "Standby Mode",
@@ -211,6 +265,8 @@ public class SegmentNodeStoreService extends ProxyNodeStore
     private Registration blobGCRegistration;
     private Registration compactionStrategyRegistration;
     private Registration fsgcMonitorMBean;
+    private Registration fileStoreStatsMBean;
+    private Registration segmentCacheMBean;
     private WhiteboardExecutor executor;
     private boolean customBlobStore;
 
@@ -278,6 +334,27 @@ public class SegmentNodeStoreService extends ProxyNodeStore
             cache = System.getProperty(CACHE);
         }
 
+        String offHeapSize = lookup(context, OFF_HEAP_SIZE);
+        if (offHeapSize == null) {
+            offHeapSize = System.getProperty(OFF_HEAP_SIZE, "0");
+        }
+
+        String writers = lookup(context, WRITERS);
+        if (writers == null) {
+            writers = System.getProperty(WRITERS, "1");
+        }
+
+        String durability = lookup(context, DURABILITY);
+        if (durability == null) {
+            durability = System.getProperty(DURABILITY, Durability.ASYNC.toString());
+        }
+
+        String groupCommitWindow = lookup(context, GROUP_COMMIT_WINDOW);
+        if (groupCommitWindow == null) {
+            groupCommitWindow = System.getProperty(GROUP_COMMIT_WINDOW,
+                    String.valueOf(FileStore.GROUP_COMMIT_WINDOW_DEFAULT));
+        }
+
         boolean pauseCompaction = toBoolean(lookup(context, PAUSE_COMPACTION),
                 PAUSE_DEFAULT);
         boolean cloneBinaries = toBoolean(
@@ -305,6 +382,8 @@ public class SegmentNodeStoreService extends ProxyNodeStore
                 return delegate.locked(setHead);
             }
         };
+        compactionStrategy.setCompactionThreads(toInteger(
+                lookup(context, COMPACTION_THREADS), COMPACTION_THREADS_DEFAULT));
 
         OsgiWhiteboard whiteboard = new OsgiWhiteboard(context.getBundleContext());
         gcMonitor = new GCMonitorTracker();
@@ -313,15 +392,21 @@ public class SegmentNodeStoreService extends ProxyNodeStore
                 .withCacheSize(Integer.parseInt(cache))
                 .withMaxFileSize(Integer.parseInt(size))
                 .withMemoryMapping("64".equals(mode))
+                .withOffHeapSize(Integer.parseInt(offHeapSize))
+                .withConcurrentWriters(Integer.parseInt(writers))
+                .withDurability(Durability.valueOf(durability))
+                .withGroupCommitWindow(Integer.parseInt(groupCommitWindow))
                 .withGCMonitor(gcMonitor);
+        FileStore fileStore;
         if (customBlobStore) {
             log.info("Initializing SegmentNodeStore with BlobStore [{}]", blobStore);
-            store = storeBuilder.withBlobStore(blobStore).create()
+            fileStore = storeBuilder.withBlobStore(blobStore).create()
                     .setCompactionStrategy(compactionStrategy);
         } else {
-            store = storeBuilder.create()
+            fileStore = storeBuilder.create()
                     .setCompactionStrategy(compactionStrategy);
         }
+        store = fileStore;
 
         FileStoreGCMonitor fsgcMonitor = new FileStoreGCMonitor(Clock.SIMPLE);
         fsgcMonitorMBean = new CompositeRegistration(
@@ -330,6 +415,23 @@ public class SegmentNodeStoreService extends ProxyNodeStore
                         "File Store garbage collection monitor"),
                 scheduleWithFixedDelay(whiteboard, fsgcMonitor, 1));
 
+        fileStoreStatsMBean = registerMBean(whiteboard, FileStoreStatsMBean.class,
+                new FileStoreStats(fileStore), FileStoreStatsMBean.TYPE, "File Store statistics");
+
+        CacheStats segmentCacheStats = store.getTracker().getSegmentCacheStats();
+        CacheStats templateCacheStats = store.getTracker().getTemplateCacheStats();
+        CacheStats mapBucketCacheStats = store.getTracker().getMapBucketCacheStats();
+        segmentCacheMBean = new CompositeRegistration(
+                registerMBean(whiteboard, CacheStatsMBean.class,
+                        segmentCacheStats, CacheStatsMBean.TYPE,
+                        segmentCacheStats.getName()),
+                registerMBean(whiteboard, CacheStatsMBean.class,
+                        templateCacheStats, CacheStatsMBean.TYPE,
+                        templateCacheStats.getName()),
+                registerMBean(whiteboard, CacheStatsMBean.class,
+                        mapBucketCacheStats, CacheStatsMBean.TYPE,
+                        mapBucketCacheStats.getName()));
+
         delegate = new SegmentNodeStore(store);
         observerTracker = new ObserverTracker(delegate);
         observerTracker.start(context.getBundleContext());
@@ -448,6 +550,14 @@ public class SegmentNodeStoreService extends ProxyNodeStore
             fsgcMonitorMBean.unregister();
             fsgcMonitorMBean = null;
         }
+        if (fileStoreStatsMBean != null) {
+            fileStoreStatsMBean.unregister();
+            fileStoreStatsMBean = null;
+        }
+        if (segmentCacheMBean != null) {
+            segmentCacheMBean.unregister();
+            segmentCacheMBean = null;
+        }
         if (executor != null) {
             executor.stop();
             executor = null;
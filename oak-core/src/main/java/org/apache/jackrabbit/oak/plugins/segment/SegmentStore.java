@@ -16,6 +16,8 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment;
 
+import java.io.IOException;
+
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
@@ -87,4 +89,14 @@ public interface SegmentStore {
      */
     void gc();
 
+    /**
+     * Waits until the current head state has been persisted, as far as
+     * required by the durability guarantee of this store. Stores without
+     * such a guarantee return immediately.
+     *
+     * @throws IOException if the head state could not be persisted
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitPersisted() throws IOException, InterruptedException;
+
 }
@@ -16,19 +16,31 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment;
 
-import static com.google.common.collect.Lists.newLinkedList;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Queues.newArrayDeque;
 import static com.google.common.collect.Sets.newHashSet;
 import static com.google.common.collect.Sets.newIdentityHashSet;
 
 import java.security.SecureRandom;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.ForwardingCache.SimpleForwardingCache;
+import com.google.common.cache.Weigher;
+import org.apache.jackrabbit.oak.cache.CacheLIRS;
+import org.apache.jackrabbit.oak.cache.CacheLIRS.EvictionCallback;
+import org.apache.jackrabbit.oak.cache.CacheStats;
 import org.apache.jackrabbit.oak.plugins.blob.ReferenceCollector;
 import org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy;
 import org.slf4j.Logger;
@@ -58,7 +70,60 @@ public class SegmentTracker {
 
     private static final int MB = 1024 * 1024;
 
-    private static final int DEFAULT_MEMORY_CACHE_SIZE = 256;
+    public static final int DEFAULT_MEMORY_CACHE_SIZE = 256;
+
+    /**
+     * Maximum memory in MB of the decoded templates and map buckets kept
+     * in the respective record caches.
+     */
+    private static final int RECORD_CACHE_SIZE_MB =
+            Integer.getInteger("oak.segment.recordCacheSizeMB", 16);
+
+    /**
+     * Estimated memory of a record cache entry, excluding the record.
+     */
+    private static final int RECORD_CACHE_ENTRY_OVERHEAD = 96;
+
+    private static final Weigher<RecordId, Template> TEMPLATE_WEIGHER =
+            new Weigher<RecordId, Template>() {
+                @Override
+                public int weigh(RecordId id, Template template) {
+                    return RECORD_CACHE_ENTRY_OVERHEAD + template.getMemory();
+                }
+            };
+
+    private static final Weigher<RecordId, MapRecord.Bucket> BUCKET_WEIGHER =
+            new Weigher<RecordId, MapRecord.Bucket>() {
+                @Override
+                public int weigh(RecordId id, MapRecord.Bucket bucket) {
+                    return RECORD_CACHE_ENTRY_OVERHEAD + bucket.getMemory();
+                }
+            };
+
+    /**
+     * Number of independently locked stripes of the segment cache.
+     */
+    private static final int SEGMENT_CACHE_STRIPES = 16;
+
+    private static final Weigher<UUID, Segment> SEGMENT_WEIGHER =
+            new Weigher<UUID, Segment>() {
+                @Override
+                public int weigh(UUID id, Segment segment) {
+                    return (int) segment.getCacheSize();
+                }
+            };
+
+    private static final EvictionCallback<UUID, Segment> SEGMENT_EVICTION =
+            new EvictionCallback<UUID, Segment>() {
+                @Override
+                public void evicted(UUID id, Segment segment) {
+                    // called with the cache stripe locked, so use the
+                    // non-blocking variant to avoid lock order issues
+                    // with threads loading segments
+                    segment.getSegmentId().unloadSegment();
+                    log.debug("Removed segment {} from tracker cache", id);
+                }
+            };
 
     /**
      * The random number source for generating new segment identifiers.
@@ -67,7 +132,12 @@ public class SegmentTracker {
 
     private final SegmentStore store;
 
-    private final SegmentWriter writer;
+    /**
+     * Segment writers, each with its own segment buffer. Threads are
+     * spread over the writers by their thread id, so that concurrent
+     * commits don't contend on a single segment buffer.
+     */
+    private final SegmentWriter[] writers;
 
     /**
      * Serialized map that contains the link between old record
@@ -89,23 +159,83 @@ public class SegmentTracker {
      */
     private final SegmentIdTable[] tables = new SegmentIdTable[32];
 
-    private final LinkedList<Segment> segments = newLinkedList();
+    /**
+     * Cache of recently used segments, weighted by their memory footprint.
+     * Segments evicted from this cache are also unlinked from their
+     * {@link SegmentId} so that they can be garbage collected. The cache
+     * is keyed by {@link UUID} rather than {@link SegmentId}, as it also
+     * keeps the keys of recently evicted (non-resident) entries, which
+     * would otherwise keep the identifiers in the {@link SegmentIdTable}s
+     * and thus report them as referenced to the revision cleanup.
+     */
+    private final CacheLIRS<UUID, Segment> segments;
+
+    private final CacheStats segmentCacheStats;
+
+    /**
+     * Cache of decoded template records.
+     */
+    private final RecordCache<Template> templateCache =
+            new RecordCache<Template>("Segment-Template-Cache",
+                    RECORD_CACHE_SIZE_MB * (long) MB, TEMPLATE_WEIGHER);
+
+    /**
+     * Cache of decoded map buckets of large maps.
+     */
+    private final RecordCache<MapRecord.Bucket> mapBucketCache =
+            new RecordCache<MapRecord.Bucket>("Segment-MapBucket-Cache",
+                    RECORD_CACHE_SIZE_MB * (long) MB, BUCKET_WEIGHER);
+
+    /**
+     * Thread pool of the store for comparing the buckets of large maps
+     * concurrently, or {@code null} if they are compared sequentially.
+     */
+    private volatile ExecutorService diffExecutor;
 
-    private long currentSize = 0;
+    private volatile int diffThreads;
 
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong loadTime = new AtomicLong();
+
+    /**
+     * @param store        segment store
+     * @param cacheSizeMB  size of the segment cache in MB
+     * @param version      segment version to write
+     * @param writerCount  number of concurrent segment writers
+     */
     public SegmentTracker(SegmentStore store, int cacheSizeMB,
-            SegmentVersion version) {
+            SegmentVersion version, int writerCount) {
+        checkArgument(writerCount > 0);
         for (int i = 0; i < tables.length; i++) {
             tables[i] = new SegmentIdTable(this);
         }
 
         this.store = store;
-        this.writer = new SegmentWriter(store, this, version);
-        this.cacheSize = cacheSizeMB * MB;
+        this.writers = new SegmentWriter[writerCount];
+        for (int i = 0; i < writerCount; i++) {
+            writers[i] = new SegmentWriter(store, this, version);
+        }
+        this.cacheSize = cacheSizeMB * (long) MB;
+        this.segments = CacheLIRS.newBuilder()
+                .weigher(SEGMENT_WEIGHER)
+                .maximumWeight(Math.max(cacheSize, 1))
+                .averageWeight(Segment.MAX_SEGMENT_SIZE)
+                .segmentCount(SEGMENT_CACHE_STRIPES)
+                .evictionCallback(SEGMENT_EVICTION)
+                .build();
+        this.segmentCacheStats = new CacheStats(
+                new LoadStatsCache(segments), "Segment-Cache",
+                SEGMENT_WEIGHER, cacheSize);
         this.compactionMap = new AtomicReference<CompactionMap>(
                 new CompactionMap(1, this));
     }
 
+    public SegmentTracker(SegmentStore store, int cacheSizeMB,
+            SegmentVersion version) {
+        this(store, cacheSizeMB, version, 1);
+    }
+
     public SegmentTracker(SegmentStore store, SegmentVersion version) {
         this(store, DEFAULT_MEMORY_CACHE_SIZE, version);
     }
@@ -114,17 +244,78 @@ public class SegmentTracker {
         this(store, DEFAULT_MEMORY_CACHE_SIZE, SegmentVersion.V_11);
     }
 
+    /**
+     * Returns the segment writer to be used by the current thread.
+     *
+     * @return segment writer
+     */
     public SegmentWriter getWriter() {
-        return writer;
+        if (writers.length == 1) {
+            return writers[0];
+        }
+        long thread = Thread.currentThread().getId();
+        return writers[(int) (thread % writers.length)];
+    }
+
+    /**
+     * Flushes the segment buffers of all writers to the store. Segments
+     * written by one writer may reference records in the not yet flushed
+     * segment of another one, so all of them need to be flushed before
+     * any of these records can be considered persisted.
+     */
+    public void flushWriters() {
+        for (SegmentWriter writer : writers) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Drops the record deduplication caches of all writers.
+     */
+    public void dropWriterCaches() {
+        for (SegmentWriter writer : writers) {
+            writer.dropCache();
+        }
     }
 
     public SegmentStore getStore() {
         return store;
     }
 
+    /**
+     * Sets the thread pool for comparing the buckets of large maps
+     * concurrently. The pool is owned by the store, which shuts it
+     * down when it is closed.
+     *
+     * @param executor  thread pool, or {@code null} to compare sequentially
+     * @param threads   number of threads of the pool
+     */
+    public void setDiffExecutor(@Nullable ExecutorService executor, int threads) {
+        checkArgument(executor == null || threads > 0);
+        this.diffThreads = threads;
+        this.diffExecutor = executor;
+    }
+
+    @CheckForNull
+    ExecutorService getDiffExecutor() {
+        return diffExecutor;
+    }
+
+    int getDiffThreads() {
+        return diffThreads;
+    }
+
     Segment getSegment(SegmentId id) {
+        Segment segment = segments.getIfPresent(asUUID(id));
+        if (segment != null) {
+            id.setSegment(segment);
+            return segment;
+        }
         try {
-            Segment segment = store.readSegment(id);
+            long start = System.nanoTime();
+            segment = store.readSegment(id);
+            loadTime.addAndGet(System.nanoTime() - start);
+            loadCount.incrementAndGet();
             setSegment(id, segment);
             return segment;
         } catch (SegmentNotFoundException snfe) {
@@ -136,43 +327,115 @@ public class SegmentTracker {
     }
 
     void setSegment(SegmentId id, Segment segment) {
-        // done before synchronization to allow concurrent segment access
-        // while we update the cache below
         id.setSegment(segment);
+        UUID uuid = asUUID(id);
+        segments.put(uuid, segment, SEGMENT_WEIGHER.weigh(uuid, segment));
+        log.debug("Added segment {} to tracker cache", id);
+    }
 
-        synchronized (this) {
-            long size = segment.getCacheSize();
+    /**
+     * Marks the given segment as recently used in the segment cache. Called
+     * for a sample of the accesses that bypass the cache because the segment
+     * is already referenced from its identifier.
+     */
+    void segmentAccessed(SegmentId id) {
+        UUID uuid = asUUID(id);
+        if (segments.containsKey(uuid)) {
+            segments.getIfPresent(uuid);
+        }
+    }
 
-            segments.addFirst(segment);
-            currentSize += size;
+    /**
+     * Returns the statistics of the segment cache. Note that accesses to
+     * segments already referenced from their identifier are only sampled,
+     * so the hit count is a lower bound of the actual number of accesses.
+     *
+     * @return  statistics about the segment cache
+     */
+    @Nonnull
+    public CacheStats getSegmentCacheStats() {
+        return segmentCacheStats;
+    }
 
-            log.debug("Added segment {} to tracker cache ({} bytes)",
-                    id, size);
+    /**
+     * Returns the statistics of the cache of decoded template records.
+     *
+     * @return  statistics about the template cache
+     */
+    @Nonnull
+    public CacheStats getTemplateCacheStats() {
+        return templateCache.getStats();
+    }
 
-            // TODO possibly this cache could be improved
-            while (currentSize > cacheSize && segments.size() > 1) {
-                Segment last = segments.removeLast();
-                SegmentId lastId = last.getSegmentId();
-                if (last.accessed()) {
-                    segments.addFirst(last);
-                    log.debug("Segment {} was recently used, keeping in cache",
-                            lastId);
-                } else {
-                    long lastSize = last.getCacheSize();
+    /**
+     * Returns the statistics of the cache of decoded map buckets.
+     *
+     * @return  statistics about the map bucket cache
+     */
+    @Nonnull
+    public CacheStats getMapBucketCacheStats() {
+        return mapBucketCache.getStats();
+    }
 
-                    lastId.setSegment(null);
-                    currentSize -= lastSize;
+    RecordCache<Template> getTemplateCache() {
+        return templateCache;
+    }
 
-                    log.debug("Removed segment {} from tracker cache ({} bytes)",
-                            lastId, lastSize);
+    RecordCache<MapRecord.Bucket> getMapBucketCache() {
+        return mapBucketCache;
+    }
+
+    /**
+     * Evicts the segments from the cache that were compacted by the given
+     * compaction run. After a successful compaction the head state only
+     * references compacted segments, so the pre-compaction generation is
+     * unlikely to be accessed again and should not displace the new one.
+     * This covers both resident and non-resident entries, as a non-resident
+     * entry would be promoted to the hot set when loaded again. Segments of
+     * older generations were already evicted by the run that compacted them
+     * and are not evicted again, as those still in the cache were loaded
+     * on demand since then. Segments that are still in use are simply
+     * loaded again on demand.
+     *
+     * @param compaction  compaction map of the compaction run, not yet
+     *                    merged with the maps of previous runs
+     */
+    private void evictCompactedSegments(CompactionMap compaction) {
+        int count = 0;
+        List<UUID> uuids = newArrayList(segments.keySet());
+        uuids.addAll(segments.keys(true, true));
+        for (UUID uuid : uuids) {
+            if (compaction.wasCompacted(uuid)) {
+                Segment segment = segments.peek(uuid);
+                segments.invalidate(uuid);
+                if (segment != null) {
+                    segment.getSegmentId().unloadSegment();
+                    count++;
                 }
             }
         }
+        log.debug("Evicted {} pre-compaction segments from tracker cache",
+                count);
     }
 
     public void setCompactionMap(CompactionMap compaction) {
+        evictCompactedSegments(compaction);
         compaction.merge(compactionMap.get());
         compactionMap.set(compaction);
+        // the decoded records of the pre-compaction generation are
+        // unlikely to be accessed again either
+        dropRecordCaches();
+    }
+
+    /**
+     * Drops the caches of decoded records. The cached records reference
+     * segment identifiers, so this needs to be done before collecting the
+     * {@link #getReferencedSegmentIds() referenced segment identifiers} for
+     * revision cleanup.
+     */
+    public void dropRecordCaches() {
+        templateCache.clear();
+        mapBucketCache.clear();
     }
 
     @Nonnull
@@ -207,7 +470,7 @@ public class SegmentTracker {
     public void collectBlobReferences(ReferenceCollector collector) {
         Set<SegmentId> processed = newIdentityHashSet();
         Queue<SegmentId> queue = newArrayDeque(getReferencedSegmentIds());
-        writer.flush(); // force the current segment to have root record info
+        flushWriters(); // force the current segments to have root record info
         while (!queue.isEmpty()) {
             SegmentId id = queue.remove();
             if (id.isDataSegmentId() && processed.add(id)) {
@@ -249,10 +512,33 @@ public class SegmentTracker {
         return getSegmentId(msb, lsb);
     }
 
+    private static UUID asUUID(SegmentId id) {
+        return new UUID(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
     public synchronized void clearSegmentIdTables(CompactionStrategy strategy) {
         for (int i = 0; i < tables.length; i++) {
             tables[i].clearSegmentIdTables(strategy);
         }
     }
 
+    /**
+     * Adds the load statistics collected by the tracker to the hit and
+     * miss statistics of the segment cache. Segments are not loaded through
+     * the cache as that would serialise concurrent loads within a stripe.
+     */
+    private class LoadStatsCache extends SimpleForwardingCache<UUID, Segment> {
+
+        LoadStatsCache(Cache<UUID, Segment> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public com.google.common.cache.CacheStats stats() {
+            return super.stats().plus(new com.google.common.cache.CacheStats(
+                    0, 0, loadCount.get(), 0, loadTime.get(), 0));
+        }
+
+    }
+
 }
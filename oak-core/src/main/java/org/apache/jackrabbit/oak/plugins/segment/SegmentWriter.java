@@ -1162,4 +1162,8 @@ public class SegmentWriter {
         return tracker;
     }
 
+    SegmentVersion getVersion() {
+        return version;
+    }
+
 }
@@ -124,6 +124,26 @@ public class Template {
         }
     }
 
+    /**
+     * @return  estimated memory used by this template in bytes
+     */
+    int getMemory() {
+        int memory = 48 + properties.length * 4;
+        if (primaryType != null) {
+            memory += 128;
+        }
+        if (mixinTypes != null) {
+            memory += 128 + mixinTypes.count() * 64;
+        }
+        for (PropertyTemplate property : properties) {
+            memory += 80 + property.getName().length() * 2;
+        }
+        if (childName != null) {
+            memory += 48 + childName.length() * 2;
+        }
+        return memory;
+    }
+
     PropertyState getPrimaryType() {
         return primaryType;
     }
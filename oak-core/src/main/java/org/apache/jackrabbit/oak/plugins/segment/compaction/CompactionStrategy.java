@@ -76,6 +76,8 @@ public abstract class CompactionStrategy {
 
     public static final byte MEMORY_THRESHOLD_DEFAULT = 5;
 
+    public static final int COMPACTION_THREADS_DEFAULT = 1;
+
     /**
      * No compaction at all
      */
@@ -104,6 +106,11 @@ public abstract class CompactionStrategy {
 
     private byte memoryThreshold = MEMORY_THRESHOLD_DEFAULT;
 
+    /**
+     * Number of threads used for compacting the repository content.
+     */
+    private int compactionThreads = COMPACTION_THREADS_DEFAULT;
+
     private CompactionMap compactionMap;
 
     private long compactionStart = currentTimeMillis();
@@ -176,7 +183,8 @@ public abstract class CompactionStrategy {
     public String toString() {
         return "DefaultCompactionStrategy [pauseCompaction=" + paused
                 + ", cloneBinaries=" + cloneBinaries + ", cleanup=" + cleanupType
-                + ", olderThan=" + olderThan + ']';
+                + ", olderThan=" + olderThan
+                + ", compactionThreads=" + compactionThreads + ']';
     }
 
     public void setCompactionStart(long ms) {
@@ -191,6 +199,15 @@ public abstract class CompactionStrategy {
         this.memoryThreshold = memoryThreshold;
     }
 
+    public int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    public void setCompactionThreads(int compactionThreads) {
+        checkArgument(compactionThreads > 0);
+        this.compactionThreads = compactionThreads;
+    }
+
     public abstract boolean compacted(@Nonnull Callable<Boolean> setHead) throws Exception;
 
 }
@@ -43,5 +43,9 @@ public interface CompactionStrategyMBean {
 
     void setMemoryThreshold(byte memory);
 
+    int getCompactionThreads();
+
+    void setCompactionThreads(int threads);
+
     String getCompactionMapStats();
 }
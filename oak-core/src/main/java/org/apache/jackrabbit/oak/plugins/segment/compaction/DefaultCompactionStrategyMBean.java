@@ -80,6 +80,16 @@ public class DefaultCompactionStrategyMBean implements CompactionStrategyMBean {
         strategy.setMemoryThreshold(memory);
     }
 
+    @Override
+    public int getCompactionThreads() {
+        return strategy.getCompactionThreads();
+    }
+
+    @Override
+    public void setCompactionThreads(int threads) {
+        strategy.setCompactionThreads(threads);
+    }
+
     @Override
     public String getCompactionMapStats() {
         CompactionMap cm = strategy.getCompactionMap();
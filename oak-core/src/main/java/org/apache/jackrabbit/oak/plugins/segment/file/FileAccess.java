@@ -19,10 +19,15 @@ package org.apache.jackrabbit.oak.plugins.segment.file;
 import static com.google.common.base.Preconditions.checkState;
 import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 /**
  * A wrapper around either memory mapped files or random access files, to allow
@@ -36,6 +41,16 @@ abstract class FileAccess {
 
     abstract ByteBuffer read(int position, int length) throws IOException;
 
+    /**
+     * Reads {@code target.remaining()} bytes starting at the given position
+     * into the given buffer.
+     *
+     * @param position position within the file
+     * @param target target buffer
+     * @throws IOException on an IO error
+     */
+    abstract void read(int position, ByteBuffer target) throws IOException;
+
     abstract void close() throws IOException;
 
     //-----------------------------------------------------------< private >--
@@ -69,6 +84,11 @@ abstract class FileAccess {
             return entry.slice();
         }
 
+        @Override
+        public void read(int position, ByteBuffer target) {
+            target.put(read(position, target.remaining()));
+        }
+
         @Override
         public void close() {
         }
@@ -76,14 +96,25 @@ abstract class FileAccess {
     }
     
     /**
-     * The implementation that uses random access file (reads are synchronized).
-     */    
+     * The implementation that uses random access file. Reads are positional
+     * reads on the underlying {@link FileChannel}, which neither move the
+     * file pointer nor need a shared monitor, so concurrent readers of the
+     * same tar file do not block each other.
+     */
     static class Random extends FileAccess {
 
-        private final RandomAccessFile file;
+        private final File path;
+
+        private volatile RandomAccessFile file;
 
-        Random(RandomAccessFile file) {
+        private volatile FileChannel channel;
+
+        private volatile boolean closed;
+
+        Random(File path, RandomAccessFile file) {
+            this.path = path;
             this.file = file;
+            this.channel = file.getChannel();
         }
 
         @Override
@@ -93,25 +124,72 @@ abstract class FileAccess {
 
         @Override
         public int length() throws IOException {
-            long length = file.length();
+            long length = channel.size();
             checkState(length < Integer.MAX_VALUE);
             return (int) length;
         }
 
         @Override
-        public synchronized ByteBuffer read(int position, int length)
-                throws IOException {
+        public ByteBuffer read(int position, int length) throws IOException {
+            // The returned buffer is handed out to the caller (and usually
+            // retained by a Segment instance), so it can't come from a pool.
+            // The channel transparently reads through a per-thread cached
+            // direct buffer, which avoids a native allocation per read.
             ByteBuffer entry = ByteBuffer.allocate(length);
-            file.seek(position);
-            file.readFully(entry.array());
+            read(position, entry);
+            entry.flip();
             return entry;
         }
 
+        @Override
+        public void read(int position, ByteBuffer target) throws IOException {
+            int length = target.remaining();
+            long offset = position;
+            while (target.hasRemaining()) {
+                int n;
+                try {
+                    n = channel.read(target, offset);
+                } catch (ClosedChannelException e) {
+                    if (e instanceof ClosedByInterruptException) {
+                        // the channel is now closed for all readers,
+                        // so reopen it before propagating the interrupt
+                        reopen();
+                        throw e;
+                    }
+                    // some other reader was interrupted, retry
+                    reopen();
+                    continue;
+                }
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of file at position "
+                            + offset + " while reading " + length
+                            + " bytes from position " + position);
+                }
+                offset += n;
+            }
+        }
+
+        /**
+         * Reopens the underlying file after the channel has been closed
+         * as a side effect of a reader thread being interrupted.
+         */
+        private synchronized void reopen() throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (!channel.isOpen()) {
+                RandomAccessFile reopened = new RandomAccessFile(path, "r");
+                file = reopened;
+                channel = reopened.getChannel();
+            }
+        }
+
         @Override
         public synchronized void close() throws IOException {
+            closed = true;
             file.close();
         }
 
     }
 
-}
\ No newline at end of file
+}
@@ -29,6 +29,7 @@ import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonMap;
 import static org.apache.jackrabbit.oak.commons.IOUtils.humanReadableByteCount;
 import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.plugins.segment.SegmentTracker.DEFAULT_MEMORY_CACHE_SIZE;
 import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.NO_COMPACTION;
 
 import java.io.File;
@@ -45,19 +46,27 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Supplier;
 import com.google.common.collect.Maps;
 import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.plugins.blob.BlobStoreBlob;
 import org.apache.jackrabbit.oak.plugins.segment.CompactionMap;
 import org.apache.jackrabbit.oak.plugins.segment.Compactor;
+import org.apache.jackrabbit.oak.plugins.segment.OffHeapSegmentAllocator;
 import org.apache.jackrabbit.oak.plugins.segment.RecordId;
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
@@ -98,6 +107,49 @@ public class FileStore implements SegmentStore {
     static final boolean MEMORY_MAPPING_DEFAULT =
             "64".equals(System.getProperty("sun.arch.data.model", "32"));
 
+    /**
+     * Default length of the group commit window in milliseconds.
+     */
+    public static final int GROUP_COMMIT_WINDOW_DEFAULT = 10;
+
+    /**
+     * Default number of threads for comparing the buckets of large flat
+     * nodes concurrently. Comparing them mostly waits for segments to be
+     * read from the tar files, so a couple of threads is enough to overlap
+     * these reads with the processing of the changes.
+     */
+    public static final int DIFF_THREADS_DEFAULT =
+            Integer.getInteger("oak.segment.diffThreads", 2);
+
+    /**
+     * The durability guarantee given for commits to a file store.
+     */
+    public enum Durability {
+
+        /**
+         * Commits return as soon as the new head state is visible. The head
+         * state is persisted by the background flush thread, once every five
+         * seconds. This is the default.
+         */
+        ASYNC,
+
+        /**
+         * Commits wait until their head state is persisted. The first waiting
+         * commit waits for the group commit window to elapse before flushing,
+         * so all commits arriving in the meantime share one journal update
+         * and one fsync.
+         */
+        WINDOW,
+
+        /**
+         * Commits wait until their head state is persisted, which is done
+         * immediately. Commits arriving while a flush is in progress share
+         * the following flush.
+         */
+        COMMIT
+
+    }
+
     private final SegmentTracker tracker;
 
     private final File directory;
@@ -108,8 +160,21 @@ public class FileStore implements SegmentStore {
 
     private final boolean memoryMapping;
 
+    /**
+     * Allocator for keeping segments read from non memory mapped tar files
+     * off heap, or {@code null} if segments are kept on the heap.
+     */
+    private final OffHeapSegmentAllocator allocator;
+
     private volatile List<TarReader> readers;
 
+    /**
+     * Lookup table from segment ids to the {@link #readers} containing them.
+     * Updated whenever the list of readers changes. A stale table only
+     * causes a fallback to scanning the readers.
+     */
+    private volatile TarLookupTable lookup = TarLookupTable.EMPTY;
+
     private int writeNumber;
 
     private File writeFile;
@@ -133,6 +198,38 @@ public class FileStore implements SegmentStore {
      */
     private final AtomicReference<RecordId> persistedHead;
 
+    /**
+     * Sequence number of the latest head state, incremented on each
+     * successful {@link #setHead(SegmentNodeState, SegmentNodeState)}.
+     */
+    private final AtomicLong headSequence = new AtomicLong();
+
+    /**
+     * Sequence number of the latest head state that has been persisted.
+     * Only updated while holding the {@link #persistedHead} monitor.
+     */
+    private volatile long persistedSequence;
+
+    private final Durability durability;
+
+    private final int groupCommitWindow;
+
+    /**
+     * Monitor used for coordinating commits waiting for their head state
+     * to be persisted. Guards {@link #groupCommitPending}.
+     */
+    private final Object groupCommit = new Object();
+
+    private boolean groupCommitPending;
+
+    private final FlushLatencyHistogram flushLatency = new FlushLatencyHistogram();
+
+    /**
+     * Thread pool for comparing large maps, or {@code null} if they are
+     * compared sequentially.
+     */
+    private final ExecutorService diffExecutor;
+
     /**
      * The background flush thread. Automatically flushes the TarMK state
      * once every five seconds.
@@ -147,6 +244,19 @@ public class FileStore implements SegmentStore {
 
     private CompactionStrategy compactionStrategy = NO_COMPACTION;
 
+    /**
+     * Compactor of a compaction run that was cancelled before completion,
+     * or {@code null}. The next compaction run resumes from where it left
+     * off. The segments written by it are not yet reachable from the head
+     * state, so {@link #cleanup()} explicitly keeps them.
+     */
+    private volatile Compactor suspendedCompactor;
+
+    /**
+     * Set when the store is being closed, to cancel a running compaction.
+     */
+    private volatile boolean shutdown;
+
     /**
      * Flag to request revision cleanup during the next flush.
      */
@@ -189,6 +299,11 @@ public class FileStore implements SegmentStore {
         private int maxFileSize = 256;
         private int cacheSize;   // 0 -> DEFAULT_MEMORY_CACHE_SIZE
         private boolean memoryMapping;
+        private Durability durability = Durability.ASYNC;
+        private int groupCommitWindow = GROUP_COMMIT_WINDOW_DEFAULT;
+        private int offHeapSize;   // 0 -> on heap
+        private int writers = 1;
+        private int diffThreads = DIFF_THREADS_DEFAULT;
         private final LoggingGCMonitor gcMonitor = new LoggingGCMonitor();
 
         private Builder(File directory) {
@@ -260,6 +375,71 @@ public class FileStore implements SegmentStore {
             return this;
         }
 
+        /**
+         * Durability guarantee for commits.
+         * @param durability
+         * @return this instance
+         */
+        @Nonnull
+        public Builder withDurability(@Nonnull Durability durability) {
+            this.durability = checkNotNull(durability);
+            return this;
+        }
+
+        /**
+         * Length of the group commit window in milliseconds. Only used
+         * with {@link Durability#WINDOW}.
+         * @param groupCommitWindow
+         * @return this instance
+         */
+        @Nonnull
+        public Builder withGroupCommitWindow(int groupCommitWindow) {
+            checkArgument(groupCommitWindow >= 0);
+            this.groupCommitWindow = groupCommitWindow;
+            return this;
+        }
+
+        /**
+         * Maximum amount of memory in MB for keeping segments read from non
+         * memory mapped tar files off heap. Segments are kept on the heap
+         * once this is exhausted. {@code 0} keeps all segments on the heap.
+         * @param offHeapSize
+         * @return this instance
+         */
+        @Nonnull
+        public Builder withOffHeapSize(int offHeapSize) {
+            checkArgument(offHeapSize >= 0);
+            this.offHeapSize = offHeapSize;
+            return this;
+        }
+
+        /**
+         * Number of segment writers, each with its own segment buffer.
+         * Threads writing concurrently are spread over the writers, which
+         * lets write throughput scale with the number of writing threads.
+         * @param writers
+         * @return this instance
+         */
+        @Nonnull
+        public Builder withConcurrentWriters(int writers) {
+            checkArgument(writers > 0);
+            this.writers = writers;
+            return this;
+        }
+
+        /**
+         * Number of threads for comparing the buckets of large flat nodes
+         * concurrently. {@code 0} compares them sequentially.
+         * @param diffThreads
+         * @return this instance
+         */
+        @Nonnull
+        public Builder withDiffThreads(int diffThreads) {
+            checkArgument(diffThreads >= 0);
+            this.diffThreads = diffThreads;
+            return this;
+        }
+
         /**
          * {@link GCMonitor} for monitoring this files store's gc process.
          * @param gcMonitor
@@ -281,6 +461,10 @@ public class FileStore implements SegmentStore {
          * <li>max file size: 256MB</li>
          * <li>cache size: 256MB</li>
          * <li>memory mapping: on for 64 bit JVMs off otherwise</li>
+         * <li>durability: {@link Durability#ASYNC}</li>
+         * <li>off heap size: 0, all segments are kept on the heap</li>
+         * <li>concurrent writers: 1</li>
+         * <li>diff threads: {@link #DIFF_THREADS_DEFAULT}</li>
          * <li>whiteboard: none. No {@link GCMonitor} tracking</li>
          * </ul>
          *
@@ -290,7 +474,9 @@ public class FileStore implements SegmentStore {
         @Nonnull
         public FileStore create() throws IOException {
             return new FileStore(
-                    blobStore, directory, root, maxFileSize, cacheSize, memoryMapping, gcMonitor);
+                    blobStore, directory, root, maxFileSize, cacheSize, memoryMapping,
+                    durability, groupCommitWindow, offHeapSize, writers, diffThreads,
+                    gcMonitor);
         }
     }
 
@@ -331,22 +517,44 @@ public class FileStore implements SegmentStore {
     }
 
     private FileStore(
-            BlobStore blobStore, final File directory, NodeState initial, int maxFileSizeMB,
+            BlobStore blobStore, File directory, NodeState initial, int maxFileSizeMB,
             int cacheSizeMB, boolean memoryMapping, GCMonitor gcMonitor)
             throws IOException {
+        this(blobStore, directory, initial, maxFileSizeMB, cacheSizeMB, memoryMapping,
+                Durability.ASYNC, GROUP_COMMIT_WINDOW_DEFAULT, 0, 1, DIFF_THREADS_DEFAULT,
+                gcMonitor);
+    }
+
+    private FileStore(
+            BlobStore blobStore, final File directory, NodeState initial, int maxFileSizeMB,
+            int cacheSizeMB, boolean memoryMapping, Durability durability,
+            int groupCommitWindow, int offHeapSizeMB, int writers, int diffThreads,
+            GCMonitor gcMonitor) throws IOException {
         checkNotNull(directory).mkdirs();
         if (cacheSizeMB < 0) {
-            this.tracker = new SegmentTracker(this, 0, getVersion());
+            this.tracker = new SegmentTracker(this, 0, getVersion(), writers);
         } else if (cacheSizeMB > 0) {
-            this.tracker = new SegmentTracker(this, cacheSizeMB, getVersion());
+            this.tracker = new SegmentTracker(this, cacheSizeMB, getVersion(), writers);
         } else {
-            this.tracker = new SegmentTracker(this, getVersion());
+            this.tracker = new SegmentTracker(
+                    this, DEFAULT_MEMORY_CACHE_SIZE, getVersion(), writers);
         }
         this.blobStore = blobStore;
         this.directory = directory;
         this.maxFileSize = maxFileSizeMB * MB;
         this.memoryMapping = memoryMapping;
+        this.allocator = offHeapSizeMB > 0
+                ? new OffHeapSegmentAllocator(offHeapSizeMB)
+                : null;
+        this.durability = durability;
+        this.groupCommitWindow = durability == Durability.WINDOW ? groupCommitWindow : 0;
         this.gcMonitor = gcMonitor;
+        if (diffThreads > 0) {
+            this.diffExecutor = newDiffExecutor(diffThreads, directory);
+            tracker.setDiffExecutor(diffExecutor, diffThreads);
+        } else {
+            this.diffExecutor = null;
+        }
 
         journalFile = new RandomAccessFile(new File(directory, JOURNAL_FILE_NAME), "rw");
         lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
@@ -358,6 +566,7 @@ public class FileStore implements SegmentStore {
         for (int i = indices.length - 1; i >= 0; i--) {
             readers.add(TarReader.open(map.get(indices[i]), memoryMapping));
         }
+        this.lookup = TarLookupTable.build(readers);
 
         if (indices.length > 0) {
             this.writeNumber = indices[indices.length - 1] + 1;
@@ -424,7 +633,21 @@ public class FileStore implements SegmentStore {
                     }
                 });
 
-        log.info("TarMK opened: {} (mmap={})", directory, memoryMapping);
+        log.info("TarMK opened: {} (mmap={}, durability={}, offHeap={}MB, writers={}, diffThreads={})",
+                directory, memoryMapping, durability, offHeapSizeMB, writers, diffThreads);
+    }
+
+    private static ExecutorService newDiffExecutor(int threads, final File directory) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+            @Override
+            public Thread newThread(@Nonnull Runnable runnable) {
+                Thread thread = new Thread(runnable, "TarMK diff thread "
+                        + counter.incrementAndGet() + " [" + directory + "]");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     public boolean maybeCompact(boolean cleanup) {
@@ -588,13 +811,18 @@ public class FileStore implements SegmentStore {
 
     public void flush() throws IOException {
         synchronized (persistedHead) {
+            // read the sequence number before the head, so that the head
+            // is at least as recent as the recorded sequence number
+            long sequence = headSequence.get();
             RecordId before = persistedHead.get();
             RecordId after = head.get();
             boolean cleanup = cleanupNeeded.getAndSet(false);
             if (cleanup || !after.equals(before)) {
+                long start = System.nanoTime();
+
                 // needs to happen outside the synchronization block below to
                 // avoid a deadlock with another thread flushing the writer
-                tracker.getWriter().flush();
+                tracker.flushWriters();
 
                 // needs to happen outside the synchronization block below to
                 // prevent the flush from stopping concurrent reads and writes
@@ -605,12 +833,19 @@ public class FileStore implements SegmentStore {
                     journalFile.writeBytes(after.toString10() + " root\n");
                     journalFile.getChannel().force(false);
                     persistedHead.set(after);
+                    flushLatency.record(System.nanoTime() - start);
 
                     if (cleanup) {
                         cleanup();
                     }
                 }
             }
+            if (sequence > persistedSequence) {
+                persistedSequence = sequence;
+                synchronized (groupCommit) {
+                    groupCommit.notifyAll();
+                }
+            }
             synchronized (this) {
                 // remove all obsolete tar generations
                 Iterator<File> iterator = toBeRemoved.iterator();
@@ -627,6 +862,66 @@ public class FileStore implements SegmentStore {
         }
     }
 
+    /**
+     * Waits until the current head state has been persisted, as required by
+     * the configured {@link Durability}. Returns immediately for
+     * {@link Durability#ASYNC}.
+     * <p>
+     * Concurrent callers are grouped: only one of them flushes the store,
+     * after the group commit window has elapsed, while the others wait for
+     * that flush to complete.
+     *
+     * @throws IOException if the head state could not be persisted
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public void awaitPersisted() throws IOException, InterruptedException {
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+        long sequence = headSequence.get();
+        while (persistedSequence < sequence) {
+            synchronized (groupCommit) {
+                if (persistedSequence >= sequence) {
+                    return;
+                } else if (groupCommitPending) {
+                    // some other commit is about to flush, wait for it
+                    groupCommit.wait();
+                    continue;
+                }
+                groupCommitPending = true;
+            }
+            try {
+                if (groupCommitWindow > 0) {
+                    Thread.sleep(groupCommitWindow);
+                }
+                flush();
+            } finally {
+                synchronized (groupCommit) {
+                    groupCommitPending = false;
+                    groupCommit.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  the configured durability guarantee for commits
+     */
+    @Nonnull
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @return  histogram of the latencies of the flushes that persisted
+     *          a new head state
+     */
+    @Nonnull
+    public FlushLatencyHistogram getFlushLatencyHistogram() {
+        return flushLatency;
+    }
+
     /**
      * Runs garbage collection on the segment level, which could write new
      * generations of tar files. It checks which segments are still reachable,
@@ -643,6 +938,7 @@ public class FileStore implements SegmentStore {
 
         // Suggest to the JVM that now would be a good time
         // to clear stale weak references in the SegmentTracker
+        tracker.dropRecordCaches();
         System.gc();
 
         Set<UUID> ids = newHashSet();
@@ -651,12 +947,19 @@ public class FileStore implements SegmentStore {
                     id.getMostSignificantBits(),
                     id.getLeastSignificantBits()));
         }
+        Compactor suspended = suspendedCompactor;
+        if (suspended != null) {
+            suspended.collectCompactedSegments(ids);
+        }
         writer.cleanup(ids);
 
         CompactionMap cm = tracker.getCompactionMap();
-        List<TarReader> list = newArrayListWithCapacity(readers.size());
-        for (TarReader reader : readers) {
-            TarReader cleaned = reader.cleanup(ids, cm);
+        List<TarReader> current = readers;
+        mark(current, ids, cm);
+
+        List<TarReader> list = newArrayListWithCapacity(current.size());
+        for (TarReader reader : current) {
+            TarReader cleaned = reader.sweep();
             if (cleaned == reader) {
                 list.add(reader);
             } else {
@@ -669,6 +972,7 @@ public class FileStore implements SegmentStore {
             }
         }
         readers = list;
+        lookup = TarLookupTable.build(list);
         long finalSize = size();
         gcMonitor.cleaned(initialSize - finalSize, finalSize);
         gcMonitor.info("TarMK revision cleanup completed in {}. Post cleanup size is {} " +
@@ -677,6 +981,48 @@ public class FileStore implements SegmentStore {
                 humanReadableByteCount(initialSize - finalSize));
     }
 
+    /**
+     * Marks the reachable segments in the given tar files, newest first.
+     * Segments usually only reference segments in the same or in older
+     * files, so a single pass is enough. But with concurrent writers a
+     * segment can reference one that was flushed later to a newer file, in
+     * which case the affected files are marked again. Files in which the
+     * set of referenced segments did not change reuse the result of their
+     * previous mark instead of walking their segment graph again.
+     */
+    private void mark(List<TarReader> readers, Set<UUID> ids, CompactionMap cm)
+            throws IOException {
+        Map<TarReader, Integer> positions = newHashMap();
+        for (int i = 0; i < readers.size(); i++) {
+            positions.put(readers.get(i), i);
+        }
+
+        Set<UUID> forward = newHashSet();
+        int start = 0;
+        while (start < readers.size()) {
+            int restart = readers.size();
+            for (int i = start; i < readers.size(); i++) {
+                for (UUID id : readers.get(i).mark(ids, cm)) {
+                    long msb = id.getMostSignificantBits();
+                    long lsb = id.getLeastSignificantBits();
+                    TarReader owner = lookup.get(msb);
+                    Integer position = positions.get(owner);
+                    if (position != null && position < i
+                            && owner.containsEntry(msb, lsb)
+                            && !owner.isMarked(msb, lsb)
+                            && forward.add(id)) {
+                        restart = Math.min(restart, position);
+                    }
+                }
+            }
+            if (restart < readers.size()) {
+                log.debug("TarMK revision cleanup found references to newer"
+                        + " tar files, marking again from {}", readers.get(restart));
+            }
+            start = restart;
+        }
+    }
+
     /**
      * Copy every referenced record in data (non-bulk) segments. Bulk segments
      * are fully kept (they are only removed in cleanup, if there is no
@@ -688,8 +1034,22 @@ public class FileStore implements SegmentStore {
         gcMonitor.info("TarMK compaction running, strategy={}", compactionStrategy);
 
         long start = System.currentTimeMillis();
-        SegmentWriter writer = new SegmentWriter(this, tracker, getVersion());
-        final Compactor compactor = new Compactor(writer, compactionStrategy.cloneBinaries());
+        Compactor compactor = suspendedCompactor;
+        suspendedCompactor = null;
+        if (compactor != null) {
+            gcMonitor.info("TarMK compaction resuming suspended compaction, {} nodes already compacted",
+                    compactor.getCompactedNodes());
+        } else {
+            SegmentWriter writer = new SegmentWriter(this, tracker, getVersion());
+            compactor = new Compactor(writer, compactionStrategy.cloneBinaries(),
+                    compactionStrategy.getCompactionThreads(), gcMonitor,
+                    new Supplier<Boolean>() {
+                        @Override
+                        public Boolean get() {
+                            return shutdown || compactionStrategy.isPaused();
+                        }
+                    });
+        }
         SegmentNodeState before = getHead();
         long existing = before.getChildNode(SegmentNodeStore.CHECKPOINTS)
                 .getChildNodeCount(Long.MAX_VALUE);
@@ -700,6 +1060,10 @@ public class FileStore implements SegmentStore {
         }
 
         SegmentNodeState after = compactor.compact(EMPTY_NODE, before);
+        if (after == null) {
+            suspend(compactor, start);
+            return;
+        }
 
         Callable<Boolean> setHead = new SetHead(before, after, compactor);
         try {
@@ -709,6 +1073,10 @@ public class FileStore implements SegmentStore {
                 // compacted state before retrying to set the head.
                 SegmentNodeState head = getHead();
                 after = compactor.compact(after, head);
+                if (after == null) {
+                    suspend(compactor, start);
+                    return;
+                }
                 setHead = new SetHead(head, after, compactor);
             }
             gcMonitor.info("TarMK compaction completed in {}ms",
@@ -718,6 +1086,14 @@ public class FileStore implements SegmentStore {
         }
     }
 
+    private void suspend(Compactor compactor, long start) {
+        // the head is left untouched, the next run continues with the
+        // subtrees this one did not compact yet
+        suspendedCompactor = compactor;
+        gcMonitor.skipped("TarMK compaction suspended after {}ms, {} nodes compacted so far",
+                System.currentTimeMillis() - start, compactor.getCompactedNodes());
+    }
+
     public synchronized Iterable<SegmentId> getSegmentIds() {
         List<SegmentId> ids = newArrayList();
         for (UUID uuid : writer.getUUIDs()) {
@@ -748,26 +1124,39 @@ public class FileStore implements SegmentStore {
     @Override
     public boolean setHead(SegmentNodeState base, SegmentNodeState head) {
         RecordId id = this.head.get();
-        return id.equals(base.getRecordId())
-                && this.head.compareAndSet(id, head.getRecordId());
+        if (id.equals(base.getRecordId())
+                && this.head.compareAndSet(id, head.getRecordId())) {
+            headSequence.incrementAndGet();
+            return true;
+        } else {
+            return false;
+        }
     }
 
     @Override
     public void close() {
         // avoid deadlocks by closing (and joining) the background
         // threads before acquiring the synchronization lock
+        shutdown = true;
         compactionThread.close();
         flushThread.close();
+        if (diffExecutor != null) {
+            // comparisons still in progress fall back to
+            // comparing their remaining buckets sequentially
+            tracker.setDiffExecutor(null, 0);
+            diffExecutor.shutdown();
+        }
 
         synchronized (this) {
             try {
                 flush();
 
                 writer.close();
-                tracker.getWriter().dropCache();
+                tracker.dropWriterCaches();
 
                 List<TarReader> list = readers;
                 readers = newArrayList();
+                lookup = TarLookupTable.EMPTY;
                 for (TarReader reader : list) {
                     reader.close();
                 }
@@ -798,6 +1187,11 @@ public class FileStore implements SegmentStore {
     }
 
     private boolean containsSegment(long msb, long lsb) {
+        TarReader indexed = lookup.get(msb);
+        if (indexed != null && indexed.containsEntry(msb, lsb)) {
+            return true;
+        }
+
         for (TarReader reader : readers) {
             if (reader.containsEntry(msb, lsb)) {
                 return true;
@@ -826,11 +1220,23 @@ public class FileStore implements SegmentStore {
         long msb = id.getMostSignificantBits();
         long lsb = id.getLeastSignificantBits();
 
+        TarReader indexed = lookup.get(msb);
+        if (indexed != null) {
+            try {
+                ByteBuffer buffer = indexed.readEntry(msb, lsb, allocator);
+                if (buffer != null) {
+                    return newSegment(id, buffer);
+                }
+            } catch (IOException e) {
+                log.warn("Failed to read from tar file " + indexed, e);
+            }
+        }
+
         for (TarReader reader : readers) {
             try {
-                ByteBuffer buffer = reader.readEntry(msb, lsb);
+                ByteBuffer buffer = reader.readEntry(msb, lsb, allocator);
                 if (buffer != null) {
-                    return new Segment(tracker, id, buffer);
+                    return newSegment(id, buffer);
                 }
             } catch (IOException e) {
                 log.warn("Failed to read from tar file " + reader, e);
@@ -852,9 +1258,9 @@ public class FileStore implements SegmentStore {
         // so we need to re-check the readers
         for (TarReader reader : readers) {
             try {
-                ByteBuffer buffer = reader.readEntry(msb, lsb);
+                ByteBuffer buffer = reader.readEntry(msb, lsb, allocator);
                 if (buffer != null) {
-                    return new Segment(tracker, id, buffer);
+                    return newSegment(id, buffer);
                 }
             } catch (IOException e) {
                 log.warn("Failed to read from tar file " + reader, e);
@@ -864,6 +1270,30 @@ public class FileStore implements SegmentStore {
         throw new SegmentNotFoundException(id);
     }
 
+    private Segment newSegment(SegmentId id, ByteBuffer buffer) {
+        if (allocator == null) {
+            return new Segment(tracker, id, buffer);
+        }
+        Segment segment;
+        try {
+            segment = new Segment(tracker, id, buffer);
+        } catch (RuntimeException e) {
+            allocator.release(buffer);
+            throw e;
+        }
+        allocator.register(buffer);
+        return segment;
+    }
+
+    /**
+     * @return  the allocator used for keeping segments off heap, or
+     *          {@code null} if segments are kept on the heap
+     */
+    @CheckForNull
+    public OffHeapSegmentAllocator getOffHeapSegmentAllocator() {
+        return allocator;
+    }
+
     @Override
     public synchronized void writeSegment(
             SegmentId id, byte[] data, int offset, int length) {
@@ -875,11 +1305,13 @@ public class FileStore implements SegmentStore {
             if (size >= maxFileSize) {
                 writer.close();
 
+                TarReader reader = TarReader.open(writeFile, memoryMapping);
                 List<TarReader> list =
                         newArrayListWithCapacity(1 + readers.size());
-                list.add(TarReader.open(writeFile, memoryMapping));
+                list.add(reader);
                 list.addAll(readers);
                 readers = list;
+                lookup = lookup.with(reader);
 
                 writeNumber++;
                 writeFile = new File(
@@ -1029,8 +1461,8 @@ public class FileStore implements SegmentStore {
                 // Drop the SegmentWriter caches and flush any existing state
                 // in an attempt to prevent new references to old pre-compacted
                 // content. TODO: There should be a cleaner way to do this.
-                tracker.getWriter().dropCache();
-                tracker.getWriter().flush();
+                tracker.dropWriterCaches();
+                tracker.flushWriters();
                 gcMonitor.compacted();
                 tracker.clearSegmentIdTables(compactionStrategy);
                 return true;
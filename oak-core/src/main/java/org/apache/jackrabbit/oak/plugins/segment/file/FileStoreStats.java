@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nonnull;
+
+/**
+ * {@link FileStoreStatsMBean} implementation exposing the flush
+ * statistics of a {@link FileStore}.
+ */
+public class FileStoreStats implements FileStoreStatsMBean {
+    private final FileStore store;
+
+    public FileStoreStats(@Nonnull FileStore store) {
+        this.store = checkNotNull(store);
+    }
+
+    @Nonnull
+    @Override
+    public String getDurability() {
+        return store.getDurability().toString();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return store.getFlushLatencyHistogram().getCount();
+    }
+
+    @Override
+    public long getFlushLatencyMedian() {
+        return store.getFlushLatencyHistogram().getPercentile(0.5);
+    }
+
+    @Override
+    public long getFlushLatency99thPercentile() {
+        return store.getFlushLatencyHistogram().getPercentile(0.99);
+    }
+
+    @Nonnull
+    @Override
+    public String getFlushLatencyHistogram() {
+        return store.getFlushLatencyHistogram().toString();
+    }
+}
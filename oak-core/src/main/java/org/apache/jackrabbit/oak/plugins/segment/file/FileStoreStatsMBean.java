@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import javax.annotation.Nonnull;
+
+/**
+ * MBean for monitoring the flushes of the {@link FileStore}.
+ */
+public interface FileStoreStatsMBean {
+    String TYPE = "FileStoreStats";
+
+    /**
+     * @return  the configured durability guarantee for commits
+     */
+    @Nonnull
+    String getDurability();
+
+    /**
+     * @return  number of flushes that persisted a new head state
+     */
+    long getFlushCount();
+
+    /**
+     * @return  upper bound of the median flush latency in milliseconds,
+     *          or {@code -1} if unbounded
+     */
+    long getFlushLatencyMedian();
+
+    /**
+     * @return  upper bound of the 99th percentile of the flush latency in
+     *          milliseconds, or {@code -1} if unbounded
+     */
+    long getFlushLatency99thPercentile();
+
+    /**
+     * @return  the flush latency histogram
+     */
+    @Nonnull
+    String getFlushLatencyHistogram();
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the latencies of {@link FileStore#flush()} calls that
+ * actually persisted a new head state. Bucket {@code i} counts the flushes
+ * that took less than {@code 2^i} milliseconds (and at least
+ * {@code 2^(i-1)} milliseconds for {@code i > 0}). The last bucket
+ * collects all slower flushes.
+ */
+public class FlushLatencyHistogram {
+
+    private static final int BUCKETS = 16;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        long millis = NANOSECONDS.toMillis(nanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     * @return  number of recorded flushes
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return  a snapshot of the bucket counts
+     */
+    public long[] getCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile of the flush latency.
+     *
+     * @param percentile  percentile between 0 and 1
+     * @return  upper bound of the percentile in milliseconds, or {@code -1}
+     *          if the percentile falls into the last, unbounded bucket
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = getCounts();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long sum = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            sum += snapshot[i];
+            if (sum >= threshold) {
+                return 1L << i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        long[] snapshot = getCounts();
+        StringBuilder builder = new StringBuilder("FlushLatencyHistogram{");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            if (i < BUCKETS - 1) {
+                builder.append("<").append(1L << i).append("ms=");
+            } else {
+                builder.append(">=").append(1L << (i - 1)).append("ms=");
+            }
+            builder.append(snapshot[i]);
+        }
+        return builder.append('}').toString();
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Immutable lookup table from segment ids to the tar files containing them.
+ * <p>
+ * The table is an open addressing hash table with linear probing, keyed by
+ * the most significant bits of the segment ids only. It is kept at most half
+ * full. A hit is only a hint: the caller still needs to check whether the
+ * returned tar file really contains the segment, and fall back to scanning
+ * all tar files otherwise. Segments whose most significant bits are zero
+ * can't be represented and are simply not in the table.
+ */
+class TarLookupTable {
+
+    static final TarLookupTable EMPTY = new TarLookupTable(new long[2], new TarReader[2], 0);
+
+    private final long[] keys;
+
+    private final TarReader[] values;
+
+    private final int size;
+
+    private final int mask;
+
+    private final int shift;
+
+    private TarLookupTable(long[] keys, TarReader[] values, int size) {
+        this.keys = keys;
+        this.values = values;
+        this.size = size;
+        this.mask = keys.length - 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(keys.length);
+    }
+
+    /**
+     * Builds a new lookup table for the given tar files. Should a segment
+     * be contained in more than one file, the one closer to the head of the
+     * list wins.
+     *
+     * @param readers tar files, newest first
+     * @return lookup table
+     */
+    static TarLookupTable build(List<TarReader> readers) {
+        int count = 0;
+        for (TarReader reader : readers) {
+            count += reader.count();
+        }
+        int capacity = getCapacity(count);
+        TarLookupTable table = new TarLookupTable(
+                new long[capacity], new TarReader[capacity], 0);
+        int size = 0;
+        for (int i = readers.size() - 1; i >= 0; i--) {
+            size += table.putAll(readers.get(i));
+        }
+        return new TarLookupTable(table.keys, table.values, size);
+    }
+
+    /**
+     * Returns a copy of this table that additionally contains the segments
+     * of the given tar file. Segments already in this table are remapped
+     * to the given file.
+     *
+     * @param reader new tar file
+     * @return new lookup table
+     */
+    TarLookupTable with(TarReader reader) {
+        int capacity = getCapacity(size + reader.count());
+        TarLookupTable table;
+        int size;
+        if (capacity == keys.length) {
+            table = new TarLookupTable(
+                    keys.clone(), values.clone(), this.size);
+            size = this.size;
+        } else {
+            table = new TarLookupTable(
+                    new long[capacity], new TarReader[capacity], 0);
+            size = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0 && table.put(keys[i], values[i])) {
+                    size++;
+                }
+            }
+        }
+        size += table.putAll(reader);
+        return new TarLookupTable(table.keys, table.values, size);
+    }
+
+    /**
+     * Returns the tar file that most likely contains the segment with the
+     * given most significant bits.
+     *
+     * @param msb the most significant bits of the segment id
+     * @return tar file, or {@code null} if not known
+     */
+    @CheckForNull
+    TarReader get(long msb) {
+        if (msb == 0) {
+            return null;
+        }
+        int slot = slot(msb);
+        while (keys[slot] != 0) {
+            if (keys[slot] == msb) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return number of segment ids in this table
+     */
+    int size() {
+        return size;
+    }
+
+    //-----------------------------------------------------------< private >--
+
+    private static int getCapacity(int count) {
+        int capacity = 2;
+        while (capacity < 2L * count && capacity < 1 << 30) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private int slot(long msb) {
+        // the msb are mostly random, but the version bits of the uuid are
+        // not, so mix them before taking the top bits
+        return (int) ((msb * 0x9E3779B97F4A7C15L) >>> shift) & mask;
+    }
+
+    private int putAll(TarReader reader) {
+        int added = 0;
+        int count = reader.count();
+        for (int i = 0; i < count; i++) {
+            long msb = reader.getEntryMsb(i);
+            if (msb != 0 && put(msb, reader)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return {@code true} if the key was added, {@code false} if an
+     *         existing mapping was replaced
+     */
+    private boolean put(long msb, TarReader reader) {
+        int slot = slot(msb);
+        while (keys[slot] != 0) {
+            if (keys[slot] == msb) {
+                values[slot] = reader;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = msb;
+        values[slot] = reader;
+        return true;
+    }
+
+}
@@ -17,13 +17,16 @@
 package org.apache.jackrabbit.oak.plugins.segment.file;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Maps.newLinkedHashMap;
 import static com.google.common.collect.Maps.newTreeMap;
+import static com.google.common.collect.Queues.newArrayDeque;
 import static com.google.common.collect.Sets.newHashSet;
 import static com.google.common.collect.Sets.newHashSetWithExpectedSize;
+import static com.google.common.collect.Sets.newLinkedHashSet;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonList;
 import static org.apache.jackrabbit.oak.plugins.segment.Segment.REF_COUNT_OFFSET;
@@ -35,7 +38,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,8 +51,14 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
 
+import javax.annotation.Nullable;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
 import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.oak.plugins.segment.CompactionMap;
+import org.apache.jackrabbit.oak.plugins.segment.OffHeapSegmentAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,6 +83,19 @@ class TarReader {
     /** The tar file block size. */
     private static final int BLOCK_SIZE = TarWriter.BLOCK_SIZE;
 
+    /**
+     * Expected false positive probability of the per file bloom filters.
+     */
+    private static final double BLOOM_FILTER_FPP = 0.01;
+
+    private static final Funnel<UUID> UUID_FUNNEL = new Funnel<UUID>() {
+        @Override
+        public void funnel(UUID from, PrimitiveSink into) {
+            into.putLong(from.getMostSignificantBits())
+                .putLong(from.getLeastSignificantBits());
+        }
+    };
+
     static int getEntrySize(int size) {
         return BLOCK_SIZE + size + TarWriter.getPaddingSize(size);
     }
@@ -228,7 +252,7 @@ class TarReader {
                             }
                         }
 
-                        FileAccess random = new FileAccess.Random(access);
+                        FileAccess random = new FileAccess.Random(file, access);
                         // prevent the finally block from closing the file
                         // as the returned TarReader will take care of that
                         access = null;
@@ -478,12 +502,49 @@ class TarReader {
 
     private final ByteBuffer graph;
 
+    /**
+     * In-memory bloom filter over the segments in this file, built from the
+     * index. Allows most lookups of segments that are not in this file to
+     * be answered without touching the index.
+     */
+    private final BloomFilter<UUID> bloomFilter;
+
+    /**
+     * Segments marked as reachable by the last {@link #mark(Set, CompactionMap)},
+     * by their position in the index, or {@code null} if not yet marked.
+     */
+    private BitSet marked;
+
+    /**
+     * Segments referenced from outside this file in the last mark.
+     */
+    private BitSet markedRoots;
+
+    /**
+     * Compaction map used for the last mark.
+     */
+    private CompactionMap markedCompactionMap;
+
+    /**
+     * References to other files found in the last mark.
+     */
+    private List<UUID> markedReferences;
+
     private TarReader(File file, FileAccess access, ByteBuffer index)
             throws IOException {
         this.file = file;
         this.access = access;
         this.index = index;
         this.graph = loadGraph(file, access, index);
+        this.bloomFilter = BloomFilter.create(
+                UUID_FUNNEL, Math.max(index.remaining() / 24, 1), BLOOM_FILTER_FPP);
+        int position = index.position();
+        while (position < index.limit()) {
+            bloomFilter.put(new UUID(
+                    index.getLong(position),
+                    index.getLong(position + 8)));
+            position += 24;
+        }
     }
 
     long size() {
@@ -499,6 +560,29 @@ class TarReader {
         return index.capacity() / 24;
     }
 
+    /**
+     * Returns the most significant bits of the id of the segment at the
+     * given position of the index.
+     *
+     * @param i index entry, between 0 and {@link #count()} (exclusive)
+     * @return most significant bits of the segment id
+     */
+    long getEntryMsb(int i) {
+        return index.getLong(index.position() + i * 24);
+    }
+
+    /**
+     * Checks whether the given segment might be in this file. A return
+     * value of {@code false} means the segment is definitely not here.
+     *
+     * @param msb the most significant bits of the segment id
+     * @param lsb the least significant bits of the segment id
+     * @return {@code false} if the segment is not in this file
+     */
+    boolean mayContainEntry(long msb, long lsb) {
+        return bloomFilter.mightContain(new UUID(msb, lsb));
+    }
+
     /**
      * Iterates over all entries in this tar file and calls
      * {@link TarEntryVisitor#visit(long, long, File, int, int)} on them.
@@ -546,14 +630,44 @@ class TarReader {
      * @return the byte buffer, or null if not in this file
      */
     ByteBuffer readEntry(long msb, long lsb) throws IOException {
+        return readEntry(msb, lsb, null);
+    }
+
+    /**
+     * If the given segment is in this file, get the byte buffer that allows
+     * reading it. Unless memory mapped files are used, the segment is read
+     * into a buffer obtained from the given allocator, if there is one and
+     * it has room left.
+     *
+     * @param msb the most significant bits of the segment id
+     * @param lsb the least significant bits of the segment id
+     * @param allocator allocator for off-heap buffers, or {@code null}
+     * @return the byte buffer, or null if not in this file
+     */
+    ByteBuffer readEntry(
+            long msb, long lsb, @Nullable OffHeapSegmentAllocator allocator)
+            throws IOException {
         int position = findEntry(msb, lsb);
-        if (position != -1) {
-            return access.read(
-                    index.getInt(position + 16),
-                    index.getInt(position + 20));
-        } else {
+        if (position == -1) {
             return null;
         }
+
+        int offset = index.getInt(position + 16);
+        int length = index.getInt(position + 20);
+        if (allocator != null && !access.isMemoryMapped()) {
+            ByteBuffer buffer = allocator.allocate(length);
+            if (buffer != null) {
+                try {
+                    access.read(offset, buffer);
+                } catch (IOException e) {
+                    allocator.release(buffer);
+                    throw e;
+                }
+                buffer.flip();
+                return buffer;
+            }
+        }
+        return access.read(offset, length);
     }
 
     /**
@@ -565,6 +679,10 @@ class TarReader {
      * @return the position in the file, or -1 if not found
      */
     private int findEntry(long msb, long lsb) {
+        if (!mayContainEntry(msb, lsb)) {
+            return -1;
+        }
+
         // The segment identifiers are randomly generated with uniform
         // distribution, so we can use interpolation search to find the
         // matching entry in the index. The average runtime is O(log log n).
@@ -609,105 +727,161 @@ class TarReader {
     }
 
     /**
-     * Garbage collects segments in this file. First it collects the set of
-     * segments that are referenced / reachable, then (if more than 25% is
-     * garbage) creates a new generation of the file.
+     * Marks the segments in this file that are reachable from the given
+     * referenced segments. References from the marked segments to segments
+     * in other files are added to the given set. A bulk segment that was
+     * compacted according to the given compaction map is not marked, even
+     * if it is referenced.
+     * <p>
+     * The outcome of a mark only depends on the set of referenced segments
+     * in this file and on the compaction map, as tar files are immutable.
+     * It is therefore kept and reused by the next call if neither of them
+     * has changed, which is the case for most files that don't contain
+     * any new garbage. Otherwise the references of the segments are read
+     * from the pre-compiled segment graph, or, if there is none, from the
+     * segments themselves.
+     *
+     * @param referencedIds the referenced segment ids (input and output)
+     * @param cm compaction map, or {@code null}
+     * @return references from the marked segments to other files
+     * @throws IOException if the references could not be read
+     */
+    synchronized List<UUID> mark(Set<UUID> referencedIds, CompactionMap cm)
+            throws IOException {
+        int count = index.remaining() / 24;
+        BitSet roots = new BitSet(count);
+        for (int i = 0; i < count; i++) {
+            int position = index.position() + i * 24;
+            if (referencedIds.contains(new UUID(
+                    index.getLong(position),
+                    index.getLong(position + 8)))) {
+                roots.set(i);
+            }
+        }
+
+        if (marked == null || cm != markedCompactionMap || !roots.equals(markedRoots)) {
+            Map<UUID, List<UUID>> graph = null;
+            if (this.graph != null) {
+                graph = parseGraph();
+            }
+
+            BitSet reachable = new BitSet(count);
+            Set<UUID> external = newLinkedHashSet();
+            Deque<Integer> queue = newArrayDeque();
+            for (int i = roots.nextSetBit(0); i >= 0; i = roots.nextSetBit(i + 1)) {
+                queue.add(i);
+            }
+            while (!queue.isEmpty()) {
+                int i = queue.remove();
+                if (reachable.get(i)) {
+                    continue;
+                }
+
+                int position = index.position() + i * 24;
+                long msb = index.getLong(position);
+                long lsb = index.getLong(position + 8);
+                UUID id = new UUID(msb, lsb);
+                if (!isDataSegmentId(lsb)) {
+                    // bulk segments compaction check
+                    if (cm == null || !cm.wasCompacted(id)) {
+                        reachable.set(i);
+                    }
+                    continue;
+                }
+                reachable.set(i);
+
+                // this is a referenced data segment, so follow its references
+                List<UUID> refids;
+                if (graph != null) {
+                    refids = graph.get(id);
+                } else {
+                    // a pre-compiled graph is not available, so read the
+                    // references directly from this segment
+                    refids = readReferences(
+                            index.getInt(position + 16),
+                            index.getInt(position + 20));
+                }
+                if (refids == null) {
+                    continue;
+                }
+                for (UUID r : refids) {
+                    if (!isDataSegmentId(r.getLeastSignificantBits())
+                            && cm != null && cm.wasCompacted(id)) {
+                        // skip bulk compacted segment references
+                        continue;
+                    }
+                    int entry = findEntry(
+                            r.getMostSignificantBits(),
+                            r.getLeastSignificantBits());
+                    if (entry != -1) {
+                        queue.add((entry - index.position()) / 24);
+                    } else {
+                        external.add(r);
+                    }
+                }
+            }
+
+            marked = reachable;
+            markedRoots = roots;
+            markedCompactionMap = cm;
+            markedReferences = newArrayList(external);
+        }
+
+        referencedIds.addAll(markedReferences);
+        return markedReferences;
+    }
+
+    /**
+     * Checks whether the given segment was marked as reachable by the last
+     * call to {@link #mark(Set, CompactionMap)}.
+     *
+     * @param msb the most significant bits of the segment id
+     * @param lsb the least significant bits of the segment id
+     * @return {@code true} if the segment is in this file and was marked
+     */
+    synchronized boolean isMarked(long msb, long lsb) {
+        int position = findEntry(msb, lsb);
+        return marked != null && position != -1
+                && marked.get((position - index.position()) / 24);
+    }
+
+    /**
+     * Garbage collects the segments in this file that were not marked by
+     * the last call to {@link #mark(Set, CompactionMap)}. A new generation
+     * of the file is only created if more than 25% of it is garbage.
      * <p>
      * The old generation files are not removed (they can't easily be removed,
      * for memory mapped files).
-     * 
-     * @param referencedIds the referenced segment ids (input and output).
+     *
      * @return this (if the file is kept as is), or the new generation file, or
      *         null if the file is fully garbage
+     * @throws IOException if the new generation could not be written
      */
-    synchronized TarReader cleanup(Set<UUID> referencedIds, CompactionMap cm) throws IOException {
+    synchronized TarReader sweep() throws IOException {
+        checkState(marked != null, "Tar file %s has not been marked", file);
+
         Set<UUID> cleaned = newHashSet();
-        Map<UUID, List<UUID>> graph = null;
-        if (this.graph != null) {
-            graph = parseGraph();
-        }
-        TarEntry[] sorted = new TarEntry[index.remaining() / 24];
-        int position = index.position();
-        for (int i = 0; position < index.limit(); i++) {
-            sorted[i]  = new TarEntry(
+        List<TarEntry> kept = newArrayList();
+        int size = 0;
+        int count = index.remaining() / 24;
+        for (int i = 0; i < count; i++) {
+            int position = index.position() + i * 24;
+            TarEntry entry = new TarEntry(
                     index.getLong(position),
                     index.getLong(position + 8),
                     index.getInt(position + 16),
                     index.getInt(position + 20));
-            position += 24;
-        }
-        Arrays.sort(sorted, TarEntry.OFFSET_ORDER);
-
-        int size = 0;
-        int count = 0;
-        for (int i = sorted.length - 1; i >= 0; i--) {
-            TarEntry entry = sorted[i];
-            UUID id = new UUID(entry.msb(), entry.lsb());
-            if (!referencedIds.remove(id)) {
-                // this segment is not referenced anywhere
-                cleaned.add(id);
-                sorted[i] = null;
+            if (marked.get(i)) {
+                kept.add(entry);
+                size += getEntrySize(entry.size());
             } else {
-                if (isDataSegmentId(entry.lsb())) {
-                    size += getEntrySize(entry.size());
-                    count += 1;
-
-                    // this is a referenced data segment, so follow the graph
-                    if (graph != null) {
-                        List<UUID> refids = graph.get(id);
-                        if (refids != null) {
-                            for (UUID r : refids) {
-                                if (isDataSegmentId(r.getLeastSignificantBits())) {
-                                    referencedIds.add(r);
-                                } else {
-                                    if (cm != null && cm.wasCompacted(id)) {
-                                        // skip bulk compacted segment
-                                        // references
-                                    } else {
-                                        referencedIds.add(r);
-                                    }
-                                }
-                            }
-                        }
-                    } else {
-                        // a pre-compiled graph is not available, so read the
-                        // references directly from this segment
-                        ByteBuffer segment = access.read(
-                                entry.offset(),
-                                Math.min(entry.size(), 16 * 256));
-                        int pos = segment.position();
-                        int refcount = segment.get(pos + REF_COUNT_OFFSET) & 0xff;
-                        int refend = pos + 16 * (refcount + 1);
-                        for (int refpos = pos + 16; refpos < refend; refpos += 16) {
-                            UUID r = new UUID(segment.getLong(refpos),
-                                    segment.getLong(refpos + 8));
-                            if (isDataSegmentId(r.getLeastSignificantBits())) {
-                                referencedIds.add(r);
-                            } else {
-                                if (cm != null && cm.wasCompacted(id)) {
-                                    // skip bulk compacted segment references
-                                } else {
-                                    referencedIds.add(r);
-                                }
-                            }
-                        }
-                    }
-                } else {
-                    // bulk segments compaction check
-                    if (cm != null && cm.wasCompacted(id)) {
-                        cleaned.add(id);
-                        sorted[i] = null;
-                    } else {
-                        size += getEntrySize(entry.size());
-                        count += 1;
-                    }
-                }
+                cleaned.add(new UUID(entry.msb(), entry.lsb()));
             }
         }
-        size += getEntrySize(24 * count + 16);
+        size += getEntrySize(24 * kept.size() + 16);
         size += 2 * BLOCK_SIZE;
 
-        if (count == 0) {
+        if (kept.isEmpty()) {
             // none of the entries within this tar file are referenceable
             logCleanedSegments(cleaned);
             return null;
@@ -730,15 +904,14 @@ class TarReader {
         File newFile = new File(
                 file.getParentFile(),
                 name.substring(0, pos) + (char) (generation + 1) + ".tar");
+        TarEntry[] sorted = kept.toArray(new TarEntry[kept.size()]);
+        Arrays.sort(sorted, TarEntry.OFFSET_ORDER);
         TarWriter writer = new TarWriter(newFile);
-        for (int i = 0; i < sorted.length; i++) {
-            TarEntry entry = sorted[i];
-            if (entry != null) {
-                byte[] data = new byte[entry.size()];
-                access.read(entry.offset(), entry.size()).get(data);
-                writer.writeEntry(
-                        entry.msb(), entry.lsb(), data, 0, entry.size());
-            }
+        for (TarEntry entry : sorted) {
+            byte[] data = new byte[entry.size()];
+            access.read(entry.offset(), entry.size()).get(data);
+            writer.writeEntry(
+                    entry.msb(), entry.lsb(), data, 0, entry.size());
         }
         writer.close();
 
@@ -753,6 +926,24 @@ class TarReader {
         }
     }
 
+    /**
+     * Reads the identifiers of the segments referenced from the data
+     * segment at the given offset.
+     */
+    private List<UUID> readReferences(int offset, int size) throws IOException {
+        ByteBuffer segment = access.read(offset, Math.min(size, 16 * 256));
+        int pos = segment.position();
+        int refcount = segment.get(pos + REF_COUNT_OFFSET) & 0xff;
+        int refend = pos + 16 * (refcount + 1);
+        List<UUID> refids = newArrayListWithCapacity(refcount);
+        for (int refpos = pos + 16; refpos < refend; refpos += 16) {
+            refids.add(new UUID(
+                    segment.getLong(refpos),
+                    segment.getLong(refpos + 8)));
+        }
+        return refids;
+    }
+
     private void logCleanedSegments(Set<UUID> cleaned) {
         StringBuilder uuids = new StringBuilder();
         String newLine = System.getProperty("line.separator", "\n") + "        ";
@@ -169,4 +169,9 @@ public class HttpStore implements SegmentStore {
         // TODO: distributed gc
     }
 
+    @Override
+    public void awaitPersisted() {
+        // segments are written synchronously
+    }
+
 }
@@ -21,9 +21,11 @@ import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE
 import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.plugins.segment.OffHeapSegmentAllocator;
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentNotFoundException;
@@ -49,7 +51,25 @@ public class MemoryStore implements SegmentStore {
     private final ConcurrentMap<SegmentId, Segment> segments =
             Maps.newConcurrentMap();
 
-    public MemoryStore(NodeState root) {
+    /**
+     * Allocator for keeping segments off heap, or {@code null}
+     * if segments are kept on the heap.
+     */
+    private final OffHeapSegmentAllocator allocator;
+
+    /**
+     * Creates a new in-memory store, which keeps up to {@code offHeapSizeMB}
+     * of segment data off heap and the rest on the heap.
+     *
+     * @param root           initial root state
+     * @param offHeapSizeMB  maximum amount of off-heap memory in MB,
+     *                       {@code 0} to keep all segments on the heap
+     */
+    public MemoryStore(NodeState root, int offHeapSizeMB) {
+        this.allocator = offHeapSizeMB > 0
+                ? new OffHeapSegmentAllocator(offHeapSizeMB)
+                : null;
+
         NodeBuilder builder = EMPTY_NODE.builder();
         builder.setChildNode("root", root);
 
@@ -58,10 +78,23 @@ public class MemoryStore implements SegmentStore {
         writer.flush();
     }
 
+    public MemoryStore(NodeState root) {
+        this(root, 0);
+    }
+
     public MemoryStore() {
         this(EMPTY_NODE);
     }
 
+    /**
+     * @return  the allocator used for keeping segments off heap, or
+     *          {@code null} if segments are kept on the heap
+     */
+    @CheckForNull
+    public OffHeapSegmentAllocator getOffHeapSegmentAllocator() {
+        return allocator;
+    }
+
     @Override
     public SegmentTracker getTracker() {
         return tracker;
@@ -99,10 +132,27 @@ public class MemoryStore implements SegmentStore {
     @Override
     public void writeSegment(
             SegmentId id, byte[] data, int offset, int length) {
-        ByteBuffer buffer = ByteBuffer.allocate(length);
-        buffer.put(data, offset, length);
-        buffer.rewind();
-        Segment segment = new Segment(tracker, id, buffer);
+        ByteBuffer buffer = null;
+        if (allocator != null) {
+            buffer = allocator.allocate(length);
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(length);
+        }
+        Segment segment;
+        try {
+            buffer.put(data, offset, length);
+            buffer.rewind();
+            segment = new Segment(tracker, id, buffer);
+        } catch (RuntimeException e) {
+            if (allocator != null) {
+                allocator.release(buffer);
+            }
+            throw e;
+        }
+        if (allocator != null) {
+            allocator.register(buffer);
+        }
         if (segments.putIfAbsent(id, segment) != null) {
             throw new IllegalStateException("Segment override: " + id);
         }
@@ -128,4 +178,9 @@ public class MemoryStore implements SegmentStore {
         segments.keySet().retainAll(tracker.getReferencedSegmentIds());
     }
 
+    @Override
+    public void awaitPersisted() {
+        // nothing to persist
+    }
+
 }
@@ -576,6 +576,35 @@ public class CacheTest {
         return new CacheLIRS<K, V>(null, maxSize, averageSize, 1, 0, null);
     }
     
+    @Test
+    public void testEvictionCallback() {
+        final HashMap<Integer, Integer> evicted = new HashMap<Integer, Integer>();
+        CacheLIRS<Integer, Integer> cache = new CacheLIRS.Builder().
+                maximumSize(10).
+                segmentCount(1).
+                evictionCallback(new CacheLIRS.EvictionCallback<Integer, Integer>() {
+
+                    @Override
+                    public void evicted(Integer key, Integer value) {
+                        assertNull(evicted.put(key, value));
+                    }
+
+                }).
+                build();
+        for (int i = 0; i < 20; i++) {
+            cache.put(i, i * 10);
+        }
+        assertEquals(20, cache.size() + evicted.size());
+        for (Integer key : evicted.keySet()) {
+            assertEquals(key * 10, evicted.get(key).intValue());
+            assertFalse(cache.containsKey(key));
+        }
+        // explicit removal is not an eviction
+        int before = evicted.size();
+        cache.invalidate(19);
+        assertEquals(before, evicted.size());
+    }
+
     @Test
     public void testBadLoader() {
         CacheLIRS<Integer, String> cache = createCache(10, 1);
@@ -17,11 +17,15 @@
 package org.apache.jackrabbit.oak.plugins.document;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import org.apache.jackrabbit.oak.plugins.document.util.Utils;
+
 import org.apache.jackrabbit.oak.plugins.document.memory.MemoryDocumentStore;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -57,6 +61,60 @@ public class BackgroundWriteTest {
         mk.dispose();
     }
 
+    @Test
+    public void deepestFirst() {
+        final List<Integer> depths = Collections.synchronizedList(new ArrayList<Integer>());
+        DocumentMK mk = new DocumentMK.Builder().setDocumentStore(
+                new MemoryDocumentStore() {
+            @Override
+            public <T extends Document> void update(Collection<T> collection,
+                                                    List<String> keys,
+                                                    UpdateOp updateOp) {
+                int depth = Utils.getDepthFromId(keys.get(0));
+                for (String k : keys) {
+                    assertEquals(depth, Utils.getDepthFromId(k));
+                }
+                depths.add(depth);
+                super.update(collection, keys, updateOp);
+            }
+        }).setAsyncDelay(0).open();
+        List<String> paths = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            String child = "node-" + i;
+            sb.append("+\"").append(child).append("\":{}");
+            paths.add("/" + child);
+            for (int j = 0; j < 10; j++) {
+                String p = child + "/node-" + j;
+                paths.add("/" + p);
+                sb.append("+\"").append(p).append("\":{}");
+            }
+        }
+        mk.commit("/", sb.toString(), null, null);
+        mk.runBackgroundOperations();
+        depths.clear();
+
+        // a different revision for each child of the root results in
+        // several updates per depth
+        UnsavedModifications pending = mk.getNodeStore().getPendingModifications();
+        Revision r = null;
+        for (String p : paths) {
+            if (Utils.pathDepth(p) == 1) {
+                r = mk.getNodeStore().newRevision();
+            }
+            pending.put(p, r);
+        }
+        pending.put("/", r);
+        mk.runBackgroundOperations();
+        assertEquals(21, depths.size());
+        for (int i = 1; i < depths.size(); i++) {
+            assertTrue(depths.get(i - 1) >= depths.get(i));
+        }
+        // root document is written last
+        assertEquals(0, (int) depths.get(depths.size() - 1));
+        mk.dispose();
+    }
+
     private static final class TestStore extends MemoryDocumentStore {
 
         @Override
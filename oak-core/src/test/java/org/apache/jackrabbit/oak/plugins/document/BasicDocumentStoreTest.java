@@ -298,6 +298,37 @@ public class BasicDocumentStoreTest extends AbstractDocumentStoreTest {
         assertTrue(result.contains(base + "9"));
     }
 
+    @Test
+    public void testFindMultiple() {
+        // create enough documents to require several round trips
+        String base = this.getClass().getName() + ".testFindMultiple-";
+        List<UpdateOp> ops = new ArrayList<UpdateOp>();
+        for (int i = 0; i < 1000; i++) {
+            String id = base + i;
+            UpdateOp up = new UpdateOp(id, true);
+            up.set("_id", id);
+            ops.add(up);
+            removeMe.add(id);
+        }
+        assertTrue(super.ds.create(Collection.NODES, ops));
+
+        // get some of them into the cache
+        for (int i = 0; i < 1000; i += 7) {
+            assertNotNull(super.ds.find(Collection.NODES, base + i));
+        }
+
+        // ask for all of them in reverse order, mixed with missing ones
+        List<String> ids = new ArrayList<String>();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 999; i >= 0; i--) {
+            ids.add(base + i);
+            expected.add(base + i);
+            ids.add(base + "missing-" + i);
+        }
+        assertEquals(expected, getKeys(super.ds.find(Collection.NODES, ids)));
+        assertTrue(super.ds.find(Collection.NODES, Collections.<String>emptyList()).isEmpty());
+    }
+
     @Test
     public void testQueryBinary() {
         // create ten documents
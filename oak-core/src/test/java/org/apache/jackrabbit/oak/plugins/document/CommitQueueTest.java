@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -31,6 +32,9 @@ import org.apache.jackrabbit.oak.spi.commit.Observer;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Tests for {@link CommitQueue}.
  */
@@ -106,4 +110,38 @@ public class CommitQueueTest {
         }
     }
 
+    @Test
+    public void publishInRevisionOrder() throws Exception {
+        final DocumentNodeStore store = new DocumentMK.Builder().getNodeStore();
+        Commit c1 = store.newCommit(null, null);
+        final AtomicReference<Commit> c2 = new AtomicReference<Commit>();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                c2.set(store.newCommit(null, null));
+                store.done(c2.get(), false, null);
+            }
+        });
+        t.start();
+        // c2 must not be published before c1: wait until
+        // the thread blocks in done() waiting for c1
+        long deadline = System.currentTimeMillis() + 10000;
+        while (c2.get() == null || t.getState() != Thread.State.WAITING) {
+            assertTrue("Commit c2 did not wait for c1",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertTrue(t.isAlive());
+        assertEquals(2, store.commitQueue.getSize());
+        assertTrue(store.getHeadRevision().compareRevisionTime(c1.getRevision()) < 0);
+
+        store.done(c1, false, null);
+        t.join();
+        assertEquals(c2.get().getRevision(), store.getHeadRevision());
+        assertEquals(0, store.commitQueue.getSize());
+        assertEquals(1, store.commitQueue.getWaitCount());
+        assertEquals(2.0, store.commitQueue.getAverageBatchSize(), 0.0);
+        store.dispose();
+    }
+
 }
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.document;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.jackrabbit.oak.plugins.document.memory.MemoryDocumentStore;
+import org.apache.jackrabbit.oak.plugins.document.util.Utils;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CompactRevisionMap}.
+ */
+public class CompactRevisionMapTest {
+
+    @Test
+    public void sameAsTreeMap() {
+        SortedMap<Revision, String> map = new TreeMap<Revision, String>(
+                StableRevisionComparator.REVERSE);
+        for (int i = 0; i < 10; i++) {
+            map.put(new Revision(i * 2, 0, 1), "c");
+            map.put(new Revision(i * 2, 1, 2), "value-" + i);
+        }
+        SortedMap<Revision, String> compact = CompactRevisionMap.compact(map);
+        assertNotNull(compact);
+        assertEquals(map, compact);
+        assertEquals(Lists.newArrayList(map.keySet()),
+                Lists.newArrayList(compact.keySet()));
+        assertEquals(map.firstKey(), compact.firstKey());
+        assertEquals(map.lastKey(), compact.lastKey());
+
+        Revision present = new Revision(8, 1, 2);
+        Revision absent = new Revision(9, 0, 1);
+        Revision branch = new Revision(8, 0, 1, true);
+        for (Revision r : new Revision[]{present, absent, branch}) {
+            assertEquals(map.get(r), compact.get(r));
+            assertEquals(map.containsKey(r), compact.containsKey(r));
+            assertEquals(map.headMap(r), compact.headMap(r));
+            assertEquals(map.tailMap(r), compact.tailMap(r));
+        }
+        Revision low = new Revision(3, 0, 1);
+        assertEquals(map.subMap(present, low), compact.subMap(present, low));
+        assertEquals(map.headMap(present).tailMap(absent),
+                compact.headMap(present).tailMap(absent));
+        assertTrue(compact.headMap(map.firstKey()).isEmpty());
+    }
+
+    @Test
+    public void notCompacted() {
+        SortedMap<Revision, String> map = new TreeMap<Revision, String>(
+                StableRevisionComparator.INSTANCE);
+        map.put(new Revision(1, 0, 1), "c");
+        assertNull(CompactRevisionMap.compact(map));
+
+        map = new TreeMap<Revision, String>(StableRevisionComparator.REVERSE);
+        map.put(new Revision(1, 0, 1, true), "c");
+        assertNull(CompactRevisionMap.compact(map));
+    }
+
+    @Test
+    public void internedValues() {
+        SortedMap<Revision, String> map = new TreeMap<Revision, String>(
+                StableRevisionComparator.REVERSE);
+        Revision r = new Revision(1, 0, 1);
+        map.put(r, new String("c"));
+        Map<Revision, String> c1 = CompactRevisionMap.compact(map);
+        map.put(r, new String("c"));
+        Map<Revision, String> c2 = CompactRevisionMap.compact(map);
+        assertNotNull(c1);
+        assertNotNull(c2);
+        assertSame(c1.get(r), c2.get(r));
+    }
+
+    @Test
+    public void sealedDocument() {
+        MemoryDocumentStore store = new MemoryDocumentStore();
+        String id = Utils.getIdFromPath("/");
+        UpdateOp op = new UpdateOp(id, true);
+        op.set(Document.ID, id);
+        for (int i = 0; i < 100; i++) {
+            Revision r = new Revision(i, 0, 1);
+            NodeDocument.setRevision(op, r, "c");
+            op.setMapEntry("prop", r, String.valueOf(i));
+        }
+        store.create(Collection.NODES, Lists.newArrayList(op));
+
+        NodeDocument doc = store.find(Collection.NODES, id);
+        assertNotNull(doc);
+        assertTrue(doc.isSealed());
+        assertTrue(doc.getLocalRevisions() instanceof CompactRevisionMap);
+        assertEquals(100, doc.getLocalMap("prop").size());
+        assertEquals("42", doc.getLocalMap("prop").get(new Revision(42, 0, 1)));
+
+        // estimated memory of the compact form is well below the
+        // estimate for the same data in TreeMaps
+        NodeDocument copy = new NodeDocument(store);
+        doc.deepCopy(copy);
+        assertFalse(copy.getLocalRevisions() instanceof CompactRevisionMap);
+        assertTrue(doc.getMemory() * 2 < copy.getMemory());
+    }
+}
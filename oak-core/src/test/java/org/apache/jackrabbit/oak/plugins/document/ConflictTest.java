@@ -821,4 +821,34 @@ public class ConflictTest extends BaseDocumentMKTest {
         branchRev = mk.commit("/foo", "^\"prop1\":\"bar\"", branchRev, null);
         mk.merge(branchRev, null);
     }
+
+    @Test
+    public void conflictOnManyNodes() {
+        int numNodes = Commit.CONCURRENT_UPDATE_SIZE * 2;
+        StringBuilder add = new StringBuilder();
+        StringBuilder change = new StringBuilder();
+        for (int i = 0; i < numNodes; i++) {
+            add.append("+\"n").append(i).append("\":{}\n");
+            change.append("^\"n").append(i).append("/prop\":\"value\"\n");
+        }
+        String rev = mk.commit("/", "+\"foo\":{}", null, null);
+        rev = mk.commit("/foo", add.toString(), rev, null);
+        String last = "n" + (numNodes - 1);
+        mk.commit("/foo/" + last, "^\"prop\":\"bar\"", rev, null);
+
+        try {
+            mk.commit("/foo", change.toString(), rev, null);
+            fail("Must fail with conflict for " + last);
+        } catch (MicroKernelException e) {
+            // expected
+        }
+        String head = mk.getHeadRevision();
+        assertPropNotExists(head, "/foo/n0", "prop");
+        assertPropValue(head, "/foo/" + last, "prop", "bar");
+
+        // changes on all nodes succeed on top of the head revision
+        head = mk.commit("/foo", change.toString(), head, null);
+        assertPropValue(head, "/foo/n0", "prop", "value");
+        assertPropValue(head, "/foo/" + last, "prop", "value");
+    }
 }
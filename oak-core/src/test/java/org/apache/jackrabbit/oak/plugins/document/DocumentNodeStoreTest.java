@@ -37,6 +37,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,6 +47,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -154,6 +156,368 @@ public class DocumentNodeStoreTest {
         store2.dispose();
     }
 
+    @Test
+    public void backgroundReadInvalidatesFromJournal() throws Exception {
+        final AtomicInteger invalidateAll = new AtomicInteger();
+        final Set<String> invalidated = Collections.synchronizedSet(new HashSet<String>());
+        DocumentStore docStore = new MemoryDocumentStore() {
+            @Override
+            public CacheInvalidationStats invalidateCache() {
+                invalidateAll.incrementAndGet();
+                return super.invalidateCache();
+            }
+
+            @Override
+            public <T extends Document> void invalidateCache(Collection<T> collection,
+                                                             String key) {
+                if (collection == NODES) {
+                    invalidated.add(key);
+                }
+                super.invalidateCache(collection, key);
+            }
+        };
+        DocumentNodeStore ns1 = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(1).getNodeStore();
+        DocumentNodeStore ns2 = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(2).getNodeStore();
+
+        // first change of ns2 is unknown to ns1 and
+        // results in an invalidation of all documents
+        NodeBuilder builder = ns2.getRoot().builder();
+        builder.child("foo");
+        ns2.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns2.runBackgroundOperations();
+        ns1.runBackgroundOperations();
+        assertEquals(1, invalidateAll.get());
+
+        builder = ns2.getRoot().builder();
+        builder.child("foo").child("bar");
+        builder.child("baz");
+        ns2.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns2.runBackgroundOperations();
+
+        Revision lastRev = docStore.find(NODES, Utils.getIdFromPath("/"))
+                .getLastRev().get(2);
+        JournalEntry entry = docStore.find(Collection.JOURNAL,
+                JournalEntry.asId(lastRev));
+        assertNotNull(entry);
+        assertEquals(Sets.newHashSet("/", "/foo", "/foo/bar", "/baz"),
+                entry.getChanges());
+
+        invalidated.clear();
+        ns1.runBackgroundOperations();
+        assertEquals(1, invalidateAll.get());
+        Set<String> expected = Sets.newHashSet();
+        for (String p : entry.getChanges()) {
+            expected.add(Utils.getIdFromPath(p));
+        }
+        assertEquals(expected, invalidated);
+        assertTrue(ns1.getRoot().getChildNode("foo").hasChildNode("bar"));
+        assertTrue(ns1.getRoot().hasChildNode("baz"));
+
+        ns1.dispose();
+        ns2.dispose();
+    }
+
+    @Test
+    public void backgroundReadInvalidatesMergedBranch() throws Exception {
+        final Set<String> invalidated = Collections.synchronizedSet(new HashSet<String>());
+        DocumentStore docStore = new MemoryDocumentStore() {
+            @Override
+            public <T extends Document> void invalidateCache(Collection<T> collection,
+                                                             String key) {
+                if (collection == NODES) {
+                    invalidated.add(key);
+                }
+                super.invalidateCache(collection, key);
+            }
+        };
+        DocumentNodeStore ns1 = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(1).getNodeStore();
+        DocumentNodeStore ns2 = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(2).getNodeStore();
+
+        NodeBuilder builder = ns2.getRoot().builder();
+        builder.child("test");
+        merge(ns2, builder);
+        ns2.runBackgroundOperations();
+        ns1.runBackgroundOperations();
+
+        builder = ns2.getRoot().builder();
+        NodeBuilder node = builder.child("test").child("node");
+        String id = Utils.getIdFromPath("/test/node");
+        int i = 0;
+        // force creation of a branch
+        while (docStore.find(NODES, id) == null) {
+            node.setProperty("foo", i++);
+        }
+
+        // background write while the branch is not merged yet
+        ns2.runBackgroundOperations();
+        ns1.runBackgroundOperations();
+        assertFalse(ns1.getRoot().getChildNode("test").hasChildNode("node"));
+
+        merge(ns2, builder);
+        ns2.runBackgroundOperations();
+
+        // the journal entry of the merge contains the branch changes
+        Revision lastRev = docStore.find(NODES, Utils.getIdFromPath("/"))
+                .getLastRev().get(2);
+        JournalEntry entry = docStore.find(Collection.JOURNAL,
+                JournalEntry.asId(lastRev));
+        assertNotNull(entry);
+        assertTrue(entry.getChanges().contains("/test/node"));
+
+        invalidated.clear();
+        ns1.runBackgroundOperations();
+        assertTrue(invalidated.contains(id));
+        NodeState test = ns1.getRoot().getChildNode("test");
+        assertTrue(test.hasChildNode("node"));
+        assertEquals(i - 1, (long) test.getChildNode("node").getProperty("foo").getValue(Type.LONG));
+
+        ns1.dispose();
+        ns2.dispose();
+    }
+
+    @Test
+    public void backgroundReadPopulatesDiffCache() throws Exception {
+        DocumentStore docStore = new MemoryDocumentStore();
+        DocumentNodeStore ns1 = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(1).getNodeStore();
+        DocumentNodeStore ns2 = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(2).getNodeStore();
+
+        NodeBuilder builder = ns2.getRoot().builder();
+        builder.child("foo");
+        builder.child("qux");
+        ns2.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns2.runBackgroundOperations();
+        ns1.runBackgroundOperations();
+
+        builder = ns2.getRoot().builder();
+        builder.child("foo").child("bar");
+        builder.child("baz");
+        builder.child("qux").remove();
+        ns2.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns2.runBackgroundOperations();
+
+        Revision before = ns1.getHeadRevision();
+        ns1.runBackgroundOperations();
+        Revision after = ns1.getHeadRevision();
+
+        DiffCache diffCache = ns1.getDiffCache();
+        String changes = diffCache.getChanges(before, after, "/", null);
+        assertNotNull(changes);
+        assertTrue(changes, changes.contains("^\"foo\":{}"));
+        assertTrue(changes, changes.contains("+\"baz\":{}"));
+        assertTrue(changes, changes.contains("-\"qux\""));
+        changes = diffCache.getChanges(before, after, "/foo", null);
+        assertNotNull(changes);
+        assertTrue(changes, changes.contains("+\"bar\":{}"));
+        // not present before the change
+        assertNull(diffCache.getChanges(before, after, "/baz", null));
+
+        NodeState root = ns1.getRoot();
+        assertTrue(root.getChildNode("foo").hasChildNode("bar"));
+        assertFalse(root.hasChildNode("qux"));
+
+        ns1.dispose();
+        ns2.dispose();
+    }
+
+    @Test
+    public void incompleteJournalSkipsDiffCache() throws Exception {
+        DocumentStore docStore = new MemoryDocumentStore();
+        DocumentNodeStore ns1 = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(1).getNodeStore();
+        DocumentNodeStore ns2 = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(2).getNodeStore();
+
+        NodeBuilder builder = ns2.getRoot().builder();
+        builder.child("foo");
+        ns2.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns2.runBackgroundOperations();
+        ns1.runBackgroundOperations();
+
+        builder = ns2.getRoot().builder();
+        builder.child("bar");
+        ns2.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns2.runBackgroundOperations();
+        Revision lastRev = docStore.find(NODES, Utils.getIdFromPath("/"))
+                .getLastRev().get(2);
+
+        builder = ns2.getRoot().builder();
+        builder.child("baz");
+        ns2.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns2.runBackgroundOperations();
+
+        // the changes of the first entry are not known anymore
+        docStore.remove(Collection.JOURNAL, JournalEntry.asId(lastRev));
+
+        Revision before = ns1.getHeadRevision();
+        ns1.runBackgroundOperations();
+        Revision after = ns1.getHeadRevision();
+
+        assertNull(ns1.getDiffCache().getChanges(before, after, "/", null));
+        NodeState root = ns1.getRoot();
+        assertTrue(root.hasChildNode("bar"));
+        assertTrue(root.hasChildNode("baz"));
+
+        ns1.dispose();
+        ns2.dispose();
+    }
+
+    @Test
+    public void prefetchChildNodes() throws Exception {
+        final Thread consumer = Thread.currentThread();
+        final AtomicInteger singleReads = new AtomicInteger();
+        final AtomicInteger bulkReads = new AtomicInteger();
+        DocumentStore docStore = new MemoryDocumentStore() {
+            @Override
+            public <T extends Document> T find(Collection<T> collection,
+                                               String key) {
+                if (collection == NODES && key.startsWith("2:/parent/")
+                        && Thread.currentThread() == consumer) {
+                    singleReads.incrementAndGet();
+                }
+                return super.find(collection, key);
+            }
+
+            @Override
+            public <T extends Document> List<T> find(Collection<T> collection,
+                                                     List<String> keys) {
+                if (collection == NODES) {
+                    bulkReads.incrementAndGet();
+                }
+                return super.find(collection, keys);
+            }
+        };
+        DocumentNodeStore ns = new DocumentMK.Builder()
+                .setDocumentStore(docStore).getNodeStore();
+        int numChildren = 1000;
+        NodeBuilder builder = ns.getRoot().builder();
+        NodeBuilder parent = builder.child("parent");
+        for (int i = 0; i < numChildren; i++) {
+            parent.child("node-" + i);
+        }
+        ns.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+
+        DocumentNodeState state = (DocumentNodeState) ns.getRoot().getChildNode("parent");
+        // read the child names into the children cache
+        List<String> expected = Lists.newArrayList(state.getChildNodeNames());
+        assertEquals(numChildren, expected.size());
+        for (String name : expected) {
+            ns.invalidateNodeCache("/parent/" + name, state.getLastRevision());
+        }
+
+        singleReads.set(0);
+        bulkReads.set(0);
+        List<String> names = Lists.newArrayList();
+        for (ChildNodeEntry entry : state.getChildNodeEntries()) {
+            names.add(entry.getName());
+            assertTrue(entry.getNodeState().exists());
+        }
+        assertEquals(expected, names);
+        if (DocumentNodeState.PREFETCH_THREADS > 0) {
+            // only the first batch is read one by one by the consumer,
+            // all other batches are read in the background
+            assertTrue(bulkReads.get() > 0);
+            assertTrue("" + singleReads.get(),
+                    singleReads.get() <= DocumentNodeState.INITIAL_FETCH_SIZE);
+        }
+        ns.dispose();
+    }
+
+    @Test
+    public void prefetchReadsInlineWhenPoolBusy() throws Exception {
+        DocumentNodeStore ns = new DocumentMK.Builder().getNodeStore();
+        ExecutorService executor = ns.getPrefetchExecutor();
+        int numChildren = 1000;
+        NodeBuilder builder = ns.getRoot().builder();
+        NodeBuilder parent = builder.child("parent");
+        for (int i = 0; i < numChildren; i++) {
+            parent.child("node-" + i);
+        }
+        ns.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+
+        // occupy all prefetch threads
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; executor != null && i < DocumentNodeState.PREFETCH_THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        try {
+            // batches not picked up by a pool thread are read by the
+            // iterator instead of waiting for the pool
+            NodeState state = ns.getRoot().getChildNode("parent");
+            assertEquals(numChildren, Iterables.size(state.getChildNodeEntries()));
+        } finally {
+            release.countDown();
+        }
+        ns.dispose();
+    }
+
+    @Test
+    public void disposeShutsDownWorkerPools() throws Exception {
+        DocumentNodeStore ns = new DocumentMK.Builder().getNodeStore();
+        ExecutorService commitExecutor = ns.getCommitExecutor();
+        ExecutorService lastRevExecutor = ns.getLastRevExecutor();
+        ExecutorService prefetchExecutor = ns.getPrefetchExecutor();
+        ns.dispose();
+        if (commitExecutor != null) {
+            assertTrue(commitExecutor.isShutdown());
+        }
+        if (lastRevExecutor != null) {
+            assertTrue(lastRevExecutor.isShutdown());
+        }
+        if (prefetchExecutor != null) {
+            assertTrue(prefetchExecutor.isShutdown());
+        }
+    }
+
+    @Test
+    public void journalGC() throws Exception {
+        Clock clock = new Clock.Virtual();
+        clock.waitUntil(System.currentTimeMillis());
+        Revision.setClock(clock);
+        MemoryDocumentStore docStore = new MemoryDocumentStore();
+        DocumentNodeStore ns = new DocumentMK.Builder().setAsyncDelay(0)
+                .setDocumentStore(docStore).setClusterId(1)
+                .clock(clock).getNodeStore();
+
+        NodeBuilder builder = ns.getRoot().builder();
+        builder.child("foo");
+        ns.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns.runBackgroundOperations();
+        Revision oldRev = docStore.find(NODES, Utils.getIdFromPath("/"))
+                .getLastRev().get(1);
+        assertNotNull(docStore.find(Collection.JOURNAL, JournalEntry.asId(oldRev)));
+
+        clock.waitUntil(clock.getTime() +
+                DocumentNodeStore.JOURNAL_GC_MAX_AGE_MILLIS + 60 * 1000);
+
+        builder = ns.getRoot().builder();
+        builder.child("bar");
+        ns.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        ns.runBackgroundOperations();
+        Revision newRev = docStore.find(NODES, Utils.getIdFromPath("/"))
+                .getLastRev().get(1);
+
+        // the old entry is removed, the recent one is kept
+        assertNull(docStore.find(Collection.JOURNAL, JournalEntry.asId(oldRev)));
+        assertNotNull(docStore.find(Collection.JOURNAL, JournalEntry.asId(newRev)));
+
+        ns.dispose();
+    }
+
     @Test
     public void childNodeCache() throws Exception {
         DocumentNodeStore store = new DocumentMK.Builder().getNodeStore();
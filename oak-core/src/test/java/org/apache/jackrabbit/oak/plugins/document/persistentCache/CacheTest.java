@@ -20,16 +20,27 @@ package org.apache.jackrabbit.oak.plugins.document.persistentCache;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.util.Random;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.oak.cache.CacheValue;
+import org.apache.jackrabbit.oak.plugins.document.DocumentStore;
+import org.apache.jackrabbit.oak.plugins.document.NodeDocument;
+import org.apache.jackrabbit.oak.plugins.document.memory.MemoryDocumentStore;
+import org.apache.jackrabbit.oak.plugins.document.util.StringValue;
 import org.apache.jackrabbit.oak.spi.blob.BlobStore;
 import org.apache.jackrabbit.oak.spi.blob.MemoryBlobStore;
 import org.junit.Test;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class CacheTest {
 
     @Test
@@ -91,5 +102,80 @@ public class CacheTest {
             cache.close();
         }
     }
-    
+
+    @Test
+    public void documents() throws Exception {
+        FileUtils.deleteDirectory(new File("target/cacheTest"));
+        DocumentStore store = new MemoryDocumentStore();
+        StringValue foo = new StringValue("1:/foo");
+        StringValue bar = new StringValue("1:/bar");
+        PersistentCache cache = new PersistentCache("target/cacheTest,+docs");
+        try {
+            Cache<CacheValue, NodeDocument> docs = cache.wrap(null, store,
+                    CacheBuilder.newBuilder().<CacheValue, NodeDocument>build(),
+                    CacheType.DOCUMENT);
+            docs.put(foo, NodeDocument.fromString(store,
+                    "\"_id\":\"1:/foo\",\"_modCount\":3"));
+            docs.put(bar, NodeDocument.NULL);
+        } finally {
+            cache.close();
+        }
+
+        cache = new PersistentCache("target/cacheTest,+docs");
+        try {
+            Cache<CacheValue, NodeDocument> docs = cache.wrap(null, store,
+                    CacheBuilder.newBuilder().<CacheValue, NodeDocument>build(),
+                    CacheType.DOCUMENT);
+            NodeDocument doc = docs.getIfPresent(foo);
+            assertNotNull(doc);
+            assertEquals("1:/foo", doc.getId());
+            assertEquals(3L, doc.getModCount().longValue());
+            assertTrue(doc.isSealed());
+            // must be checked against the store before it is used
+            assertEquals(0, doc.getLastCheckTime());
+            // missing documents are not persisted
+            assertNull(docs.getIfPresent(bar));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        FileUtils.deleteDirectory(new File("target/cacheTest"));
+        DocumentStore store = new MemoryDocumentStore();
+        StringValue foo = new StringValue("1:/foo");
+        StringValue bar = new StringValue("1:/bar");
+        PersistentCache cache = new PersistentCache("target/cacheTest,+docs,writeQueue=16");
+        try {
+            // nothing is kept in memory
+            Cache<CacheValue, NodeDocument> docs = cache.wrap(null, store,
+                    CacheBuilder.newBuilder().maximumSize(0).<CacheValue, NodeDocument>build(),
+                    CacheType.DOCUMENT);
+            docs.put(foo, NodeDocument.fromString(store,
+                    "\"_id\":\"1:/foo\",\"_modCount\":1"));
+            // written or still pending
+            assertNotNull(docs.getIfPresent(foo));
+            docs.invalidate(foo);
+            assertNull(docs.getIfPresent(foo));
+            docs.put(bar, NodeDocument.fromString(store,
+                    "\"_id\":\"1:/bar\",\"_modCount\":1"));
+        } finally {
+            cache.close();
+        }
+        assertEquals(0, cache.getWriteQueueSize());
+
+        cache = new PersistentCache("target/cacheTest,+docs");
+        try {
+            Cache<CacheValue, NodeDocument> docs = cache.wrap(null, store,
+                    CacheBuilder.newBuilder().<CacheValue, NodeDocument>build(),
+                    CacheType.DOCUMENT);
+            assertNull(docs.getIfPresent(foo));
+            // pending entries are written on close
+            assertNotNull(docs.getIfPresent(bar));
+        } finally {
+            cache.close();
+        }
+    }
+
 }
@@ -41,10 +41,13 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
 import com.google.common.io.ByteStreams;
 import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
@@ -55,6 +58,7 @@ import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
 import org.apache.jackrabbit.oak.plugins.segment.file.NonCachingFileStore;
 import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
 import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.gc.GCMonitor;
 import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
@@ -305,6 +309,67 @@ public class CompactionAndCleanupTest {
         }
     }
 
+    @Test
+    public void resumeCompactionAfterCleanup() throws Exception {
+        final List<String> messages = newArrayList();
+        FileStore store = FileStore.newFileStore(directory)
+                .withMaxFileSize(1)
+                .withGCMonitor(new GCMonitor.Empty() {
+                    @Override
+                    public void info(String message, Object[] arguments) {
+                        messages.add(message);
+                    }
+                })
+                .create();
+        try {
+            final SegmentNodeStore nodeStore = new SegmentNodeStore(store);
+            final AtomicInteger budget = new AtomicInteger(300);
+            store.setCompactionStrategy(new CompactionStrategy(false, false, CLEAN_NONE, 0, (byte) 0) {
+                @Override
+                public boolean compacted(Callable<Boolean> setHead) throws Exception {
+                    return nodeStore.locked(setHead);
+                }
+
+                @Override
+                public boolean isPaused() {
+                    return budget.decrementAndGet() < 0;
+                }
+            });
+
+            NodeBuilder root = nodeStore.getRoot().builder();
+            createNodes(root.setChildNode("test"), 10, 3);
+            nodeStore.merge(root, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+            NodeState before = nodeStore.getRoot();
+
+            // cancelled part way, the head is left untouched
+            store.compact();
+            assertEquals(before, nodeStore.getRoot());
+
+            // garbage, such that the cleanup rewrites the tar files
+            // containing the progress of the suspended compaction
+            root = nodeStore.getRoot().builder();
+            root.setProperty("blob", createBlob(nodeStore, 2 * 1024 * 1024));
+            nodeStore.merge(root, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+            root = nodeStore.getRoot().builder();
+            root.removeProperty("blob");
+            nodeStore.merge(root, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+            store.flush();
+            store.cleanup();
+
+            budget.set(Integer.MAX_VALUE);
+            store.compact();
+            assertTrue(messages.toString(), Iterables.any(messages, new Predicate<String>() {
+                @Override
+                public boolean apply(String message) {
+                    return message.contains("resuming");
+                }
+            }));
+            assertEquals(before, nodeStore.getRoot());
+        } finally {
+            store.close();
+        }
+    }
+
     @Test
     public void propertyRetention() throws IOException, CommitFailedException, InterruptedException {
         FileStore fileStore = new NonCachingFileStore(directory, 1);
@@ -16,6 +16,12 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment;
 
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import junit.framework.Assert;
 
 import org.apache.jackrabbit.oak.Oak;
@@ -23,6 +29,7 @@ import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
 import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
 import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.gc.GCMonitor;
 import org.apache.jackrabbit.oak.spi.security.OpenSecurityProvider;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
@@ -56,11 +63,94 @@ public class CompactorTest {
 
     }
 
+    @Test
+    public void testParallelCompactor() throws Exception {
+        MemoryStore source = new MemoryStore();
+        try {
+            NodeStore store = new SegmentNodeStore(source);
+            init(store);
+            addDeepTestContent(store);
+
+            Compactor compactor = new Compactor(source.getTracker().getWriter(),
+                    false, 4, GCMonitor.EMPTY, Suppliers.ofInstance(false));
+            SegmentNodeState after = compactor.compact(EMPTY_NODE, store.getRoot());
+            Assert.assertNotNull(after);
+            Assert.assertEquals(store.getRoot(), after);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void testResumeCancelledCompaction() throws Exception {
+        MemoryStore source = new MemoryStore();
+        try {
+            NodeStore store = new SegmentNodeStore(source);
+            init(store);
+            addDeepTestContent(store);
+
+            final AtomicBoolean cancelled = new AtomicBoolean(true);
+            Compactor compactor = new Compactor(source.getTracker().getWriter(),
+                    false, 4, GCMonitor.EMPTY, new Supplier<Boolean>() {
+                        @Override
+                        public Boolean get() {
+                            return cancelled.get();
+                        }
+                    });
+            Assert.assertNull(compactor.compact(EMPTY_NODE, store.getRoot()));
+
+            cancelled.set(false);
+            SegmentNodeState after = compactor.compact(EMPTY_NODE, store.getRoot());
+            Assert.assertNotNull(after);
+            Assert.assertEquals(store.getRoot(), after);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void testCancelledSequentialCompaction() throws Exception {
+        MemoryStore source = new MemoryStore();
+        try {
+            NodeStore store = new SegmentNodeStore(source);
+            init(store);
+            addDeepTestContent(store);
+
+            // the pause is lifted right after it aborted the compaction
+            final AtomicBoolean cancelled = new AtomicBoolean(true);
+            Compactor compactor = new Compactor(source.getTracker().getWriter(),
+                    false, 1, GCMonitor.EMPTY, new Supplier<Boolean>() {
+                        @Override
+                        public Boolean get() {
+                            return cancelled.getAndSet(false);
+                        }
+                    });
+            Assert.assertNull(compactor.compact(EMPTY_NODE, store.getRoot()));
+        } finally {
+            source.close();
+        }
+    }
+
     private static void init(NodeStore store) {
         new Oak(store).with(new OpenSecurityProvider())
                 .createContentRepository();
     }
 
+    private static void addDeepTestContent(NodeStore store)
+            throws CommitFailedException {
+        NodeBuilder builder = store.getRoot().builder();
+        for (int i = 0; i < 5; i++) {
+            NodeBuilder a = builder.child("a" + i);
+            for (int j = 0; j < 5; j++) {
+                NodeBuilder b = a.child("b" + j);
+                for (int k = 0; k < 5; k++) {
+                    b.child("c" + k).child("d").setProperty("p", i * j * k);
+                }
+            }
+        }
+        store.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+    }
+
     private static void addTestContent(NodeStore store, int index)
             throws CommitFailedException {
         NodeBuilder builder = store.getRoot().builder();
@@ -22,11 +22,18 @@ import static org.easymock.EasyMock.createControl;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
+import org.apache.jackrabbit.oak.cache.CacheStats;
 import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
@@ -89,4 +96,116 @@ public class MapRecordTest {
         verify(diff);
     }
 
+    @Test
+    public void testBucketCache() {
+        SegmentTracker tracker = new MemoryStore().getTracker();
+        NodeBuilder builder = EMPTY_NODE.builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.child("child" + i).setProperty("p", i);
+        }
+        NodeState state = tracker.getWriter().writeNode(builder.getNodeState());
+
+        CacheStats stats = tracker.getMapBucketCacheStats();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(state.hasChildNode("child" + i));
+        }
+        long hits = stats.getHitCount();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, state.getChildNode("child" + i).getLong("p"));
+        }
+        assertFalse(state.hasChildNode("child1000"));
+        assertTrue(stats.getHitCount() > hits + 1000);
+
+        // dropped before revision cleanup, as the cached buckets
+        // reference segment identifiers
+        assertTrue(stats.getElementCount() > 0);
+        tracker.dropRecordCaches();
+        assertEquals(0, stats.getElementCount());
+    }
+
+    @Test
+    public void testLargeMapDiff() {
+        SegmentTracker tracker = new MemoryStore().getTracker();
+        SegmentWriter writer = tracker.getWriter();
+        NodeBuilder builder = EMPTY_NODE.builder();
+        for (int i = 0; i < 2 * ConcurrentMapDiff.MIN_SIZE; i++) {
+            builder.child("child" + i);
+        }
+        NodeState before = writer.writeNode(builder.getNodeState());
+
+        builder = before.builder();
+        builder.child("child1").setProperty("p", 1);
+        builder.child("child2").remove();
+        builder.child("added");
+        NodeState after = writer.writeNode(builder.getNodeState());
+
+        final Set<String> added = newHashSet();
+        final Set<String> changed = newHashSet();
+        final Set<String> deleted = newHashSet();
+        assertTrue(after.compareAgainstBaseState(before, new DefaultNodeStateDiff() {
+            @Override
+            public boolean childNodeAdded(String name, NodeState after) {
+                return added.add(name);
+            }
+            @Override
+            public boolean childNodeChanged(
+                    String name, NodeState before, NodeState after) {
+                return changed.add(name);
+            }
+            @Override
+            public boolean childNodeDeleted(String name, NodeState before) {
+                return deleted.add(name);
+            }
+        }));
+        assertEquals(newHashSet("added"), added);
+        assertEquals(newHashSet("child1"), changed);
+        assertEquals(newHashSet("child2"), deleted);
+
+        // same changes when the buckets are compared concurrently,
+        // which the memory store doesn't do by default
+        MapRecord beforeMap = ((SegmentNodeState) before).getChildNodeMap();
+        MapRecord afterMap = ((SegmentNodeState) after).getChildNodeMap();
+        assertFalse(ConcurrentMapDiff.isApplicable(
+                tracker.getDiffExecutor(), beforeMap.size(), afterMap.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        tracker.setDiffExecutor(executor, 2);
+        try {
+            assertTrue(ConcurrentMapDiff.isApplicable(
+                    tracker.getDiffExecutor(), beforeMap.size(), afterMap.size()));
+            added.clear();
+            changed.clear();
+            deleted.clear();
+            assertTrue(after.compareAgainstBaseState(before, new DefaultNodeStateDiff() {
+                @Override
+                public boolean childNodeAdded(String name, NodeState after) {
+                    return added.add(name);
+                }
+                @Override
+                public boolean childNodeChanged(
+                        String name, NodeState before, NodeState after) {
+                    return changed.add(name);
+                }
+                @Override
+                public boolean childNodeDeleted(String name, NodeState before) {
+                    return deleted.add(name);
+                }
+            }));
+            assertEquals(newHashSet("added"), added);
+            assertEquals(newHashSet("child1"), changed);
+            assertEquals(newHashSet("child2"), deleted);
+
+            // the diff can still be aborted
+            assertFalse(after.compareAgainstBaseState(before, new DefaultNodeStateDiff() {
+                @Override
+                public boolean childNodeChanged(
+                        String name, NodeState before, NodeState after) {
+                    return false;
+                }
+            }));
+        } finally {
+            tracker.setDiffExecutor(null, 0);
+            executor.shutdown();
+        }
+    }
+
 }
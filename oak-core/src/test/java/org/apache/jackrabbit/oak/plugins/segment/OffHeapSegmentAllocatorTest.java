@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static org.apache.jackrabbit.oak.plugins.segment.OffHeapSegmentAllocator.MIN_CHUNK_SIZE;
+import static org.apache.jackrabbit.oak.plugins.segment.OffHeapSegmentAllocator.SLAB_SIZE;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.MAX_SEGMENT_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.junit.Test;
+
+public class OffHeapSegmentAllocatorTest {
+
+    @Test
+    public void allocate() {
+        OffHeapSegmentAllocator allocator = new OffHeapSegmentAllocator(1);
+
+        ByteBuffer buffer = allocator.allocate(100);
+        assertNotNull(buffer);
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(100, buffer.remaining());
+        assertEquals(MIN_CHUNK_SIZE, buffer.capacity());
+        assertEquals(SLAB_SIZE, allocator.getSize());
+        assertEquals(MIN_CHUNK_SIZE, allocator.getUsed());
+
+        buffer = allocator.allocate(MIN_CHUNK_SIZE + 1);
+        assertNotNull(buffer);
+        assertEquals(2 * MIN_CHUNK_SIZE, buffer.capacity());
+    }
+
+    @Test
+    public void releaseReusesChunk() {
+        OffHeapSegmentAllocator allocator = new OffHeapSegmentAllocator(1);
+
+        ByteBuffer buffer = allocator.allocate(MAX_SEGMENT_SIZE);
+        assertNotNull(buffer);
+        buffer.put(0, (byte) 42);
+        allocator.release(buffer);
+        assertEquals(0, allocator.getUsed());
+
+        // free chunks are reused in FIFO order, through a new buffer
+        ByteBuffer first = null;
+        for (int i = 0; i < SLAB_SIZE / MAX_SEGMENT_SIZE; i++) {
+            first = allocator.allocate(MAX_SEGMENT_SIZE);
+            assertNotNull(first);
+        }
+        assertNotSame(buffer, first);
+        assertEquals(42, first.get(0));
+        assertEquals(SLAB_SIZE, allocator.getSize());
+    }
+
+    @Test
+    public void exhausted() {
+        OffHeapSegmentAllocator allocator = new OffHeapSegmentAllocator(1);
+        for (int i = 0; i < SLAB_SIZE / MAX_SEGMENT_SIZE; i++) {
+            assertNotNull(allocator.allocate(MAX_SEGMENT_SIZE));
+        }
+        assertNull(allocator.allocate(MAX_SEGMENT_SIZE));
+        assertNull(allocator.allocate(1));
+        assertEquals(2, allocator.getFallbackCount());
+    }
+
+    @Test
+    public void ignoreForeignBuffers() {
+        OffHeapSegmentAllocator allocator = new OffHeapSegmentAllocator(1);
+        allocator.release(ByteBuffer.allocateDirect(MIN_CHUNK_SIZE));
+        allocator.register(ByteBuffer.allocate(MIN_CHUNK_SIZE));
+        assertEquals(0, allocator.getUsed());
+    }
+
+    @Test
+    public void offHeapMemoryStore() {
+        MemoryStore store = new MemoryStore(EmptyNodeState.EMPTY_NODE, 1);
+        SegmentWriter writer = store.getTracker().getWriter();
+
+        NodeBuilder builder = store.getHead().builder();
+        builder.child("root").setProperty("foo", "bar");
+        SegmentNodeState state = writer.writeNode(builder.getNodeState());
+        writer.flush();
+
+        assertEquals("bar", state.getChildNode("root").getString("foo"));
+    }
+
+    @Test
+    public void releaseOnInvalidSegment() {
+        MemoryStore store = new MemoryStore(EmptyNodeState.EMPTY_NODE, 1);
+        OffHeapSegmentAllocator allocator = store.getOffHeapSegmentAllocator();
+        assertNotNull(allocator);
+        long used = allocator.getUsed();
+
+        SegmentId id = store.getTracker().newDataSegmentId();
+        try {
+            store.writeSegment(id, new byte[16], 0, 16);
+            fail("Expected an invalid segment");
+        } catch (IllegalStateException expected) {
+            // the chunk of the rejected segment is back on its free list
+        }
+        assertEquals(used, allocator.getUsed());
+    }
+
+}
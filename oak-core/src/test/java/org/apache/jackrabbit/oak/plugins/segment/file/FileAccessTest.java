@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileAccessTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("FileAccessTest.tar");
+        data = new byte[256 * 1024];
+        new Random(0).nextBytes(data);
+        Files.write(data, file);
+    }
+
+    @Test
+    public void concurrentRandomReads() throws Exception {
+        final FileAccess access = new FileAccess.Random(
+                file, new RandomAccessFile(file, "r"));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            assertEquals(data.length, access.length());
+
+            List<Future<Void>> results = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                final Random random = new Random(i);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            int position = random.nextInt(data.length);
+                            int length = random.nextInt(data.length - position);
+                            assertEquals(
+                                    ByteBuffer.wrap(data, position, length),
+                                    access.read(position, length));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+            access.close();
+        }
+    }
+
+}
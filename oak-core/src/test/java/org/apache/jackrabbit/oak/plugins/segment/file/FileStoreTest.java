@@ -21,6 +21,7 @@ import static com.google.common.collect.Sets.newTreeSet;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 import static org.apache.jackrabbit.oak.plugins.segment.SegmentVersion.V_11;
 
 import java.io.ByteArrayInputStream;
@@ -28,10 +29,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
 import com.google.common.base.Strings;
 import org.apache.jackrabbit.oak.api.Blob;
@@ -40,9 +44,16 @@ import org.apache.jackrabbit.oak.plugins.segment.Compactor;
 import org.apache.jackrabbit.oak.plugins.segment.RecordId;
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentBlob;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeBuilder;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeState;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeStore;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNotFoundException;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentTracker;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentWriter;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -256,4 +267,183 @@ public class FileStoreTest {
         }
     }
 
+    @Test
+    public void cleanupReclaimsEvictedSegments() throws Exception {
+        FileStore store = FileStore.newFileStore(directory)
+                .withMaxFileSize(1)
+                .withCacheSize(1)
+                .create();
+        try {
+            SegmentTracker tracker = store.getTracker();
+            SegmentWriter writer = tracker.getWriter();
+
+            // a data segment that is not reachable from the head state
+            SegmentId id = writer.writeString(
+                    Strings.repeat("x", Segment.MEDIUM_LIMIT - 1)).getSegmentId();
+            writer.flush();
+            long msb = id.getMostSignificantBits();
+            long lsb = id.getLeastSignificantBits();
+            WeakReference<SegmentId> reference = new WeakReference<SegmentId>(id);
+            id = null;
+
+            // evict it from the 1MB segment cache
+            for (int i = 0; i < 256; i++) {
+                writer.writeString(Strings.repeat("y", Segment.MEDIUM_LIMIT - 1 - i));
+                writer.flush();
+            }
+            tracker.dropWriterCaches();
+            for (int i = 0; i < 10 && reference.get() != null; i++) {
+                System.gc();
+            }
+
+            store.cleanup();
+            try {
+                store.readSegment(tracker.getSegmentId(msb, lsb));
+                fail("Segment should have been reclaimed");
+            } catch (SegmentNotFoundException expected) {
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void groupCommitPersistsHead() throws Exception {
+        FileStore store = FileStore.newFileStore(directory)
+                .withMaxFileSize(1)
+                .withDurability(FileStore.Durability.WINDOW)
+                .withGroupCommitWindow(1)
+                .create();
+        try {
+            store.flush();
+            long flushes = store.getFlushLatencyHistogram().getCount();
+
+            SegmentNodeStore nodeStore = new SegmentNodeStore(store);
+            NodeBuilder builder = nodeStore.getRoot().builder();
+            builder.setProperty("foo", "bar");
+            nodeStore.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+            assertEquals(flushes + 1, store.getFlushLatencyHistogram().getCount());
+            assertEquals(flushes + 1, new FileStoreStats(store).getFlushCount());
+        } finally {
+            store.close();
+        }
+
+        store = new FileStore(directory, 1, false);
+        try {
+            assertEquals("bar", store.getHead().getString("foo"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void groupCommitSharesFlush() throws Exception {
+        int commits = 10;
+        final FileStore store = FileStore.newFileStore(directory)
+                .withMaxFileSize(1)
+                .withDurability(FileStore.Durability.WINDOW)
+                .withGroupCommitWindow(1000)
+                .create();
+        try {
+            store.flush();
+            long flushes = store.getFlushLatencyHistogram().getCount();
+
+            final SegmentNodeStore nodeStore = new SegmentNodeStore(store);
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Exception> exceptions =
+                    Collections.synchronizedList(new ArrayList<Exception>());
+            List<Thread> threads = newArrayList();
+            for (int i = 0; i < commits; i++) {
+                final String name = "thread" + i;
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            NodeBuilder builder = nodeStore.getRoot().builder();
+                            builder.child(name);
+                            nodeStore.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+                        } catch (Exception e) {
+                            exceptions.add(e);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(exceptions.toString(), exceptions.isEmpty());
+
+            // all commits arrive within the window of the first one and
+            // share its flush. The background flush thread may add another.
+            long grouped = store.getFlushLatencyHistogram().getCount() - flushes;
+            assertTrue("Expected the commits to share a flush, but got "
+                    + grouped + " flushes", grouped >= 1 && grouped <= 2);
+        } finally {
+            store.close();
+        }
+
+        FileStore reopened = new FileStore(directory, 1, false);
+        try {
+            for (int i = 0; i < commits; i++) {
+                assertTrue(reopened.getHead().hasChildNode("thread" + i));
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        final FileStore store = FileStore.newFileStore(directory)
+                .withMaxFileSize(1)
+                .withConcurrentWriters(4)
+                .create();
+        try {
+            final SegmentNodeStore nodeStore = new SegmentNodeStore(store);
+            final List<Exception> exceptions =
+                    Collections.synchronizedList(new ArrayList<Exception>());
+            List<Thread> threads = newArrayList();
+            for (int i = 0; i < 4; i++) {
+                final String name = "thread" + i;
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 100; j++) {
+                                NodeBuilder builder = nodeStore.getRoot().builder();
+                                builder.child(name).setProperty("count", j);
+                                nodeStore.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+                            }
+                        } catch (Exception e) {
+                            exceptions.add(e);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(exceptions.toString(), exceptions.isEmpty());
+        } finally {
+            store.close();
+        }
+
+        FileStore reopened = new FileStore(directory, 1, false);
+        try {
+            for (int i = 0; i < 4; i++) {
+                assertEquals(99, reopened.getHead().getChildNode("thread" + i).getLong("count"));
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
 }
@@ -17,11 +17,19 @@
 package org.apache.jackrabbit.oak.plugins.segment.file;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.util.Collections.singletonList;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.junit.Before;
@@ -68,4 +76,94 @@ public class TarFileTest {
         }
     }
 
+    @Test
+    public void testLookupTable() throws IOException {
+        byte[] data = "Hello, World!".getBytes(UTF_8);
+        UUID[] ids = new UUID[100];
+
+        TarWriter writer = new TarWriter(file);
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                UUID id = UUID.randomUUID();
+                ids[i] = new UUID(
+                        id.getMostSignificantBits(),
+                        id.getLeastSignificantBits() & (-1 >>> 4));
+                writer.writeEntry(
+                        ids[i].getMostSignificantBits(),
+                        ids[i].getLeastSignificantBits(),
+                        data, 0, data.length);
+            }
+        } finally {
+            writer.close();
+        }
+
+        TarReader reader = TarReader.open(file, false);
+        try {
+            TarLookupTable table = TarLookupTable.build(singletonList(reader));
+            assertEquals(ids.length, table.size());
+            for (UUID id : ids) {
+                long msb = id.getMostSignificantBits();
+                long lsb = id.getLeastSignificantBits();
+                assertTrue(reader.mayContainEntry(msb, lsb));
+                assertSame(reader, table.get(msb));
+            }
+
+            UUID other = UUID.randomUUID();
+            assertNull(table.get(other.getMostSignificantBits()));
+            assertFalse(reader.containsEntry(
+                    other.getMostSignificantBits(),
+                    other.getLeastSignificantBits()));
+
+            TarLookupTable extended = TarLookupTable.EMPTY.with(reader);
+            assertEquals(ids.length, extended.size());
+            assertSame(reader, extended.get(ids[0].getMostSignificantBits()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testMarkAndSweep() throws IOException {
+        byte[] data = new byte[4096];
+        long[] msbs = new long[4];
+        long[] lsbs = new long[4];
+
+        TarWriter writer = new TarWriter(file);
+        try {
+            for (int i = 0; i < msbs.length; i++) {
+                UUID id = UUID.randomUUID();
+                msbs[i] = id.getMostSignificantBits();
+                lsbs[i] = (id.getLeastSignificantBits() & (-1L >>> 4)) | (0xBL << 60); // bulk
+                writer.writeEntry(msbs[i], lsbs[i], data, 0, data.length);
+            }
+        } finally {
+            writer.close();
+        }
+
+        TarReader reader = TarReader.open(file, false);
+        TarReader cleaned = null;
+        try {
+            Set<UUID> ids = newHashSet(new UUID(msbs[0], lsbs[0]));
+            List<UUID> references = reader.mark(ids, null);
+            assertTrue(references.isEmpty());
+            assertTrue(reader.isMarked(msbs[0], lsbs[0]));
+            assertFalse(reader.isMarked(msbs[1], lsbs[1]));
+
+            // an unchanged set of referenced segments reuses the last mark
+            assertSame(references, reader.mark(ids, null));
+
+            cleaned = reader.sweep();
+            assertTrue(cleaned != null && cleaned != reader);
+            assertTrue(cleaned.containsEntry(msbs[0], lsbs[0]));
+            for (int i = 1; i < msbs.length; i++) {
+                assertFalse(cleaned.containsEntry(msbs[i], lsbs[i]));
+            }
+        } finally {
+            reader.close();
+            if (cleaned != null) {
+                cleaned.close();
+            }
+        }
+    }
+
 }
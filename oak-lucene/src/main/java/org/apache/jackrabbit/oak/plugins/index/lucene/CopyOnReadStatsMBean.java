@@ -47,6 +47,10 @@ public interface CopyOnReadStatsMBean {
 
     long getDownloadTime();
 
+    String getUploadSize();
+
+    long getUploadTime();
+
     String getLocalIndexSize();
 
     String[] getGarbageDetails();
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Cache of the text extracted from binaries. The text is keyed by the
+ * {@link Blob#getContentIdentity() content identity} of the binary together
+ * with the options the text was extracted with (see
+ * {@link #getKey(Blob, String, int)}), such that indexes extracting the
+ * same binary differently don't share the text. The text is kept in a
+ * size bounded in-memory cache and, if a directory is configured, also
+ * stored in the file system so that it survives restarts and the same
+ * binary is not parsed again when an index is reindexed.
+ * The size of the directory is bounded, once it is exceeded the least
+ * recently used files are deleted. Binaries without a content identity are
+ * not cached.
+ */
+class ExtractedTextCache {
+    private static final Logger log = LoggerFactory.getLogger(ExtractedTextCache.class);
+
+    private final Cache<String, String> cache;
+    private final File dir;
+    private final long maxDirSize;
+    private final AtomicLong dirSize = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong fileHitCount = new AtomicLong();
+
+    /**
+     * @param maxWeight the maximum size of the in-memory cache in bytes. A
+     *                  value of zero disables the in-memory cache.
+     * @param dir the directory where extracted text is stored, or
+     *            {@code null} if the text should not be stored.
+     * @param maxDirSize the maximum size of the files in {@code dir} in bytes.
+     */
+    ExtractedTextCache(long maxWeight, @Nullable File dir, long maxDirSize) {
+        checkArgument(dir == null || maxDirSize > 0,
+                "Invalid maximum size %s of directory %s", maxDirSize, dir);
+        if (maxWeight > 0) {
+            cache = CacheBuilder.newBuilder()
+                    .maximumWeight(maxWeight)
+                    .weigher(new Weigher<String, String>() {
+                        @Override
+                        public int weigh(@Nonnull String key, @Nonnull String value) {
+                            return 40 + (key.length() + value.length()) * 2;
+                        }
+                    }).build();
+        } else {
+            cache = null;
+        }
+        if (dir != null && !dir.exists()) {
+            checkState(dir.mkdirs(), "Cannot create directory %s", dir);
+        }
+        this.dir = dir;
+        this.maxDirSize = maxDirSize;
+        if (dir != null) {
+            long size = 0;
+            for (File file : listFiles()) {
+                size += file.length();
+            }
+            dirSize.set(size);
+        }
+    }
+
+    /**
+     * Returns the cache key for the text extracted from the given binary.
+     *
+     * @param blob the binary.
+     * @param mediaType the media type (and encoding) the binary is parsed
+     *                  as, or {@code null} if it is detected by the parser.
+     * @param maxExtractLength the maximum length of the extracted text.
+     * @return the key or {@code null} if the binary has no content
+     *          identity, in which case the text is not cached.
+     */
+    @CheckForNull
+    static String getKey(@Nonnull Blob blob, @Nullable String mediaType,
+                         int maxExtractLength) {
+        String id = blob.getContentIdentity();
+        if (id == null) {
+            return null;
+        }
+        return id + '|' + maxExtractLength + '|' + Strings.nullToEmpty(mediaType);
+    }
+
+    /**
+     * Returns the text for the given key from the in-memory cache. Each
+     * call is counted as either a hit or a miss.
+     *
+     * @param key the key of the text.
+     * @return the extracted text or {@code null} if not in the in-memory cache.
+     */
+    @CheckForNull
+    String getIfPresent(@Nonnull String key) {
+        String text = cache != null ? cache.getIfPresent(key) : null;
+        if (text != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return text;
+    }
+
+    /**
+     * Returns the text for the given key from the file system, and adds
+     * it to the in-memory cache. To be called after
+     * {@link #getIfPresent(String)} missed.
+     *
+     * @param key the key of the text.
+     * @return the extracted text or {@code null} if it is not stored.
+     */
+    @CheckForNull
+    String load(@Nonnull String key) {
+        if (dir == null) {
+            return null;
+        }
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            String text = Files.toString(file, Charsets.UTF_8);
+            //Keep recently used files on eviction
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                log.debug("Cannot update last modified time of {}", file);
+            }
+            if (cache != null) {
+                cache.put(key, text);
+            }
+            fileHitCount.incrementAndGet();
+            return text;
+        } catch (IOException e) {
+            log.warn("Error occurred while reading extracted text from {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the text for the given key from the in-memory cache or
+     * the file system.
+     *
+     * @param key the key of the text.
+     * @return the extracted text or {@code null} if none is cached.
+     */
+    @CheckForNull
+    String get(@Nonnull String key) {
+        String text = getIfPresent(key);
+        if (text == null) {
+            text = load(key);
+        }
+        return text;
+    }
+
+    /**
+     * Puts the extracted text into the cache.
+     *
+     * @param key the key of the text.
+     * @param text the text extracted from the binary.
+     */
+    void put(@Nonnull String key, @Nonnull String text) {
+        if (cache != null) {
+            cache.put(key, text);
+        }
+        if (dir != null) {
+            File file = getFile(key);
+            File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+            try {
+                long oldLength = file.length();
+                Files.createParentDirs(file);
+                Files.write(text, tmp, Charsets.UTF_8);
+                if (tmp.renameTo(file)) {
+                    if (dirSize.addAndGet(file.length() - oldLength) > maxDirSize) {
+                        evict(file);
+                    }
+                } else if (!file.exists()) {
+                    log.warn("Cannot rename {} to {}", tmp, file);
+                }
+            } catch (IOException e) {
+                log.warn("Error occurred while writing extracted text to {}", file, e);
+            } finally {
+                if (tmp.exists() && !tmp.delete()) {
+                    log.debug("Cannot delete {}", tmp);
+                }
+            }
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getFileHitCount() {
+        return fileHitCount.get();
+    }
+
+    long getDirSize() {
+        return dirSize.get();
+    }
+
+    /**
+     * Deletes the least recently used files until the directory is down to
+     * three quarters of its maximum size, such that eviction does not run
+     * on every put.
+     *
+     * @param keep the file just written, which is not deleted.
+     */
+    private synchronized void evict(File keep) {
+        if (dirSize.get() <= maxDirSize) {
+            return;
+        }
+        List<File> files = listFiles();
+        //Snapshot the times, they change with concurrent reads
+        final Map<File, Long> lastModified = newHashMap();
+        for (File file : files) {
+            lastModified.put(file, file.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Longs.compare(lastModified.get(f1), lastModified.get(f2));
+            }
+        });
+        long target = maxDirSize / 4 * 3;
+        int count = 0;
+        for (File file : files) {
+            if (dirSize.get() <= target) {
+                break;
+            }
+            long length = file.length();
+            if (!file.equals(keep) && file.delete()) {
+                dirSize.addAndGet(-length);
+                count++;
+            }
+        }
+        log.debug("Evicted {} files of extracted text from {}", count, dir);
+    }
+
+    private List<File> listFiles() {
+        List<File> files = newArrayList();
+        File[] shards = dir.listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] children = shard.listFiles();
+                if (children != null) {
+                    for (File file : children) {
+                        if (!file.getName().endsWith(".tmp")) {
+                            files.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private File getFile(String key) {
+        String name = Hashing.sha256().hashString(key, Charsets.UTF_8).toString();
+        return new File(new File(dir, name.substring(0, 2)), name);
+    }
+}
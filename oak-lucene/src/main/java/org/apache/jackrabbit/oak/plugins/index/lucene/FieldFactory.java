@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.oak.plugins.index.lucene;
 
+import java.io.Reader;
 import java.util.Arrays;
 
 import com.google.common.primitives.Ints;
@@ -110,6 +111,14 @@ public final class FieldFactory {
         return new TextField(FieldNames.createFulltextFieldName(name), value, NO);
     }
 
+    public static Field newFulltextField(Reader value) {
+        return new TextField(FULLTEXT, value);
+    }
+
+    public static Field newFulltextField(String name, Reader value) {
+        return new TextField(FieldNames.createFulltextFieldName(name), value);
+    }
+
     public static Field newAncestorsField(String path){
         return new TextField(FieldNames.ANCESTORS, path, NO);
     }
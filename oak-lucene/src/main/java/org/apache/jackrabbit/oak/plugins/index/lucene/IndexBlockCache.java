@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+import org.apache.jackrabbit.oak.api.Blob;
+
+/**
+ * Cache of the blocks (blobs) of Lucene index files stored in the
+ * repository, shared by all inputs opened on an {@link OakDirectory}. Blocks
+ * are keyed by the {@link Blob#getContentIdentity() content identity} of the
+ * blob, so they are also shared between index readers opened at different
+ * revisions of the same index. Cached blocks are never modified, which
+ * allows inputs and their clones to read from them without a copy.
+ * The cache is created by the {@link LuceneIndexProviderService} and handed
+ * to the {@link IndexTracker}.
+ */
+class IndexBlockCache {
+
+    private final Cache<String, byte[]> cache;
+
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * @param maxWeight the maximum size of the cached blocks in bytes. A
+     *                  value of zero disables the cache.
+     */
+    IndexBlockCache(long maxWeight) {
+        if (maxWeight > 0) {
+            cache = CacheBuilder.newBuilder()
+                    .maximumWeight(maxWeight)
+                    .recordStats()
+                    .weigher(new Weigher<String, byte[]>() {
+                        @Override
+                        public int weigh(@Nonnull String key, @Nonnull byte[] value) {
+                            return weight(key, value);
+                        }
+                    })
+                    .removalListener(new RemovalListener<String, byte[]>() {
+                        @Override
+                        public void onRemoval(@Nonnull RemovalNotification<String, byte[]> n) {
+                            size.addAndGet(-weight(n.getKey(), n.getValue()));
+                        }
+                    }).build();
+        } else {
+            cache = null;
+        }
+    }
+
+    /**
+     * Returns the first {@code length} bytes of the given blob from the
+     * cache, and loads them into the cache if needed. The returned array
+     * must not be modified.
+     *
+     * @param blob the blob to read.
+     * @param length the number of bytes to read.
+     * @return the cached block or {@code null} if the blob cannot be cached.
+     */
+    @CheckForNull
+    byte[] getBlock(final Blob blob, final int length) throws IOException {
+        final String id = cache != null ? blob.getContentIdentity() : null;
+        if (id == null) {
+            return null;
+        }
+        byte[] block;
+        try {
+            //Concurrent readers of the same block wait for a single load
+            block = cache.get(id, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    byte[] block = new byte[length];
+                    InputStream stream = blob.getNewStream();
+                    try {
+                        ByteStreams.readFully(stream, block, 0, length);
+                    } finally {
+                        stream.close();
+                    }
+                    size.addAndGet(weight(id, block));
+                    return block;
+                }
+            });
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        }
+        //Blobs with the same content identity have the same length. If not,
+        //the caller reads the blob into its own buffer
+        return block.length == length ? block : null;
+    }
+
+    long getHitCount() {
+        return cache != null ? cache.stats().hitCount() : 0;
+    }
+
+    long getMissCount() {
+        return cache != null ? cache.stats().missCount() : 0;
+    }
+
+    /**
+     * @return the estimated size of the cached blocks in bytes.
+     */
+    long getSize() {
+        return size.get();
+    }
+
+    private static int weight(String key, byte[] value) {
+        return 64 + key.length() * 2 + value.length;
+    }
+}
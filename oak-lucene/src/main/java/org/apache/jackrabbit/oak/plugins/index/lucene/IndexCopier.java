@@ -20,16 +20,22 @@
 package org.apache.jackrabbit.oak.plugins.index.lucene;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -48,6 +54,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.oak.commons.IOUtils;
@@ -58,6 +65,7 @@ import org.apache.lucene.store.FilterDirectory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NoLockFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -86,12 +94,15 @@ class IndexCopier implements CopyOnReadStatsMBean {
     private final AtomicLong downloadSize = new AtomicLong();
     private final AtomicLong garbageCollectedSize = new AtomicLong();
     private final AtomicLong downloadTime = new AtomicLong();
+    private final AtomicLong uploadSize = new AtomicLong();
+    private final AtomicLong uploadTime = new AtomicLong();
 
 
     private final Map<String, String> indexPathMapping = Maps.newConcurrentMap();
     private final Map<String, String> indexPathVersionMapping = Maps.newConcurrentMap();
     private final ConcurrentMap<String, LocalIndexFile> failedToDeleteFiles = Maps.newConcurrentMap();
     private final Set<LocalIndexFile> copyInProgressFiles = Collections.newSetFromMap(new ConcurrentHashMap<LocalIndexFile, Boolean>());
+    private final Set<File> writeInProgressDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
 
     public IndexCopier(Executor executor, File indexRootDir) {
         this.executor = executor;
@@ -103,14 +114,32 @@ class IndexCopier implements CopyOnReadStatsMBean {
         return new CopyOnReadDirectory(remote, local);
     }
 
+    /**
+     * Wraps the remote directory an index writer writes to, such that the
+     * writer writes to a local directory and the files are copied to the
+     * remote directory in the background. The local directory is the one
+     * searchers opened by {@link #wrap} use for the same index path and
+     * reindex count, so the written files do not have to be copied back.
+     *
+     * @param indexPath the path of the index definition.
+     * @param reindexCount the reindex count of the index.
+     * @param remote the directory to copy the written files to.
+     * @param reindexMode whether the index is written from scratch.
+     * @return the directory to write to. The files are copied to the remote
+     *          directory when this directory is closed at the latest.
+     */
+    public Directory wrapForWrite(String indexPath, long reindexCount,
+                                  Directory remote, boolean reindexMode) throws IOException {
+        File versionedIndexDir = getVersionedIndexDir(indexPath, reindexCount);
+        // indexing is single threaded, so locking is not required
+        Directory local = FSDirectory.open(versionedIndexDir, NoLockFactory.getNoLockFactory());
+        return new CopyOnWriteDirectory(remote, local, versionedIndexDir, reindexMode);
+    }
+
     protected Directory createLocalDir(String indexPath, IndexDefinition definition) throws IOException {
         File indexDir = getIndexDir(indexPath);
         String newVersion = String.valueOf(definition.getReindexCount());
-        File versionedIndexDir = new File(indexDir, newVersion);
-        if (!versionedIndexDir.exists()) {
-            checkState(versionedIndexDir.mkdirs(), "Cannot create directory %s", versionedIndexDir);
-        }
-        indexPathMapping.put(indexPath, indexDir.getAbsolutePath());
+        File versionedIndexDir = getVersionedIndexDir(indexPath, definition.getReindexCount());
         Directory result = FSDirectory.open(versionedIndexDir);
 
         String oldVersion = indexPathVersionMapping.put(indexPath, newVersion);
@@ -120,6 +149,16 @@ class IndexCopier implements CopyOnReadStatsMBean {
         return result;
     }
 
+    private File getVersionedIndexDir(String indexPath, long reindexCount) {
+        File indexDir = getIndexDir(indexPath);
+        File versionedIndexDir = new File(indexDir, String.valueOf(reindexCount));
+        if (!versionedIndexDir.exists()) {
+            checkState(versionedIndexDir.mkdirs(), "Cannot create directory %s", versionedIndexDir);
+        }
+        indexPathMapping.put(indexPath, indexDir.getAbsolutePath());
+        return versionedIndexDir;
+    }
+
     public File getIndexDir(String indexPath) {
         String subDir = Hashing.sha256().hashString(indexPath, Charsets.UTF_8).toString();
         return new File(indexRootDir, subDir);
@@ -219,7 +258,12 @@ class IndexCopier implements CopyOnReadStatsMBean {
             FileReference toPut = new FileReference(name);
             FileReference old = files.putIfAbsent(name, toPut);
             if (old == null) {
-                copy(toPut);
+                if (isLocalCopy(name)) {
+                    // e.g. written by a CopyOnWriteDirectory
+                    toPut.markValid();
+                } else {
+                    copy(toPut);
+                }
             }
 
             //If immediate executor is used the result would be ready right away
@@ -230,6 +274,11 @@ class IndexCopier implements CopyOnReadStatsMBean {
             return remote.openInput(name, context);
         }
 
+        private boolean isLocalCopy(String name) throws IOException {
+            return local.fileExists(name)
+                    && local.fileLength(name) == remote.fileLength(name);
+        }
+
         private void copy(final FileReference reference) {
             updateMaxScheduled(scheduledForCopyCount.incrementAndGet());
             executor.execute(new Runnable() {
@@ -332,6 +381,14 @@ class IndexCopier implements CopyOnReadStatsMBean {
         }
 
         private void removeDeletedFiles() throws IOException {
+            File localDir = getFSDir(local);
+            if (localDir != null && writeInProgressDirs.contains(localDir)) {
+                //Files not yet present in source may currently be written
+                //by a CopyOnWriteDirectory. Deleted files are removed on a
+                //later close
+                log.debug("Not removing deleted files from {} while it is written to", local);
+                return;
+            }
             //Files present in dest but not present in source have to be deleted
             Set<String> filesToBeDeleted = Sets.difference(
                     ImmutableSet.copyOf(local.listAll()),
@@ -388,6 +445,270 @@ class IndexCopier implements CopyOnReadStatsMBean {
         }
     }
 
+    /**
+     * Directory implementation used by an index writer, which writes the
+     * index files to a local directory and copies them to the remote
+     * directory in background. Files are read from the local directory only,
+     * missing files are copied from the remote directory when this directory
+     * is opened.
+     * <p>
+     * After the directory is opened, all operations on the remote directory
+     * are performed one after the other, in the order they were requested,
+     * by tasks run with {@link #executor}. The remote directory is therefore
+     * never accessed concurrently. {@link #close()} waits until all tasks
+     * are done.
+     */
+    private class CopyOnWriteDirectory extends BaseDirectory {
+        private final Directory remote;
+        private final Directory local;
+        private final File localDir;
+
+        /**
+         * The files of this directory, mapped to {@code true} if the file
+         * was created through this directory and {@code false} if the file
+         * already existed when this directory was opened.
+         */
+        private final ConcurrentMap<String, Boolean> files = newConcurrentMap();
+
+        private final Queue<Callable<Void>> tasks = new ConcurrentLinkedQueue<Callable<Void>>();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile IOException failure;
+
+        private final Runnable runTasks = new Runnable() {
+            @Override
+            public void run() {
+                do {
+                    Callable<Void> task;
+                    while ((task = tasks.poll()) != null) {
+                        runTask(task);
+                    }
+                    running.set(false);
+                    // check again in case a task was added after the
+                    // queue was found empty but before running was reset
+                } while (!tasks.isEmpty() && running.compareAndSet(false, true));
+            }
+        };
+
+        public CopyOnWriteDirectory(Directory remote, Directory local, File localDir,
+                                    boolean reindexMode) throws IOException {
+            this.remote = remote;
+            this.local = local;
+            this.localDir = localDir;
+            setLockFactory(NoLockFactory.getNoLockFactory());
+            writeInProgressDirs.add(localDir);
+            try {
+                if (reindexMode) {
+                    //Remote is empty. Local files are left over from an
+                    //earlier attempt, which are not used by any searcher
+                    for (String name : local.listAll()) {
+                        local.deleteFile(name);
+                    }
+                } else {
+                    for (String name : remote.listAll()) {
+                        if (REMOTE_ONLY.contains(name) || !local.fileExists(name)
+                                || local.fileLength(name) != remote.fileLength(name)) {
+                            long fileSize = remote.fileLength(name);
+                            LocalIndexFile file = new LocalIndexFile(local, name, fileSize);
+                            long start = startCopy(file);
+                            remote.copy(local, name, name, IOContext.READ);
+                            doneCopy(file, start);
+                        }
+                        files.put(name, false);
+                    }
+                }
+            } catch (IOException e) {
+                writeInProgressDirs.remove(localDir);
+                throw e;
+            }
+        }
+
+        @Override
+        public String[] listAll() throws IOException {
+            return toArray(files.keySet(), String.class);
+        }
+
+        @Override
+        public boolean fileExists(String name) throws IOException {
+            return files.containsKey(name);
+        }
+
+        @Override
+        public void deleteFile(final String name) throws IOException {
+            final Boolean created = files.remove(name);
+            if (created == null) {
+                throw new FileNotFoundException(name);
+            }
+            schedule(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (remote.fileExists(name)) {
+                        remote.deleteFile(name);
+                    }
+                    //Files which existed before may still be used by
+                    //searchers. They are removed by the CopyOnReadDirectory
+                    if (created && local.fileExists(name)) {
+                        local.deleteFile(name);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public long fileLength(String name) throws IOException {
+            if (!files.containsKey(name)) {
+                throw new FileNotFoundException(name);
+            }
+            return local.fileLength(name);
+        }
+
+        @Override
+        public IndexOutput createOutput(final String name, IOContext context) throws IOException {
+            files.put(name, true);
+            return new CopyOnCloseIndexOutput(local.createOutput(name, context)) {
+                @Override
+                void copy() {
+                    schedule(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            if (files.containsKey(name)) {
+                                upload(name);
+                            }
+                            return null;
+                        }
+                    });
+                }
+            };
+        }
+
+        @Override
+        public void sync(Collection<String> names) throws IOException {
+            //The remote directory is the one which needs to be durable,
+            //and the files are copied to it when this directory is closed
+            //at the latest
+        }
+
+        @Override
+        public IndexInput openInput(String name, IOContext context) throws IOException {
+            if (!files.containsKey(name)) {
+                throw new FileNotFoundException(name);
+            }
+            return local.openInput(name, context);
+        }
+
+        @Override
+        public void close() throws IOException {
+            final CountDownLatch done = new CountDownLatch(1);
+            schedule(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    done.countDown();
+                    return null;
+                }
+            });
+            Uninterruptibles.awaitUninterruptibly(done);
+            writeInProgressDirs.remove(localDir);
+            try {
+                local.close();
+                remote.close();
+            } catch (IOException e) {
+                log.warn("Error occurred while closing directory ", e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("CopyOnWrite(%s -> %s)", local, remote);
+        }
+
+        private void upload(String name) throws IOException {
+            long start = System.currentTimeMillis();
+            local.copy(remote, name, name, IOContext.DEFAULT);
+            uploadTime.addAndGet(System.currentTimeMillis() - start);
+            uploadSize.addAndGet(local.fileLength(name));
+        }
+
+        private void schedule(Callable<Void> task) {
+            tasks.add(task);
+            if (running.compareAndSet(false, true)) {
+                executor.execute(runTasks);
+            }
+        }
+
+        private void runTask(Callable<Void> task) {
+            try {
+                task.call();
+            } catch (Exception e) {
+                //Remaining tasks are still run, the failure is reported
+                //when the directory is closed
+                log.warn("Error occurred while copying files from {} to {}", local, remote, e);
+                if (failure == null) {
+                    failure = e instanceof IOException
+                            ? (IOException) e : new IOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * An {@link IndexOutput} which calls {@link #copy()} once the file
+     * was written and closed.
+     */
+    private abstract static class CopyOnCloseIndexOutput extends IndexOutput {
+        private final IndexOutput delegate;
+
+        CopyOnCloseIndexOutput(IndexOutput delegate) {
+            this.delegate = delegate;
+        }
+
+        abstract void copy();
+
+        @Override
+        public void writeByte(byte b) throws IOException {
+            delegate.writeByte(b);
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int length) throws IOException {
+            delegate.writeBytes(b, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public long getFilePointer() {
+            return delegate.getFilePointer();
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public void seek(long pos) throws IOException {
+            delegate.seek(pos);
+        }
+
+        @Override
+        public long length() throws IOException {
+            return delegate.length();
+        }
+
+        @Override
+        public void setLength(long length) throws IOException {
+            delegate.setLength(length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+            copy();
+        }
+    }
+
     private long startCopy(LocalIndexFile file) {
         updateMaxInProgress(copyInProgressCount.incrementAndGet());
         copyInProgressSize.addAndGet(file.size);
@@ -588,6 +909,16 @@ class IndexCopier implements CopyOnReadStatsMBean {
         return downloadTime.get();
     }
 
+    @Override
+    public String getUploadSize() {
+        return IOUtils.humanReadableByteCount(uploadSize.get());
+    }
+
+    @Override
+    public long getUploadTime() {
+        return uploadTime.get();
+    }
+
     @Override
     public String getLocalIndexSize() {
         return IOUtils.humanReadableByteCount(FileUtils.sizeOfDirectory(indexRootDir));
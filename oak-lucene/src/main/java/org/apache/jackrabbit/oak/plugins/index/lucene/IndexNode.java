@@ -40,13 +40,13 @@ import org.apache.lucene.store.FSDirectory;
 
 class IndexNode {
 
-    static IndexNode open(String indexPath, NodeState root, NodeState defnNodeState,@Nullable IndexCopier cloner)
-            throws IOException {
+    static IndexNode open(String indexPath, NodeState root, NodeState defnNodeState,@Nullable IndexCopier cloner,
+                          @Nullable IndexBlockCache blockCache) throws IOException {
         Directory directory = null;
         IndexDefinition definition = new IndexDefinition(root, defnNodeState, indexPath);
         NodeState data = defnNodeState.getChildNode(INDEX_DATA_CHILD_NAME);
         if (data.exists()) {
-            directory = new OakDirectory(new ReadOnlyBuilder(data), definition);
+            directory = new OakDirectory(new ReadOnlyBuilder(data), definition, blockCache);
             if (cloner != null){
                 directory = cloner.wrap(indexPath, definition, directory);
             }
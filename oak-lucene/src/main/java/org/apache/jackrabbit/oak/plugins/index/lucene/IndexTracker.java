@@ -34,6 +34,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.spi.commit.CompositeEditor;
 import org.apache.jackrabbit.oak.spi.commit.DefaultEditor;
@@ -46,6 +48,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 
 class IndexTracker {
 
@@ -55,6 +58,16 @@ class IndexTracker {
 
     private final IndexCopier cloner;
 
+    private final IndexBlockCache blockCache;
+
+    /**
+     * Serializes {@link #update(NodeState)} and {@link #close()}. Lookups of
+     * index nodes synchronize on this tracker instead, which is only held for
+     * a short time by updates, so they are not blocked while updated index
+     * nodes are opened.
+     */
+    private final Object updateLock = new Object();
+
     private NodeState root = EMPTY_NODE;
 
     private volatile Map<String, IndexNode> indices = emptyMap();
@@ -64,12 +77,28 @@ class IndexTracker {
     }
 
     IndexTracker(IndexCopier cloner){
+        this(cloner, null);
+    }
+
+    /**
+     * @param cloner the copier of index files to the local file system, or
+     *               {@code null} if indexes are read from the repository.
+     * @param blockCache the cache of the blocks of index files read from the
+     *                   repository, or {@code null} if blocks are not cached.
+     */
+    IndexTracker(@Nullable IndexCopier cloner, @Nullable IndexBlockCache blockCache){
         this.cloner = cloner;
+        this.blockCache = blockCache != null ? blockCache : new IndexBlockCache(0);
     }
 
-    synchronized void close() {
-        Map<String, IndexNode> indices = this.indices;
-        this.indices = emptyMap();
+    void close() {
+        Map<String, IndexNode> indices;
+        synchronized (updateLock) {
+            synchronized (this) {
+                indices = this.indices;
+                this.indices = emptyMap();
+            }
+        }
 
         for (Map.Entry<String, IndexNode> entry : indices.entrySet()) {
             try {
@@ -80,7 +109,13 @@ class IndexTracker {
         }
     }
 
-    synchronized void update(final NodeState root) {
+    void update(final NodeState root) {
+        synchronized (updateLock) {
+            update0(root);
+        }
+    }
+
+    private void update0(final NodeState root) {
         Map<String, IndexNode> original = indices;
         final Map<String, IndexNode> updates = newHashMap();
 
@@ -92,7 +127,7 @@ class IndexTracker {
                 @Override
                 public void leave(NodeState before, NodeState after) {
                     try {
-                        IndexNode index = IndexNode.open(path, root, after, cloner);
+                        IndexNode index = IndexNode.open(path, root, after, cloner, blockCache);
                         log.debug("Index found to be updated at [{}]. Reopening the IndexNode", path);
                         updates.put(path, index); // index can be null
                     } catch (IOException e) {
@@ -102,26 +137,39 @@ class IndexTracker {
             }, Iterables.toArray(PathUtils.elements(path), String.class)));
         }
 
-        EditorDiff.process(CompositeEditor.compose(editors), this.root, root);
-        this.root = root;
-
-        if (!updates.isEmpty()) {
-            indices = ImmutableMap.<String, IndexNode>builder()
-                    .putAll(filterKeys(original, not(in(updates.keySet()))))
-                    .putAll(filterValues(updates, notNull()))
-                    .build();
-
-            //This might take some time as close need to acquire the
-            //write lock which might be held by current running searches
-            //Given that Tracker is now invoked from a BackgroundObserver
-            //not a high concern
-            for (String path : updates.keySet()) {
-                IndexNode index = original.get(path);
-                try {
-                    index.close();
-                } catch (IOException e) {
-                    log.error("Failed to close Lucene index at " + path, e);
-                }
+        //Opening the updated indexes may take some time. Meanwhile lookups
+        //keep using the current index nodes
+        EditorDiff.process(CompositeEditor.compose(editors), getRoot(), root);
+
+        Map<String, IndexNode> toClose = newHashMap();
+        synchronized (this) {
+            Map<String, IndexNode> current = indices;
+            this.root = root;
+
+            //Index nodes opened by lookups during this update are based on
+            //the previous root. They may be outdated and are opened again on
+            //the next lookup
+            Set<String> added = Sets.difference(current.keySet(), original.keySet());
+            Set<String> replaced = Sets.union(updates.keySet(), added);
+            if (!replaced.isEmpty()) {
+                indices = ImmutableMap.<String, IndexNode>builder()
+                        .putAll(filterKeys(current, not(in(replaced))))
+                        .putAll(filterValues(updates, notNull()))
+                        .build();
+                toClose.putAll(filterKeys(current, in(replaced)));
+            }
+        }
+
+        //Old index nodes are closed only now that they are replaced.
+        //This might take some time as close need to acquire the
+        //write lock which might be held by current running searches
+        //Given that Tracker is now invoked from a BackgroundObserver
+        //not a high concern
+        for (Map.Entry<String, IndexNode> entry : toClose.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (IOException e) {
+                log.error("Failed to close Lucene index at " + entry.getKey(), e);
             }
         }
     }
@@ -139,10 +187,19 @@ class IndexTracker {
         return indices.keySet();
     }
 
+    IndexBlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    private synchronized NodeState getRoot() {
+        return root;
+    }
+
     private synchronized IndexNode findIndexNode(String path) {
         // Retry the lookup from acquireIndexNode now that we're
         // synchronized. The acquire() call is guaranteed to succeed
-        // since the close() method is also synchronized.
+        // since index nodes are only closed after they have been
+        // removed from the map while synchronized.
         IndexNode index = indices.get(path);
         if (index != null) {
             checkState(index.acquire());
@@ -156,7 +213,7 @@ class IndexTracker {
 
         try {
             if (isLuceneIndexNode(node)) {
-                index = IndexNode.open(path, root, node, cloner);
+                index = IndexNode.open(path, root, node, cloner, blockCache);
                 if (index != null) {
                     checkState(index.acquire());
                     indices = ImmutableMap.<String, IndexNode>builder()
@@ -28,13 +28,15 @@ import static org.apache.jackrabbit.oak.plugins.index.lucene.TermFactory.newPath
 import static org.apache.jackrabbit.oak.plugins.index.lucene.util.ConfigUtil.getPrimaryTypeName;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
@@ -66,8 +68,6 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.util.BytesRef;
 import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.ParseContext;
-import org.apache.tika.sax.WriteOutContentHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -114,11 +114,24 @@ public class LuceneIndexEditor implements IndexEditor, Aggregate.AggregateRoot {
 
     LuceneIndexEditor(NodeState root, NodeBuilder definition,
         IndexUpdateCallback updateCallback) throws CommitFailedException {
+        this(root, definition, updateCallback, null, null);
+    }
+
+    LuceneIndexEditor(NodeState root, NodeBuilder definition,
+        IndexUpdateCallback updateCallback, @Nullable IndexCopier indexCopier,
+        @Nullable ExtractedTextCache extractedTextCache) throws CommitFailedException {
+        this(root, definition, updateCallback, indexCopier, extractedTextCache, null);
+    }
+
+    LuceneIndexEditor(NodeState root, NodeBuilder definition,
+        IndexUpdateCallback updateCallback, @Nullable IndexCopier indexCopier,
+        @Nullable ExtractedTextCache extractedTextCache,
+        @Nullable ExecutorService extractionExecutor) throws CommitFailedException {
         this.parent = null;
         this.name = null;
         this.path = "/";
         this.context = new LuceneIndexEditorContext(root, definition,
-                updateCallback);
+                updateCallback, indexCopier, extractedTextCache, extractionExecutor);
         this.root = root;
         this.isDeleted = false;
         this.matcherState = MatcherState.NONE;
@@ -509,11 +522,13 @@ public class LuceneIndexEditor implements IndexEditor, Aggregate.AggregateRoot {
             }
         }
 
+        //The text is extracted in background and only read when the
+        //document is added to the index
         for (Blob v : property.getValue(Type.BINARIES)) {
             if (nodePath != null){
-                fields.add(newFulltextField(nodePath, parseStringValue(v, metadata, path)));
+                fields.add(newFulltextField(nodePath, context.getTextExtractor().extract(v, metadata, path)));
             } else {
-                fields.add(newFulltextField(parseStringValue(v, metadata, path)));
+                fields.add(newFulltextField(context.getTextExtractor().extract(v, metadata, path)));
             }
 
         }
@@ -771,33 +786,4 @@ public class LuceneIndexEditor implements IndexEditor, Aggregate.AggregateRoot {
         return context.isSupportedMediaType(type);
     }
 
-    private String parseStringValue(Blob v, Metadata metadata, String path) {
-        WriteOutContentHandler handler = new WriteOutContentHandler(context.getDefinition().getMaxExtractLength());
-        try {
-            InputStream stream = v.getNewStream();
-            try {
-                context.getParser().parse(stream, handler, metadata, new ParseContext());
-            } finally {
-                stream.close();
-            }
-        } catch (LinkageError e) {
-            // Capture and ignore errors caused by extraction libraries
-            // not being present. This is equivalent to disabling
-            // selected media types in configuration, so we can simply
-            // ignore these errors.
-        } catch (Throwable t) {
-            // Capture and report any other full text extraction problems.
-            // The special STOP exception is used for normal termination.
-            if (!handler.isWriteLimitReached(t)) {
-                log.debug("Failed to extract text from a binary property: "
-                        + path
-                        + " This is a fairly common case, and nothing to"
-                        + " worry about. The stack trace is included to"
-                        + " help improve the text extraction feature.", t);
-                return "TextExtractionError";
-            }
-        }
-        return handler.toString();
-    }
-
 }
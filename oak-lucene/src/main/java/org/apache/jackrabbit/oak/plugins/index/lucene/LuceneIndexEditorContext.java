@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.oak.plugins.index.lucene;
 
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_COUNT;
 import static org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexConstants.INDEX_DATA_CHILD_NAME;
 import static org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexConstants.PERSISTENCE_PATH;
 import static org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexConstants.VERSION;
@@ -27,11 +28,16 @@ import java.io.InputStream;
 import java.net.URL;
 import java.util.Calendar;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
+import javax.annotation.Nullable;
+
+import com.google.common.io.Closer;
 import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.index.ContextAwareCallback;
 import org.apache.jackrabbit.oak.plugins.index.IndexUpdateCallback;
 import org.apache.jackrabbit.oak.plugins.index.lucene.util.SuggestHelper;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
@@ -106,6 +112,8 @@ public class LuceneIndexEditorContext {
 
     private IndexWriter writer = null;
 
+    private Directory directory = null;
+
     private long indexedNodes;
 
     private final IndexUpdateCallback updateCallback;
@@ -114,13 +122,36 @@ public class LuceneIndexEditorContext {
 
     private Parser parser;
 
+    private final IndexCopier indexCopier;
+
+    private final ExtractedTextCache extractedTextCache;
+
+    private final ExecutorService extractionExecutor;
+
+    private TextExtractor textExtractor;
+
     /**
      * The media types supported by the parser used.
      */
     private Set<MediaType> supportedMediaTypes;
 
     LuceneIndexEditorContext(NodeState root, NodeBuilder definition, IndexUpdateCallback updateCallback) {
+        this(root, definition, updateCallback, null, null);
+    }
+
+    LuceneIndexEditorContext(NodeState root, NodeBuilder definition, IndexUpdateCallback updateCallback,
+                             @Nullable IndexCopier indexCopier, @Nullable ExtractedTextCache extractedTextCache) {
+        this(root, definition, updateCallback, indexCopier, extractedTextCache, null);
+    }
+
+    LuceneIndexEditorContext(NodeState root, NodeBuilder definition, IndexUpdateCallback updateCallback,
+                             @Nullable IndexCopier indexCopier, @Nullable ExtractedTextCache extractedTextCache,
+                             @Nullable ExecutorService extractionExecutor) {
         this.definitionBuilder = definition;
+        this.indexCopier = indexCopier;
+        this.extractedTextCache = extractedTextCache != null
+                ? extractedTextCache : new ExtractedTextCache(0, null, 0);
+        this.extractionExecutor = extractionExecutor;
         this.definition = new IndexDefinition(root, definition);
         this.config = getIndexWriterConfig(this.definition);
         this.indexedNodes = 0;
@@ -137,13 +168,35 @@ public class LuceneIndexEditorContext {
         return parser;
     }
 
+    TextExtractor getTextExtractor() {
+        if (textExtractor == null){
+            textExtractor = new TextExtractor(getParser(),
+                    definition.getMaxExtractLength(), extractedTextCache, extractionExecutor);
+        }
+        return textExtractor;
+    }
+
     IndexWriter getWriter() throws IOException {
         if (writer == null) {
-            writer = new IndexWriter(newIndexDirectory(definition, definitionBuilder), config);
+            directory = newIndexDirectory(definition, definitionBuilder);
+            if (indexCopier != null && updateCallback instanceof ContextAwareCallback
+                    && definitionBuilder.getString(PERSISTENCE_PATH) == null) {
+                ContextAwareCallback callback = (ContextAwareCallback) updateCallback;
+                //The reindex count is read from the builder as it is
+                //incremented after this context was created
+                directory = indexCopier.wrapForWrite(callback.getIndexPath(),
+                        getReindexCount(), directory, reindex);
+            }
+            writer = new IndexWriter(directory, config);
         }
         return writer;
     }
 
+    private long getReindexCount() {
+        PropertyState count = definitionBuilder.getProperty(REINDEX_COUNT);
+        return count != null ? count.getValue(Type.LONG) : 0;
+    }
+
     /**
      * close writer if it's not null
      */
@@ -158,9 +211,19 @@ public class LuceneIndexEditorContext {
 
         if (writer != null) {
 
-            updateSuggester();
-
-            writer.close();
+            //The writer does not close the directory. Closing it waits
+            //until a copy-on-write directory has copied all files, and
+            //must also happen if closing the writer fails
+            Closer closer = Closer.create();
+            closer.register(directory);
+            try {
+                updateSuggester();
+                writer.close();
+            } catch (Throwable t) {
+                throw closer.rethrow(t);
+            } finally {
+                closer.close();
+            }
 
             //OAK-2029 Record the last updated status so
             //as to make IndexTracker detect changes when index
@@ -16,12 +16,13 @@
  */
 package org.apache.jackrabbit.oak.plugins.index.lucene;
 
+import java.util.concurrent.ExecutorService;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import static org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexConstants.TYPE_LUCENE;
 
-import org.apache.felix.scr.annotations.Component;
-import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.plugins.index.IndexEditor;
 import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
@@ -37,16 +38,60 @@ import org.apache.jackrabbit.oak.spi.state.NodeState;
  * @see IndexEditorProvider
  * 
  */
-@Component
-@Service(IndexEditorProvider.class)
 public class LuceneIndexEditorProvider implements IndexEditorProvider {
+    private final IndexCopier indexCopier;
+
+    private final ExtractedTextCache extractedTextCache;
+
+    private final ExecutorService extractionExecutor;
+
+    public LuceneIndexEditorProvider() {
+        this(null);
+    }
+
+    LuceneIndexEditorProvider(@Nullable IndexCopier indexCopier) {
+        this(indexCopier, null);
+    }
+
+    /**
+     * @param indexCopier the copier used to write the index files to a local
+     *                    directory first, or {@code null} if the files should
+     *                    be written to the repository directly.
+     * @param extractedTextCache the cache of text extracted from binaries,
+     *                           or {@code null} if the text is not cached.
+     */
+    LuceneIndexEditorProvider(@Nullable IndexCopier indexCopier,
+                              @Nullable ExtractedTextCache extractedTextCache) {
+        this(indexCopier, extractedTextCache, null);
+    }
+
+    /**
+     * @param indexCopier the copier used to write the index files to a local
+     *                    directory first, or {@code null} if the files should
+     *                    be written to the repository directly.
+     * @param extractedTextCache the cache of text extracted from binaries,
+     *                           or {@code null} if the text is not cached.
+     * @param extractionExecutor the pool extracting the text of binaries,
+     *                           or {@code null} if the text is extracted by
+     *                           the indexing thread. The pool is owned by
+     *                           the caller.
+     */
+    LuceneIndexEditorProvider(@Nullable IndexCopier indexCopier,
+                              @Nullable ExtractedTextCache extractedTextCache,
+                              @Nullable ExecutorService extractionExecutor) {
+        this.indexCopier = indexCopier;
+        this.extractedTextCache = extractedTextCache != null
+                ? extractedTextCache : new ExtractedTextCache(0, null, 0);
+        this.extractionExecutor = extractionExecutor;
+    }
 
     @Override
     public Editor getIndexEditor(
             @Nonnull String type, @Nonnull NodeBuilder definition, @Nonnull NodeState root, @Nonnull IndexUpdateCallback callback)
             throws CommitFailedException {
         if (TYPE_LUCENE.equals(type)) {
-            return new LuceneIndexEditor(root, definition, callback);
+            return new LuceneIndexEditor(root, definition, callback, indexCopier,
+                    extractedTextCache, extractionExecutor);
         }
         return null;
     }
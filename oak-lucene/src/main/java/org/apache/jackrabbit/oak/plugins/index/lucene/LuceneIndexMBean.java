@@ -28,4 +28,10 @@ public interface LuceneIndexMBean {
 
     TabularData getIndexStats() throws IOException;
 
+    long getBlockCacheHitCount();
+
+    long getBlockCacheMissCount();
+
+    String getBlockCacheSize();
+
 }
@@ -82,6 +82,21 @@ public class LuceneIndexMBeanImpl extends AnnotatedStandardMBean implements Luce
         return tds;
     }
 
+    @Override
+    public long getBlockCacheHitCount() {
+        return indexTracker.getBlockCache().getHitCount();
+    }
+
+    @Override
+    public long getBlockCacheMissCount() {
+        return indexTracker.getBlockCache().getMissCount();
+    }
+
+    @Override
+    public String getBlockCacheSize() {
+        return humanReadableByteCount(indexTracker.getBlockCache().getSize());
+    }
+
     public void dumpIndexContent(String sourcePath, String destPath) throws IOException {
         IndexNode indexNode = null;
         try {
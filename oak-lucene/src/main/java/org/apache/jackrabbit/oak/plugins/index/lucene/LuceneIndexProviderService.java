@@ -22,7 +22,12 @@ package org.apache.jackrabbit.oak.plugins.index.lucene;
 import java.io.File;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nonnull;
 import javax.management.NotCompliantMBeanException;
 
 import com.google.common.base.Strings;
@@ -38,6 +43,7 @@ import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.ReferencePolicyOption;
 import org.apache.jackrabbit.oak.commons.PropertiesUtil;
 import org.apache.jackrabbit.oak.osgi.OsgiWhiteboard;
+import org.apache.jackrabbit.oak.plugins.index.IndexEditorProvider;
 import org.apache.jackrabbit.oak.plugins.index.aggregate.NodeAggregator;
 import org.apache.jackrabbit.oak.spi.commit.BackgroundObserver;
 import org.apache.jackrabbit.oak.plugins.index.lucene.score.ScorerProviderFactory;
@@ -97,6 +103,38 @@ public class LuceneIndexProviderService {
     )
     private static final String PROP_LOCAL_INDEX_DIR = "localIndexDir";
 
+    @Property(
+            boolValue = false,
+            label = "Enable CopyOnWrite",
+            description = "Enable writing of Lucene index files to the local file system first. The files are " +
+                    "copied to the repository in background. Only used if CopyOnRead is enabled"
+    )
+    private static final String PROP_COPY_ON_WRITE = "enableCopyOnWriteSupport";
+
+    private static final int PROP_EXTRACTED_TEXT_CACHE_SIZE_DEFAULT = 20;
+    @Property(
+            intValue = PROP_EXTRACTED_TEXT_CACHE_SIZE_DEFAULT,
+            label = "Extracted text cache size (in MB)",
+            description = "Size of the in-memory cache of text extracted from binaries. Zero disables the cache"
+    )
+    private static final String PROP_EXTRACTED_TEXT_CACHE_SIZE = "extractedTextCacheSizeInMB";
+
+    @Property(
+            label = "Extracted text cache path",
+            description = "Local file system path where text extracted from binaries is stored, such that " +
+                    "binaries are not parsed again on reindexing. If not specified then the text is not stored"
+    )
+    private static final String PROP_EXTRACTED_TEXT_CACHE_DIR = "extractedTextCacheDir";
+
+    private static final int PROP_EXTRACTED_TEXT_CACHE_DIR_SIZE_DEFAULT = 1024;
+    @Property(
+            intValue = PROP_EXTRACTED_TEXT_CACHE_DIR_SIZE_DEFAULT,
+            label = "Extracted text cache path size (in MB)",
+            description = "Maximum size of the text stored under the extracted text cache path. Once exceeded " +
+                    "the least recently used text is deleted. Zero disables storing the text"
+    )
+    private static final String PROP_EXTRACTED_TEXT_CACHE_DIR_SIZE = "extractedTextCacheDirSizeInMB";
+
     @Property(
             boolValue = true,
             label = "Open index asynchronously",
@@ -104,10 +142,21 @@ public class LuceneIndexProviderService {
     )
     private static final String PROP_ASYNC_INDEX_OPEN = "enableOpenIndexAsync";
 
+    private static final int PROP_BLOCK_CACHE_SIZE_DEFAULT = 32;
+    @Property(
+            intValue = PROP_BLOCK_CACHE_SIZE_DEFAULT,
+            label = "Index block cache size (in MB)",
+            description = "Size of the in-memory cache of index file blocks read from the repository, shared " +
+                    "by all index readers. Zero disables the cache"
+    )
+    private static final String PROP_BLOCK_CACHE_SIZE = "blockCacheSizeInMB";
+
     private Whiteboard whiteboard;
 
     private WhiteboardExecutor executor;
 
+    private ExecutorService extractionExecutor;
+
     private BackgroundObserver backgroundObserver;
 
     @Reference
@@ -121,11 +170,13 @@ public class LuceneIndexProviderService {
         executor = new WhiteboardExecutor();
         executor.start(whiteboard);
 
-        indexProvider = new LuceneIndexProvider(createTracker(bundleContext, config), scorerFactory);
+        IndexCopier copier = createIndexCopier(bundleContext, config);
+        indexProvider = new LuceneIndexProvider(createTracker(copier, config), scorerFactory);
         initializeLogging(config);
         initialize();
 
         regs.add(bundleContext.registerService(QueryIndexProvider.class.getName(), indexProvider, null));
+        registerIndexEditor(bundleContext, copier, config);
         registerObserver(bundleContext, config);
 
         oakRegs.add(registerMBean(whiteboard,
@@ -158,6 +209,12 @@ public class LuceneIndexProviderService {
             executor.stop();
         }
 
+        if (extractionExecutor != null){
+            //Lets pending extractions complete, their readers wait for them
+            extractionExecutor.shutdown();
+            extractionExecutor = null;
+        }
+
         InfoStream.setDefault(InfoStream.NO_OUTPUT);
     }
 
@@ -182,7 +239,7 @@ public class LuceneIndexProviderService {
         }
     }
 
-    private IndexTracker createTracker(BundleContext bundleContext, Map<String, ?> config) {
+    private IndexCopier createIndexCopier(BundleContext bundleContext, Map<String, ?> config) {
         boolean enableCopyOnRead = PropertiesUtil.toBoolean(config.get(PROP_COPY_ON_READ), true);
         if (enableCopyOnRead){
             String indexDirPath = PropertiesUtil.toString(config.get(PROP_LOCAL_INDEX_DIR), null);
@@ -206,10 +263,65 @@ public class LuceneIndexProviderService {
                     CopyOnReadStatsMBean.TYPE,
                     "CopyOnRead support statistics"));
 
-            return new IndexTracker(copier);
+            return copier;
         }
 
-        return new IndexTracker();
+        return null;
+    }
+
+    private IndexTracker createTracker(IndexCopier copier, Map<String, ?> config) {
+        int blockCacheSizeInMB = PropertiesUtil.toInteger(config.get(PROP_BLOCK_CACHE_SIZE),
+                PROP_BLOCK_CACHE_SIZE_DEFAULT);
+        IndexBlockCache blockCache = new IndexBlockCache(blockCacheSizeInMB * 1024L * 1024L);
+        return new IndexTracker(copier, blockCache);
+    }
+
+    private void registerIndexEditor(BundleContext bundleContext, IndexCopier copier, Map<String, ?> config) {
+        boolean enableCopyOnWrite = PropertiesUtil.toBoolean(config.get(PROP_COPY_ON_WRITE), false);
+        ExtractedTextCache extractedTextCache = createExtractedTextCache(config);
+        extractionExecutor = createExtractionExecutor();
+        LuceneIndexEditorProvider editorProvider;
+        if (enableCopyOnWrite && copier != null){
+            editorProvider = new LuceneIndexEditorProvider(copier, extractedTextCache, extractionExecutor);
+            log.info("Enabling CopyOnWrite support. Index files would be written locally first");
+        } else {
+            editorProvider = new LuceneIndexEditorProvider(null, extractedTextCache, extractionExecutor);
+        }
+        regs.add(bundleContext.registerService(IndexEditorProvider.class.getName(), editorProvider, null));
+    }
+
+    private ExtractedTextCache createExtractedTextCache(Map<String, ?> config) {
+        int cacheSizeInMB = PropertiesUtil.toInteger(config.get(PROP_EXTRACTED_TEXT_CACHE_SIZE),
+                PROP_EXTRACTED_TEXT_CACHE_SIZE_DEFAULT);
+        String cacheDirPath = PropertiesUtil.toString(config.get(PROP_EXTRACTED_TEXT_CACHE_DIR), null);
+        int cacheDirSizeInMB = PropertiesUtil.toInteger(config.get(PROP_EXTRACTED_TEXT_CACHE_DIR_SIZE),
+                PROP_EXTRACTED_TEXT_CACHE_DIR_SIZE_DEFAULT);
+        File cacheDir = null;
+        if (!Strings.isNullOrEmpty(cacheDirPath) && cacheDirSizeInMB > 0) {
+            cacheDir = new File(cacheDirPath);
+            log.info("Text extracted from binaries would be stored under {} (max {} MB)",
+                    cacheDir.getAbsolutePath(), cacheDirSizeInMB);
+        }
+        return new ExtractedTextCache(cacheSizeInMB * 1024L * 1024L, cacheDir,
+                cacheDirSizeInMB * 1024L * 1024L);
+    }
+
+    private ExecutorService createExtractionExecutor() {
+        int threads = TextExtractor.EXTRACTION_THREADS;
+        if (threads < 1) {
+            return null;
+        }
+        log.info("Text of binaries would be extracted by {} threads", threads);
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+            @Override
+            public Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable,
+                        "Lucene text extractor " + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     private void registerObserver(BundleContext bundleContext, Map<String, ?> config) {
@@ -332,18 +332,21 @@ public class LucenePropertyIndex implements AdvancedQueryIndex, QueryIndex, Nati
                             if (sort == null) {
                                 docs = searcher.searchAfter(lastDoc, query, nextBatchSize);
                             } else {
-                                docs = searcher.searchAfter(lastDoc, query, LUCENE_QUERY_BATCH_SIZE, sort);
+                                docs = searcher.searchAfter(lastDoc, query, nextBatchSize, sort);
                             }
                         } else {
                             LOG.debug("loading the first {} entries for query {}", nextBatchSize, query);
                             if (sort == null) {
                                 docs = searcher.search(query, nextBatchSize);
                             } else {
-                                docs = searcher.search(query, LUCENE_QUERY_BATCH_SIZE, sort);
+                                docs = searcher.search(query, nextBatchSize, sort);
                             }
                         }
                         time = System.currentTimeMillis() - time;
                         LOG.debug("... took {} ms", time);
+                        //Each batch collects the top entries again, sorted or not. Growing
+                        //the batch size bounds the number of searches needed to walk
+                        //a large result to a logarithmic number
                         nextBatchSize = (int) Math.min(nextBatchSize * 2L, 100000);
 
                         for (ScoreDoc doc : docs.scoreDocs) {
@@ -25,6 +25,8 @@ import java.io.InputStream;
 import java.util.Collection;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.google.common.primitives.Ints;
 import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.api.PropertyState;
@@ -56,12 +58,24 @@ class OakDirectory extends Directory {
     static final String PROP_BLOB_SIZE = "blobSize";
     protected final NodeBuilder directoryBuilder;
     private final IndexDefinition definition;
+    private final IndexBlockCache blockCache;
     private LockFactory lockFactory;
 
     public OakDirectory(NodeBuilder directoryBuilder, IndexDefinition definition) {
+        this(directoryBuilder, definition, null);
+    }
+
+    /**
+     * @param blockCache the cache the blocks of index files are read
+     *                   through, or {@code null} if every input reads the
+     *                   blocks into its own buffer.
+     */
+    public OakDirectory(NodeBuilder directoryBuilder, IndexDefinition definition,
+                        @Nullable IndexBlockCache blockCache) {
         this.lockFactory = NoLockFactory.getNoLockFactory();
         this.directoryBuilder = directoryBuilder;
         this.definition = definition;
+        this.blockCache = blockCache;
     }
 
     @Override
@@ -83,7 +97,7 @@ class OakDirectory extends Directory {
     @Override
     public long fileLength(String name) throws IOException {
         NodeBuilder file = directoryBuilder.getChildNode(name);
-        OakIndexInput input = new OakIndexInput(name, file);
+        OakIndexInput input = new OakIndexInput(name, file, null);
         try {
             return input.length();
         } finally {
@@ -110,7 +124,7 @@ class OakDirectory extends Directory {
             throws IOException {
         NodeBuilder file = directoryBuilder.getChildNode(name);
         if (file.exists()) {
-            return new OakIndexInput(name, file);
+            return new OakIndexInput(name, file, blockCache);
         } else {
             throw new FileNotFoundException(name);
         }
@@ -170,15 +184,39 @@ class OakDirectory extends Directory {
 
         private int index = -1;
 
-        private final byte[] blob;
+        /**
+         * Whether this file is only read. The blocks of such a file are read
+         * through the {@link #blockCache} and may be shared with other
+         * files, so they must not be modified.
+         */
+        private final boolean readOnly;
+
+        private final IndexBlockCache blockCache;
+
+        /**
+         * The current block. Either {@link #buffer} or a block shared by
+         * the {@link IndexBlockCache}.
+         */
+        private byte[] blob;
+
+        /**
+         * Buffer owned by this file, allocated on demand.
+         */
+        private byte[] buffer;
 
         private boolean blobModified = false;
 
-        public OakIndexFile(String name, NodeBuilder file) {
+        public OakIndexFile(String name, NodeBuilder file, boolean readOnly,
+                            @Nullable IndexBlockCache blockCache) {
             this.name = name;
             this.file = file;
             this.blobSize = determineBlobSize(file);
-            this.blob = new byte[blobSize];
+            this.readOnly = readOnly;
+            this.blockCache = readOnly ? blockCache : null;
+            if (!readOnly) {
+                this.buffer = new byte[blobSize];
+                this.blob = buffer;
+            }
 
             PropertyState property = file.getProperty(JCR_DATA);
             if (property != null && property.getType() == BINARIES) {
@@ -198,11 +236,21 @@ class OakDirectory extends Directory {
             this.name = that.name;
             this.file = that.file;
             this.blobSize = that.blobSize;
-            this.blob = new byte[blobSize];
+            this.readOnly = that.readOnly;
+            this.blockCache = that.blockCache;
+            if (!readOnly) {
+                this.buffer = new byte[blobSize];
+                this.blob = buffer;
+            } else if (that.blob != null && that.blob != that.buffer) {
+                //Blocks from the cache are immutable and can be shared
+                this.blob = that.blob;
+                this.index = that.index;
+            }
 
             this.position = that.position;
             this.length = that.length;
-            this.data = newArrayList(that.data);
+            //The data of a read-only file is never modified
+            this.data = readOnly ? that.data : newArrayList(that.data);
             this.dataModified = that.dataModified;
         }
 
@@ -213,12 +261,21 @@ class OakDirectory extends Directory {
                 checkState(!blobModified);
 
                 int n = (int) Math.min(blobSize, length - i * blobSize);
-                InputStream stream = data.get(i).getNewStream();
-                try {
-                    ByteStreams.readFully(stream, blob, 0, n);
-                } finally {
-                    stream.close();
+                Blob b = data.get(i);
+                byte[] block = blockCache != null ? blockCache.getBlock(b, n) : null;
+                if (block == null) {
+                    if (buffer == null) {
+                        buffer = new byte[blobSize];
+                    }
+                    InputStream stream = b.getNewStream();
+                    try {
+                        ByteStreams.readFully(stream, buffer, 0, n);
+                    } finally {
+                        stream.close();
+                    }
+                    block = buffer;
                 }
+                blob = block;
                 index = i;
             }
         }
@@ -275,8 +332,21 @@ class OakDirectory extends Directory {
             }
         }
 
+        public byte readByte() throws IOException {
+            if (position >= length) {
+                String msg = String.format("Invalid byte read request [%s] : position : %d, length : %d",
+                        name, position, length);
+                throw new IOException(msg);
+            }
+            loadBlob((int) (position / blobSize));
+            byte b = blob[(int) (position % blobSize)];
+            position++;
+            return b;
+        }
+
         public void writeBytes(byte[] b, int offset, int len)
                 throws IOException {
+            checkState(!readOnly);
             int i = (int) (position / blobSize);
             int o = (int) (position % blobSize);
             while (len > 0) {
@@ -330,9 +400,9 @@ class OakDirectory extends Directory {
 
         private final OakIndexFile file;
 
-        public OakIndexInput(String name, NodeBuilder file) {
+        public OakIndexInput(String name, NodeBuilder file, @Nullable IndexBlockCache blockCache) {
             super(name);
-            this.file = new OakIndexFile(name, file);
+            this.file = new OakIndexFile(name, file, true, blockCache);
         }
 
         private OakIndexInput(OakIndexInput that) {
@@ -352,9 +422,7 @@ class OakDirectory extends Directory {
 
         @Override
         public byte readByte() throws IOException {
-            byte[] b = new byte[1];
-            readBytes(b, 0, 1);
-            return b[0];
+            return file.readByte();
         }
 
         @Override
@@ -384,7 +452,7 @@ class OakDirectory extends Directory {
         private final OakIndexFile file;
 
         public OakIndexOutput(String name, NodeBuilder file) throws IOException {
-            this.file = new OakIndexFile(name, file);
+            this.file = new OakIndexFile(name, file, false, null);
         }
 
         @Override
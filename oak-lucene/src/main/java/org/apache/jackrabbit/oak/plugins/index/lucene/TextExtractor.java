@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts the text of binaries with Tika. If a thread pool is given, the
+ * text of each binary is extracted by one of its threads, so that all
+ * binaries of a document (including aggregated ones) are parsed
+ * concurrently. The text is then only waited for when the document is
+ * written to the index, and at most for {@link #EXTRACTION_TIMEOUT} seconds
+ * per binary. Without a pool the text is extracted by the indexing thread.
+ */
+class TextExtractor {
+    private static final Logger log = LoggerFactory.getLogger(TextExtractor.class);
+
+    /**
+     * Number of threads of the pool created by the
+     * {@link LuceneIndexProviderService} to extract text. Zero disables
+     * concurrent extraction.
+     */
+    static final int EXTRACTION_THREADS = Integer.getInteger(
+            "oak.lucene.textExtractionThreads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Maximum time in seconds to wait for the text of a binary.
+     */
+    static final long EXTRACTION_TIMEOUT = Long.getLong(
+            "oak.lucene.textExtractionTimeout", 60);
+
+    static final String ERROR_TEXT = "TextExtractionError";
+
+    private final Parser parser;
+    private final int maxExtractLength;
+    private final ExtractedTextCache cache;
+    private final ExecutorService executor;
+
+    TextExtractor(Parser parser, int maxExtractLength, ExtractedTextCache cache) {
+        this(parser, maxExtractLength, cache, null);
+    }
+
+    /**
+     * @param executor the pool extracting the text, or {@code null} if the
+     *                 text should be extracted by the calling thread.
+     */
+    TextExtractor(Parser parser, int maxExtractLength, ExtractedTextCache cache,
+                  @Nullable ExecutorService executor) {
+        this.parser = parser;
+        this.maxExtractLength = maxExtractLength;
+        this.cache = cache;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts extracting the text of the given binary.
+     *
+     * @param blob the binary.
+     * @param metadata the metadata of the binary, which is not modified.
+     * @param path the path of the binary property, used for logging.
+     * @return a reader for the extracted text, which blocks until the text
+     *          is available.
+     */
+    Reader extract(final Blob blob, Metadata metadata, final String path) {
+        final String key = ExtractedTextCache.getKey(blob, getMediaType(metadata), maxExtractLength);
+        String text = key != null ? cache.getIfPresent(key) : null;
+        if (text != null) {
+            return new StringReader(text);
+        }
+        //Tika adds to the metadata while parsing
+        final Metadata copy = copyOf(metadata);
+        if (executor == null) {
+            return new StringReader(getText(blob, key, copy, path));
+        }
+        Future<String> future;
+        try {
+            future = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return getText(blob, key, copy, path);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //The pool is shut down while the service is deactivated
+            return new StringReader(getText(blob, key, copy, path));
+        }
+        return new PendingTextReader(future, path);
+    }
+
+    private String getText(Blob blob, @Nullable String key, Metadata metadata, String path) {
+        String text = key != null ? cache.load(key) : null;
+        if (text == null) {
+            text = parseStringValue(blob, metadata, path);
+            if (text == null) {
+                //Not cached, such that the binary is parsed again on reindexing
+                return ERROR_TEXT;
+            }
+            //The text of a cancelled extraction may be incomplete
+            if (key != null && !Thread.currentThread().isInterrupted()) {
+                cache.put(key, text);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * @return the extracted text, or {@code null} if the extraction failed.
+     */
+    @CheckForNull
+    private String parseStringValue(Blob v, Metadata metadata, String path) {
+        WriteOutContentHandler handler = new WriteOutContentHandler(maxExtractLength);
+        try {
+            InputStream stream = v.getNewStream();
+            try {
+                parser.parse(stream, handler, metadata, new ParseContext());
+            } finally {
+                stream.close();
+            }
+        } catch (LinkageError e) {
+            // Capture and ignore errors caused by extraction libraries
+            // not being present. This is equivalent to disabling
+            // selected media types in configuration, so we can simply
+            // ignore these errors.
+        } catch (Throwable t) {
+            // Capture and report any other full text extraction problems.
+            // The special STOP exception is used for normal termination.
+            if (!handler.isWriteLimitReached(t)) {
+                log.debug("Failed to extract text from a binary property: "
+                        + path
+                        + " This is a fairly common case, and nothing to"
+                        + " worry about. The stack trace is included to"
+                        + " help improve the text extraction feature.", t);
+                return null;
+            }
+        }
+        return handler.toString();
+    }
+
+    /**
+     * @return the media type and encoding the binary is parsed as, which
+     *          are part of the cache key as they affect the text.
+     */
+    @CheckForNull
+    private static String getMediaType(Metadata metadata) {
+        String type = metadata.get(Metadata.CONTENT_TYPE);
+        String encoding = metadata.get(Metadata.CONTENT_ENCODING);
+        if (type == null || encoding == null) {
+            return type;
+        }
+        return type + ';' + encoding;
+    }
+
+    private static Metadata copyOf(Metadata metadata) {
+        Metadata copy = new Metadata();
+        for (String name : metadata.names()) {
+            for (String value : metadata.getValues(name)) {
+                copy.add(name, value);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Reader for text, which is still being extracted when the reader is
+     * created. The first read waits for the extraction to complete.
+     */
+    private static class PendingTextReader extends Reader {
+        private final Future<String> text;
+        private final String path;
+        private Reader reader;
+
+        PendingTextReader(Future<String> text, String path) {
+            this.text = text;
+            this.path = path;
+        }
+
+        @Override
+        public int read(@Nonnull char[] cbuf, int off, int len) throws IOException {
+            return getReader().read(cbuf, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader == null) {
+                text.cancel(true);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "text of " + path;
+        }
+
+        private Reader getReader() {
+            if (reader == null) {
+                String s;
+                try {
+                    s = Uninterruptibles.getUninterruptibly(
+                            text, EXTRACTION_TIMEOUT, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    text.cancel(true);
+                    log.warn("Text extraction of {} did not complete within {} seconds. " +
+                            "Binary content is not indexed", path, EXTRACTION_TIMEOUT);
+                    s = ERROR_TEXT;
+                } catch (ExecutionException e) {
+                    log.warn("Text extraction of {} failed", path, e.getCause());
+                    s = ERROR_TEXT;
+                }
+                reader = new StringReader(s);
+            }
+            return reader;
+        }
+    }
+}
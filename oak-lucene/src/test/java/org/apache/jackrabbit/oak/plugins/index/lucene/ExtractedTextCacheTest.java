@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.plugins.memory.ArrayBasedBlob;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExtractedTextCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void memoryCache() throws Exception{
+        ExtractedTextCache cache = new ExtractedTextCache(1024 * 1024, null, 0);
+        Blob b = new IdBlob("hello", "id1");
+
+        assertNull(cache.get(key(b)));
+        cache.put(key(b), "hello");
+        assertEquals("hello", cache.getIfPresent(key(b)));
+        assertEquals("hello", cache.get(key(b)));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        //Binaries without content identity are not cached
+        Blob noId = new ArrayBasedBlob("hello".getBytes(Charsets.UTF_8));
+        assertNull(key(noId));
+    }
+
+    @Test
+    public void persistentCache() throws Exception{
+        File dir = temporaryFolder.getRoot();
+        Blob b = new IdBlob("hello", "id1");
+
+        ExtractedTextCache cache = new ExtractedTextCache(0, dir, 1024 * 1024);
+        cache.put(key(b), "hello world");
+
+        //A new cache reads the text stored by the previous one
+        cache = new ExtractedTextCache(1024 * 1024, dir, 1024 * 1024);
+        assertNull(cache.getIfPresent(key(b)));
+        assertEquals("hello world", cache.get(key(b)));
+        assertEquals("hello world", cache.getIfPresent(key(b)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getFileHitCount());
+    }
+
+    @Test
+    public void boundedDir() throws Exception{
+        File dir = temporaryFolder.getRoot();
+        ExtractedTextCache cache = new ExtractedTextCache(0, dir, 100);
+        for (int i = 0; i < 10; i++) {
+            cache.put(key(new IdBlob("hello", "id" + i)), "0123456789012345678901234567890123456789");
+            assertTrue(cache.getDirSize() <= 100);
+        }
+
+        //The latest text is kept
+        assertNotNull(cache.get(key(new IdBlob("hello", "id9"))));
+        assertEquals(cache.getDirSize(), new ExtractedTextCache(0, dir, 100).getDirSize());
+    }
+
+    @Test
+    public void errorsAreNotCached() throws Exception{
+        File dir = temporaryFolder.getRoot();
+        ExtractedTextCache cache = new ExtractedTextCache(1024 * 1024, dir, 1024 * 1024);
+        TextExtractor extractor = new TextExtractor(new AutoDetectParser(), 10000, cache);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.CONTENT_TYPE, "text/plain");
+
+        Blob b = new IdBlob("hello world", "id1") {
+            @Override
+            public InputStream getNewStream() {
+                throw new IllegalStateException("Transient failure");
+            }
+        };
+        assertEquals(TextExtractor.ERROR_TEXT, read(extractor.extract(b, metadata, "/a@jcr:data")));
+        assertNull(cache.get(key(b)));
+        assertEquals(0, cache.getDirSize());
+
+        //The binary is parsed again once it is readable
+        Blob b2 = new IdBlob("hello world", "id1");
+        assertEquals("hello world", read(extractor.extract(b2, metadata, "/a@jcr:data")).trim());
+        assertEquals("hello world", cache.get(key(b2)).trim());
+    }
+
+    @Test
+    public void extractorUsesCache() throws Exception{
+        ExtractedTextCache cache = new ExtractedTextCache(1024 * 1024, null, 0);
+        TextExtractor extractor = new TextExtractor(new AutoDetectParser(), 10000, cache);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.CONTENT_TYPE, "text/plain");
+
+        Blob b = new IdBlob("hello world", "id1");
+        assertEquals("hello world", read(extractor.extract(b, metadata, "/a@jcr:data")).trim());
+        assertEquals(1, cache.getMissCount());
+
+        //Same content again is served from the cache
+        Blob b2 = new IdBlob("hello world", "id1");
+        assertEquals("hello world", read(extractor.extract(b2, metadata, "/b@jcr:data")).trim());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void extractorUsesExecutor() throws Exception{
+        ExtractedTextCache cache = new ExtractedTextCache(1024 * 1024, null, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        TextExtractor extractor = new TextExtractor(new AutoDetectParser(), 10000, cache, executor);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.CONTENT_TYPE, "text/plain");
+
+        Blob b = new IdBlob("hello world", "id1");
+        assertEquals("hello world", read(extractor.extract(b, metadata, "/a@jcr:data")).trim());
+        assertEquals("hello world", cache.getIfPresent(key(b)).trim());
+
+        //A shut down pool falls back to extracting inline
+        executor.shutdown();
+        Blob b2 = new IdBlob("hello again", "id2");
+        assertEquals("hello again", read(extractor.extract(b2, metadata, "/b@jcr:data")).trim());
+    }
+
+    @Test
+    public void keyIncludesExtractionOptions() throws Exception{
+        ExtractedTextCache cache = new ExtractedTextCache(1024 * 1024, null, 0);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.CONTENT_TYPE, "text/plain");
+        Blob b = new IdBlob("hello world", "id1");
+
+        TextExtractor extractor = new TextExtractor(new AutoDetectParser(), 5, cache);
+        assertEquals("hello", read(extractor.extract(b, metadata, "/a@jcr:data")).trim());
+
+        //A longer maximum length is not served the truncated text
+        extractor = new TextExtractor(new AutoDetectParser(), 10000, cache);
+        assertEquals("hello world", read(extractor.extract(b, metadata, "/a@jcr:data")).trim());
+
+        //Neither is another media type
+        metadata.set(Metadata.CONTENT_TYPE, "text/html");
+        assertEquals("hello world", read(extractor.extract(b, metadata, "/a@jcr:data")).trim());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+
+        assertNotNull(cache.get(ExtractedTextCache.getKey(b, "text/plain", 5)));
+        assertNotNull(cache.get(ExtractedTextCache.getKey(b, "text/html", 10000)));
+    }
+
+    private static String key(Blob blob) {
+        return ExtractedTextCache.getKey(blob, "text/plain", 10000);
+    }
+
+    private static String read(Reader reader) throws Exception {
+        try {
+            return CharStreams.toString(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static class IdBlob extends ArrayBasedBlob {
+        final String id;
+
+        public IdBlob(String value, String id) {
+            super(value.getBytes(Charsets.UTF_8));
+            this.id = id;
+        }
+
+        @Override
+        public String getContentIdentity() {
+            return id;
+        }
+    }
+}
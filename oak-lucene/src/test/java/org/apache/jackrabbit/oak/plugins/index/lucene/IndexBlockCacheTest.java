@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import java.util.Arrays;
+
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.plugins.memory.ArrayBasedBlob;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IndexBlockCacheTest {
+
+    @Test
+    public void sharedBlocks() throws Exception{
+        IndexBlockCache cache = new IndexBlockCache(1024 * 1024);
+        byte[] data = {1, 2, 3, 4, 5};
+
+        byte[] block = cache.getBlock(new IdBlob(data, "id1"), 4);
+        assertArrayEquals(Arrays.copyOf(data, 4), block);
+        assertEquals(1, cache.getMissCount());
+        assertTrue(cache.getSize() > 0);
+
+        //A different blob with the same content shares the cached block
+        assertSame(block, cache.getBlock(new IdBlob(data, "id1"), 4));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void uncachedBlobs() throws Exception{
+        IndexBlockCache cache = new IndexBlockCache(1024 * 1024);
+        assertNull(cache.getBlock(new ArrayBasedBlob(new byte[10]), 10));
+
+        IndexBlockCache disabled = new IndexBlockCache(0);
+        assertNull(disabled.getBlock(new IdBlob(new byte[10], "id1"), 10));
+        assertEquals(0, disabled.getMissCount());
+    }
+
+    private static class IdBlob extends ArrayBasedBlob {
+        final String id;
+
+        public IdBlob(byte[] value, String id) {
+            super(value);
+            this.id = id;
+        }
+
+        @Override
+        public String getContentIdentity() {
+            return id;
+        }
+    }
+}
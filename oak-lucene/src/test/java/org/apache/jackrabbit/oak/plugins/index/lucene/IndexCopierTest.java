@@ -53,6 +53,7 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
 import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
 import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_COUNT;
 import static org.apache.jackrabbit.oak.plugins.nodetype.write.InitialContent.INITIAL_CONTENT;
@@ -436,6 +437,80 @@ public class IndexCopierTest {
         assertEquals(0, c1.getFailedToDeleteFiles().size());
     }
 
+    @Test
+    public void copyOnWrite() throws Exception{
+        IndexDefinition defn = new IndexDefinition(root, builder.getNodeState());
+        IndexCopier c1 = new IndexCopier(sameThreadExecutor(), getWorkDir());
+
+        Directory remote = new CloseSafeDir();
+        byte[] t1 = writeFile(remote, "t1");
+
+        Directory cow = c1.wrapForWrite("/foo", 0, remote, false);
+
+        //Existing files are copied to local when the directory is opened
+        File indexDir = new File(c1.getIndexDir("/foo"), "0");
+        assertTrue(new File(indexDir, "t1").exists());
+        readAndAssert(cow, "t1", t1);
+
+        byte[] t2 = writeFile(cow, "t2");
+        byte[] t3 = writeFile(cow, "t3");
+        cow.deleteFile("t3");
+        assertEquals(newHashSet("t1", "t2"), newHashSet(cow.listAll()));
+
+        cow.close();
+
+        //Written files are copied to remote and removed files deleted
+        assertEquals(newHashSet("t1", "t2"), newHashSet(remote.listAll()));
+        readAndAssert(remote, "t2", t2);
+        assertFalse(new File(indexDir, "t3").exists());
+
+        //A reader on the same local dir uses the written file
+        TestRAMDirectory remote2 = new TestRAMDirectory();
+        copy(remote, remote2);
+        Directory wrapped = c1.wrap("/foo", defn, remote2);
+        readAndAssert(wrapped, "t2", t2);
+        assertEquals(0, remote2.openedFiles.size());
+    }
+
+    @Test
+    public void copyOnWriteReindex() throws Exception{
+        IndexCopier c1 = new IndexCopier(sameThreadExecutor(), getWorkDir());
+        File indexDir = new File(c1.getIndexDir("/foo"), "1");
+
+        Directory cow = c1.wrapForWrite("/foo", 1, new CloseSafeDir(), false);
+        writeFile(cow, "t1");
+        cow.close();
+        assertTrue(new File(indexDir, "t1").exists());
+
+        //Files left in local dir are removed in reindex mode
+        Directory remote = new CloseSafeDir();
+        cow = c1.wrapForWrite("/foo", 1, remote, true);
+        assertEquals(0, cow.listAll().length);
+        assertFalse(new File(indexDir, "t1").exists());
+        cow.close();
+        assertEquals(0, remote.listAll().length);
+    }
+
+    @Test
+    public void copyOnWriteFailure() throws Exception{
+        IndexCopier c1 = new IndexCopier(sameThreadExecutor(), getWorkDir());
+        Directory remote = new CloseSafeDir(){
+            @Override
+            public IndexOutput createOutput(String name, IOContext context) throws IOException {
+                throw new IOException("Simulated failure");
+            }
+        };
+
+        Directory cow = c1.wrapForWrite("/foo", 0, remote, false);
+        writeFile(cow, "t1");
+        try {
+            cow.close();
+            fail("Failure to copy must be reported on close");
+        } catch (IOException ignore) {
+            // expected
+        }
+    }
+
     private byte[] writeFile(Directory dir, String name) throws IOException {
         byte[] data = randomBytes(rnd.nextInt(maxFileSize) + 1);
         IndexOutput o = dir.createOutput(name, IOContext.DEFAULT);
@@ -22,6 +22,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -33,10 +36,13 @@ import static com.google.common.collect.Iterators.transform;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Sets.newHashSet;
 import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
 import static java.util.Arrays.asList;
 import static javax.jcr.PropertyType.TYPENAME_STRING;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import static org.apache.jackrabbit.JcrConstants.JCR_SYSTEM;
 import static org.apache.jackrabbit.JcrConstants.NT_BASE;
@@ -94,6 +100,7 @@ import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.queries.CustomScoreProvider;
 import org.apache.lucene.queries.CustomScoreQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
 import org.junit.After;
 import org.junit.Test;
 
@@ -640,6 +647,71 @@ public class LuceneIndexTest {
         assertEquals(1, copier.getIndexDir("/oak:index/lucene").listFiles().length);
     }
 
+    @Test
+    public void lookupNotBlockedByUpdate() throws Exception{
+        NodeBuilder index = builder.child(INDEX_DEFINITIONS_NAME);
+        newLucenePropertyIndexDefinition(index, "lucene", ImmutableSet.of("foo", "foo2"), null);
+        newLucenePropertyIndexDefinition(index, "lucene2", ImmutableSet.of("foo3"), null);
+
+        NodeState before = builder.getNodeState();
+        builder.setProperty("foo", "bar");
+        builder.setProperty("foo3", "bar3");
+        NodeState indexed = HOOK.processCommit(before, builder.getNodeState(), CommitInfo.EMPTY);
+
+        final CountDownLatch opening = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicBoolean block = new AtomicBoolean();
+        IndexCopier copier = new IndexCopier(sameThreadExecutor(), new File(getIndexDir())){
+            @Override
+            public Directory wrap(String indexPath, IndexDefinition definition, Directory remote) throws IOException {
+                if (block.get() && indexPath.equals("/oak:index/lucene")) {
+                    opening.countDown();
+                    awaitUninterruptibly(proceed);
+                }
+                return super.wrap(indexPath, definition, remote);
+            }
+        };
+        final IndexTracker tracker = new IndexTracker(copier);
+        tracker.update(indexed);
+        //Only the first index is opened before the update
+        tracker.acquireIndexNode("/oak:index/lucene").release();
+        assertFalse(tracker.getIndexNodePaths().contains("/oak:index/lucene2"));
+        IndexNode oldNode = tracker.acquireIndexNode("/oak:index/lucene");
+        oldNode.release();
+
+        builder = indexed.builder();
+        builder.setProperty("foo2", "bar2");
+        final NodeState indexed2 = HOOK.processCommit(indexed, builder.getNodeState(), CommitInfo.EMPTY);
+
+        block.set(true);
+        Thread updater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tracker.update(indexed2);
+            }
+        });
+        updater.start();
+        assertTrue(opening.await(10, TimeUnit.SECONDS));
+
+        //While the updated index is opened, lookups return the old index node
+        IndexNode node = tracker.acquireIndexNode("/oak:index/lucene");
+        assertSame(oldNode, node);
+        node.release();
+
+        //An index not opened yet can be opened meanwhile
+        assertQuery(tracker, indexed, "foo3", "bar3");
+        assertTrue(tracker.getIndexNodePaths().contains("/oak:index/lucene2"));
+        assertTrue(updater.isAlive());
+
+        proceed.countDown();
+        updater.join();
+
+        assertQuery(tracker, indexed2, "foo2", "bar2");
+        node = tracker.acquireIndexNode("/oak:index/lucene");
+        assertNotSame(oldNode, node);
+        node.release();
+    }
+
     @After
     public void cleanUp(){
         for (File d: dirs){
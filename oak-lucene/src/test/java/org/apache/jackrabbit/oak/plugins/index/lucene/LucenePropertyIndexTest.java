@@ -82,9 +82,10 @@ import static org.junit.matchers.JUnitMatchers.containsString;
 
 public class LucenePropertyIndexTest extends AbstractQueryTest {
     /**
-     * Set the size to twice the batch size to test the pagination with sorting
+     * Set the size to four times the batch size to test the pagination with
+     * sorting. As the batch size doubles, the results span three batches
      */
-    static final int NUMBER_OF_NODES = LucenePropertyIndex.LUCENE_QUERY_BATCH_SIZE * 2;
+    static final int NUMBER_OF_NODES = LucenePropertyIndex.LUCENE_QUERY_BATCH_SIZE * 4;
 
     @Override
     protected void createTestIndexNode() throws Exception {
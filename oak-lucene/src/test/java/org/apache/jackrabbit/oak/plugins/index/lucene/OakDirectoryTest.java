@@ -45,6 +45,7 @@ import static org.apache.jackrabbit.oak.plugins.index.lucene.OakDirectory.PROP_B
 import static org.apache.jackrabbit.oak.plugins.nodetype.write.InitialContent.INITIAL_CONTENT;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class OakDirectoryTest {
     private Random rnd = new Random();
@@ -106,6 +107,77 @@ public class OakDirectoryTest {
         assertEquals((long)blobSize * (dataSize - 1), input.length());
     }
 
+    @Test
+    public void clonesShareCachedBlocks() throws Exception{
+        IndexBlockCache cache = new IndexBlockCache(1024 * 1024);
+        Directory dir = createDir(builder, cache);
+        byte[] data = createFile(builder, "test", 3, 300, true);
+
+        IndexInput input = dir.openInput("test", IOContext.DEFAULT);
+        assertEquals(data.length, input.length());
+        byte[] result = new byte[data.length];
+        input.readBytes(result, 0, result.length);
+        assertTrue(Arrays.equals(data, result));
+        assertEquals(3, cache.getMissCount());
+
+        //A clone and another input read the same blocks from the cache
+        IndexInput clone = input.clone();
+        clone.seek(0);
+        result = new byte[data.length];
+        clone.readBytes(result, 0, result.length);
+        assertTrue(Arrays.equals(data, result));
+
+        IndexInput other = dir.openInput("test", IOContext.DEFAULT);
+        result = new byte[data.length];
+        other.readBytes(result, 0, result.length);
+        assertTrue(Arrays.equals(data, result));
+        assertEquals(3, cache.getMissCount());
+        assertEquals(6, cache.getHitCount());
+
+        //Reading the clone does not move the original
+        assertEquals(data.length, input.getFilePointer());
+    }
+
+    @Test
+    public void readByte() throws Exception{
+        IndexBlockCache cache = new IndexBlockCache(1024 * 1024);
+        Directory dir = createDir(builder, cache);
+        byte[] data = createFile(builder, "test", 3, 300, true);
+
+        IndexInput input = dir.openInput("test", IOContext.DEFAULT);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], input.readByte());
+        }
+        assertEquals(data.length, input.getFilePointer());
+        assertEquals(3, cache.getMissCount());
+
+        try {
+            input.readByte();
+            fail("Reading past the end of the file should fail");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void blobsWithoutContentIdentityAreNotCached() throws Exception{
+        IndexBlockCache cache = new IndexBlockCache(1024 * 1024);
+        Directory dir = createDir(builder, cache);
+        byte[] data = createFile(builder, "test", 3, 300, false);
+
+        IndexInput input = dir.openInput("test", IOContext.DEFAULT);
+        IndexInput clone = input.clone();
+
+        //The original and the clone read into their own buffers
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], input.readByte());
+            assertEquals(data[data.length - 1 - i], readByteAt(clone, data.length - 1 - i));
+        }
+        assertEquals(0, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getSize());
+    }
+
     byte[] assertWrites(Directory dir, int blobSize) throws IOException {
         byte[] data = randomBytes(fileSize);
         IndexOutput o = dir.createOutput("test", IOContext.DEFAULT);
@@ -133,7 +205,35 @@ public class OakDirectoryTest {
     }
 
     private Directory createDir(NodeBuilder builder){
-        return new OakDirectory(builder.child(INDEX_DATA_CHILD_NAME), new IndexDefinition(root, builder.getNodeState()));
+        return createDir(builder, null);
+    }
+
+    private Directory createDir(NodeBuilder builder, IndexBlockCache cache){
+        return new OakDirectory(builder.child(INDEX_DATA_CHILD_NAME),
+                new IndexDefinition(root, builder.getNodeState()), cache);
+    }
+
+    /**
+     * Creates a file of the given number of blobs, of which the last one is
+     * only partially filled.
+     */
+    private byte[] createFile(NodeBuilder builder, String name, int blobCount,
+                              int blobSize, boolean withContentIdentity) {
+        byte[] data = randomBytes(blobSize * blobCount - blobSize / 2);
+        List<Blob> blobs = newArrayList();
+        for (int i = 0; i < blobCount; i++) {
+            byte[] block = Arrays.copyOfRange(data, i * blobSize, Math.min(data.length, (i + 1) * blobSize));
+            blobs.add(withContentIdentity ? new IdBlob(block, name + i) : new ArrayBasedBlob(block));
+        }
+        NodeBuilder file = builder.child(INDEX_DATA_CHILD_NAME).child(name);
+        file.setProperty(PROP_BLOB_SIZE, blobSize);
+        file.setProperty(PropertyStates.createProperty(JCR_DATA, blobs, BINARIES));
+        return data;
+    }
+
+    private static byte readByteAt(IndexInput input, long pos) throws IOException {
+        input.seek(pos);
+        return input.readByte();
     }
 
     byte[] randomBytes(int size) {
@@ -141,4 +241,18 @@ public class OakDirectoryTest {
         rnd.nextBytes(data);
         return data;
     }
+
+    private static class IdBlob extends ArrayBasedBlob {
+        final String id;
+
+        public IdBlob(byte[] value, String id) {
+            super(value);
+            this.id = id;
+        }
+
+        @Override
+        public String getContentIdentity() {
+            return id;
+        }
+    }
 }
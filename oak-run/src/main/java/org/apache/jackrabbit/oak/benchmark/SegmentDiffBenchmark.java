@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.benchmark;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.plugins.segment.file.FileStore.DIFF_THREADS_DEFAULT;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.oak.fixture.RepositoryFixture;
+import org.apache.jackrabbit.oak.plugins.segment.RecordId;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeState;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentWriter;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+/**
+ * Measures the cost of comparing two revisions of a large flat segment node
+ * state against the size of the changeset between them, with the buckets of
+ * the child node map compared sequentially and concurrently. Runs directly
+ * on a file store in a temporary directory, so the repository fixtures are
+ * ignored. The store is opened without memory mapping and without segment
+ * cache, such that the comparisons read the segments from the tar files.
+ * The size of the node and the number of concurrent diff threads can be set
+ * with the {@code diff.children} and {@code oak.segment.diffThreads} system
+ * properties respectively.
+ */
+public class SegmentDiffBenchmark extends Benchmark {
+
+    private static final int CHILDREN = Integer.getInteger("diff.children", 100000);
+
+    private static final int[] CHANGES = { 1, 10, 100, 1000, 10000 };
+
+    private static final int ITERATIONS = 20;
+
+    @Override
+    public void run(Iterable<RepositoryFixture> fixtures) {
+        File directory = new File(FileUtils.getTempDirectory(),
+                "SegmentDiffBenchmark-" + System.currentTimeMillis());
+        try {
+            String[] revisions = setUp(directory);
+            System.out.format(
+                    "Segment diff benchmark: %d children%n", CHILDREN);
+            System.out.format(
+                    "# %-10s %10s %10s %10s%n",
+                    "changes", "threads", "avg (ms)", "diffs");
+            run(directory, revisions, 0);
+            if (DIFF_THREADS_DEFAULT > 0) {
+                run(directory, revisions, DIFF_THREADS_DEFAULT);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Writes the base revision followed by one revision for each number
+     * of changes.
+     *
+     * @return the record ids of the written revisions
+     */
+    private static String[] setUp(File directory) throws IOException {
+        FileStore store = FileStore.newFileStore(directory).create();
+        try {
+            SegmentWriter writer = store.getTracker().getWriter();
+            NodeBuilder builder = EMPTY_NODE.builder();
+            for (int i = 0; i < CHILDREN; i++) {
+                builder.child("child" + i).setProperty("p", i);
+            }
+            NodeState before = writer.writeNode(builder.getNodeState());
+
+            String[] revisions = new String[CHANGES.length + 1];
+            revisions[0] = ((SegmentNodeState) before).getRecordId().toString();
+            Random random = new Random(42);
+            for (int c = 0; c < CHANGES.length; c++) {
+                builder = before.builder();
+                for (int i = 0; i < CHANGES[c]; i++) {
+                    builder.child("child" + random.nextInt(CHILDREN))
+                            .setProperty("p", -i);
+                }
+                SegmentNodeState after = writer.writeNode(builder.getNodeState());
+                revisions[c + 1] = after.getRecordId().toString();
+            }
+            writer.flush();
+            return revisions;
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void run(File directory, String[] revisions, int threads)
+            throws IOException {
+        FileStore store = FileStore.newFileStore(directory)
+                .withMemoryMapping(false)
+                .withNoCache()
+                .withDiffThreads(threads)
+                .create();
+        try {
+            NodeState before = getNodeState(store, revisions[0]);
+            for (int c = 0; c < CHANGES.length; c++) {
+                NodeState after = getNodeState(store, revisions[c + 1]);
+
+                CountingDiff diff = new CountingDiff();
+                after.compareAgainstBaseState(before, diff); // warm up
+
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    diff = new CountingDiff();
+                    after.compareAgainstBaseState(before, diff);
+                }
+                double avg = (System.nanoTime() - start) / 1000000.0 / ITERATIONS;
+                System.out.format(
+                        "  %-10d %10d %10.3f %10d%n",
+                        CHANGES[c], threads, avg, diff.count);
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    private static NodeState getNodeState(FileStore store, String revision) {
+        return new SegmentNodeState(
+                RecordId.fromString(store.getTracker(), revision));
+    }
+
+    private static class CountingDiff extends DefaultNodeStateDiff {
+
+        private int count;
+
+        @Override
+        public boolean childNodeChanged(
+                String name, NodeState before, NodeState after) {
+            count++;
+            return true;
+        }
+
+    }
+
+}
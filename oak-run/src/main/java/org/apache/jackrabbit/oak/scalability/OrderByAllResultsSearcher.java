@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.jackrabbit.oak.scalability;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+
+import org.apache.jackrabbit.oak.scalability.ScalabilityAbstractSuite.ExecutionContext;
+
+/**
+ * Iterates over all the results of the search {@link org.apache.jackrabbit.oak.scalability
+ * .OrderBySearcher} instead of only the first results. This measures the cost of reading
+ * a large sorted result, which the index loads in several batches.
+ */
+public class OrderByAllResultsSearcher extends OrderBySearcher {
+    @Override
+    protected void search(QueryManager qm, ExecutionContext context) throws RepositoryException {
+        Query q = getQuery(qm, context);
+        RowIterator it = q.execute().getRows();
+        long count = 0;
+        while (it.hasNext()) {
+            it.nextRow();
+            count++;
+        }
+        LOG.debug("Iterated over {} results", count);
+    }
+}
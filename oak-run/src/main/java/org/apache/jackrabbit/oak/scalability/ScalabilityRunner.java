@@ -136,7 +136,8 @@ public class ScalabilityRunner {
                                         new MultiFilterOrderByOffsetPageSearcher(),
                                         new MultiFilterSplitOrderByOffsetPageSearcher(),
                                         new MultiFilterOrderByKeysetPageSearcher(),
-                                        new MultiFilterSplitOrderByKeysetPageSearcher()),
+                                        new MultiFilterSplitOrderByKeysetPageSearcher(),
+                                        new OrderByAllResultsSearcher()),
                         new ScalabilityNodeRelationshipSuite(withStorage.value(options))
                                 .addBenchmarks(new AggregateNodeSearcher())
                 };
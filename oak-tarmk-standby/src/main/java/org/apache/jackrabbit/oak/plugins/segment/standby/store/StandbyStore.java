@@ -141,6 +141,11 @@ public class StandbyStore implements SegmentStore {
         delegate.gc();
     }
 
+    @Override
+    public void awaitPersisted() throws IOException, InterruptedException {
+        delegate.awaitPersisted();
+    }
+
     public void setLoader(RemoteSegmentLoader loader) {
         this.loader = loader;
     }
@@ -18,6 +18,8 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment;
 
+import java.io.IOException;
+
 import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.spi.blob.BlobStore;
 
@@ -82,4 +84,9 @@ public class DebugSegmentStore implements SegmentStore {
     public void gc() {
         this.target.gc();
     }
+
+    @Override
+    public void awaitPersisted() throws IOException, InterruptedException {
+        this.target.awaitPersisted();
+    }
 }